@@ -0,0 +1,121 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop;
+
+import com.jvmtop.monitor.PerfDataBuffer;
+import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the jvm given on the command line (jvmtop &lt;pid&gt;, --profile) while a number
+ * of other idle jvms is running on the host.
+ * <p>
+ * allVirtualMachines is the former lookup via {@link LocalVirtualMachine#getAllVirtualMachines()}.
+ * Other jvms already running on the host add to the given number.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+        "--add-exports=jdk.internal.jvmstat/sun.jvmstat.monitor=ALL-UNNAMED",
+        "--add-exports=java.base/jdk.internal.perf=ALL-UNNAMED",
+        "--add-exports=java.management/sun.management.counter.perf=ALL-UNNAMED",
+        "--add-exports=java.management/sun.management.counter=ALL-UNNAMED",
+        "--add-exports=jdk.management.agent/jdk.internal.agent=ALL-UNNAMED",
+        "--add-exports=jdk.attach/sun.tools.attach=ALL-UNNAMED"})
+public class StartupBenchmark {
+
+    @Param({"0", "8", "16"})
+    private int otherJvms_;
+
+    private final List<Process> jvms_ = new ArrayList<Process>();
+
+    private int vmid_;
+
+    @Setup
+    public void setup() throws Exception {
+        for (int i = 0; i <= otherJvms_; i++) {
+            jvms_.add(new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-Xmx16m", "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1",
+                    "-cp", System.getProperty("java.class.path"), IdleJvm.class.getName())
+                    .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start());
+        }
+        // the first one is the target, wait until all jvms have exported their perf data
+        vmid_ = (int) jvms_.get(0).pid();
+        for (Process jvm : jvms_) {
+            while (PerfDataBuffer.findFile((int) jvm.pid()) == null) {
+                if (!jvm.isAlive()) {
+                    throw new IOException("jvm " + jvm.pid() + " terminated");
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        for (Process jvm : jvms_) {
+            jvm.destroy();
+        }
+        for (Process jvm : jvms_) {
+            jvm.waitFor();
+        }
+        jvms_.clear();
+    }
+
+    @Benchmark
+    public LocalVirtualMachine localVirtualMachine() throws Exception {
+        return LocalVirtualMachine.getLocalVirtualMachine(vmid_);
+    }
+
+    @Benchmark
+    public LocalVirtualMachine allVirtualMachines() {
+        return LocalVirtualMachine.getAllVirtualMachines().get(vmid_);
+    }
+
+    /**
+     * A jvm which does nothing until it is destroyed.
+     */
+    public static class IdleJvm {
+        public static void main(String[] args) throws InterruptedException {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds pre-interned stacks into CPUSampler, i.e. the id-based aggregation path behind all sample sources:
+ * filter decisions, the per-frame counters and the sliding window (and optionally the call tree).
+ * <p>
+ * Run with -prof gc, gc.alloc.rate.norm is the allocation per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(CPUSamplerBenchmark.SAMPLES)
+public class CPUSamplerBenchmark {
+
+    static final int SAMPLES = 10000;
+
+    private static final int SAMPLES_PER_UPDATE = 20;
+
+    private static final int FRAMES = 500;
+
+    private static final int STACKS = 200;
+
+    private static final int STACK_DEPTH = 30;
+
+    @Param({"false", "true"})
+    private boolean callTree_;
+
+    private CPUSampler sampler_;
+
+    private StackSource source_;
+
+    @Setup
+    public void setup() throws IOException {
+        sampler_ = new CPUSampler();
+        sampler_.setCallTreeEnabled(callTree_);
+        source_ = new StackSource();
+        // interns the frames and stacks, and grows all counters
+        sampler_.replay(source_);
+    }
+
+    @Benchmark
+    public long addSamples() throws IOException {
+        sampler_.replay(source_);
+        return sampler_.getTotal();
+    }
+
+    /**
+     * Replays synthetic stacks, with the innermost frames in filtered packages like in real stacks.
+     */
+    private static class StackSource extends SampleReplay {
+
+        private final int[][] stacks_ = new int[STACKS][STACK_DEPTH];
+
+        private boolean interned_ = false;
+
+        private long timestamp_ = 0;
+
+        StackSource() {
+            super(Paths.get("synthetic"));
+        }
+
+        @Override
+        public void replay(FrameDictionary frames, Listener listener) {
+            if (!interned_) {
+                Random random = new Random(42);
+                for (int[] stack : stacks_) {
+                    for (int i = 0; i < STACK_DEPTH; i++) {
+                        int frame = random.nextInt(FRAMES);
+                        String className = i < 3 ? "java.util.HashMap" : "com.example.Service" + frame % 50;
+                        stack[i] = frames.getId(className, "method" + frame, frame);
+                    }
+                }
+                interned_ = true;
+            }
+            for (int i = 0; i < SAMPLES; i++) {
+                if (i % SAMPLES_PER_UPDATE == 0) {
+                    timestamp_ += 10_000_000;
+                    listener.update(timestamp_);
+                }
+                listener.sample(i % 8, stacks_[i % STACKS], STACK_DEPTH, 1_000_000);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import com.jvmtop.monitor.PerfDataBuffer;
+import com.jvmtop.monitor.VMInfo;
+import com.jvmtop.monitor.VMInfoState;
+import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Counts the RMI bytes CPUSampler transfers per sample from a jvm with
+ * {@link TargetJvm#IDLE_THREADS} idle threads and a cpu-bound one.
+ * <p>
+ * cpuActiveOnly=false is the former sampling of all threads with their complete stacks
+ * (--sample-all-threads). All RMI sockets of the benchmark jvm are counted.
+ * JMH sums event counters over the iterations, so a single iteration is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = {
+        "--add-exports=jdk.internal.jvmstat/sun.jvmstat.monitor=ALL-UNNAMED",
+        "--add-exports=java.base/jdk.internal.perf=ALL-UNNAMED",
+        "--add-exports=java.management/sun.management.counter.perf=ALL-UNNAMED",
+        "--add-exports=java.management/sun.management.counter=ALL-UNNAMED",
+        "--add-exports=jdk.management.agent/jdk.internal.agent=ALL-UNNAMED",
+        "--add-exports=jdk.attach/sun.tools.attach=ALL-UNNAMED",
+        "--add-opens=java.rmi/sun.rmi.server=ALL-UNNAMED",
+        "--add-opens=java.rmi/sun.rmi.transport=ALL-UNNAMED",
+        "--add-opens=jdk.management/com.sun.management.internal=ALL-UNNAMED"})
+public class CPUSamplerRmiBenchmark {
+
+    private static final int SAMPLES = 100;
+
+    private static final AtomicLong SENT = new AtomicLong();
+
+    private static final AtomicLong RECEIVED = new AtomicLong();
+
+    @Param({"true", "false"})
+    private boolean cpuActiveOnly_;
+
+    private Process target_;
+
+    private CPUSampler sampler_;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class TransferredBytes {
+        public long sentPerSample;
+        public long receivedPerSample;
+
+        @Setup(Level.Invocation)
+        public void reset() {
+            SENT.set(0);
+            RECEIVED.set(0);
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        RMISocketFactory.setSocketFactory(new CountingSocketFactory());
+        target_ = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-Xmx32m", "-cp", System.getProperty("java.class.path"), TargetJvm.class.getName())
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        int vmid = (int) target_.pid();
+        while (PerfDataBuffer.findFile(vmid) == null) {
+            Thread.sleep(50);
+        }
+        // let the threads of the target reach their stack depth
+        Thread.sleep(1000);
+        VMInfo vmInfo = VMInfo.processNewVM(LocalVirtualMachine.getLocalVirtualMachine(vmid), vmid);
+        if (vmInfo.getState() != VMInfoState.ATTACHED) {
+            throw new IOException("could not attach to " + vmid + ": " + vmInfo.getState());
+        }
+        sampler_ = new CPUSampler(vmInfo);
+        sampler_.setCpuActiveOnly(cpuActiveOnly_);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        target_.destroy();
+        target_.waitFor();
+    }
+
+    @Benchmark
+    public void sample(TransferredBytes bytes) throws Exception {
+        for (int i = 0; i < SAMPLES; i++) {
+            sampler_.update();
+        }
+        bytes.sentPerSample = SENT.get() / SAMPLES;
+        bytes.receivedPerSample = RECEIVED.get() / SAMPLES;
+    }
+
+    private static class CountingSocketFactory extends RMISocketFactory {
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return new Socket(host, port) {
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return new FilterInputStream(super.getInputStream()) {
+                        @Override
+                        public int read() throws IOException {
+                            int b = super.read();
+                            if (b != -1) {
+                                RECEIVED.incrementAndGet();
+                            }
+                            return b;
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            int read = super.read(b, off, len);
+                            if (read > 0) {
+                                RECEIVED.addAndGet(read);
+                            }
+                            return read;
+                        }
+                    };
+                }
+
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    return new FilterOutputStream(super.getOutputStream()) {
+                        @Override
+                        public void write(int b) throws IOException {
+                            out.write(b);
+                            SENT.incrementAndGet();
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                            SENT.addAndGet(len);
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return new ServerSocket(port);
+        }
+    }
+
+    /**
+     * A jvm with idle threads parked in deep stacks and a cpu-bound thread.
+     */
+    public static class TargetJvm {
+
+        static final int IDLE_THREADS = 40;
+
+        public static void main(String[] args) {
+            for (int i = 0; i < IDLE_THREADS; i++) {
+                Thread thread = new Thread(() -> recurse(60, false), "idle-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            recurse(20, true);
+        }
+
+        private static long recurse(int depth, boolean busy) {
+            if (depth > 0) {
+                return recurse(depth - 1, busy) + 1;
+            }
+            long sum = 0;
+            while (true) {
+                if (busy) {
+                    sum += System.nanoTime() % 7;
+                } else {
+                    LockSupport.park();
+                }
+                if (sum == -1) {
+                    return sum;
+                }
+            }
+        }
+    }
+}
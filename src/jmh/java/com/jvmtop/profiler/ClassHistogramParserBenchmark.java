@@ -0,0 +1,111 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Parses a class histogram of a jvm with about 50k classes, as recorded by jcmd GC.class_histogram.
+ * <p>
+ * regexBaseline is the BufferedReader and regex loop HeapSampler used before ClassHistogramParser.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassHistogramParserBenchmark {
+
+    static final String FIXTURE = "class-histogram-50k.txt.gz";
+
+    private static final Pattern HIST_PATTERN = Pattern.compile(
+            "\\s*(\\d+):{1}\\s+(\\d+)\\s+(\\d+)\\s+(.+)"
+    );
+
+    private byte[] histogram_;
+
+    // keeps its interned class names between the invocations, like in HeapSampler
+    private ClassHistogramParser parser_;
+
+    @Setup
+    public void setup() throws IOException {
+        histogram_ = loadFixture();
+        parser_ = new ClassHistogramParser();
+    }
+
+    static byte[] loadFixture() throws IOException {
+        try (InputStream in = new GZIPInputStream(
+                ClassHistogramParserBenchmark.class.getResourceAsStream(FIXTURE))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            in.transferTo(out);
+            return out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public ClassHistogram parse() throws IOException {
+        return parser_.parse(new ByteArrayInputStream(histogram_));
+    }
+
+    @Benchmark
+    public ClassHistogram parseWithNewParser() throws IOException {
+        return new ClassHistogramParser().parse(new ByteArrayInputStream(histogram_));
+    }
+
+    @Benchmark
+    public long regexBaseline() throws IOException {
+        long bytes = 0;
+        Matcher matcher = HIST_PATTERN.matcher("");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(histogram_), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            matcher.reset(line);
+            if (matcher.matches()) {
+                bytes += Long.parseLong(matcher.group(3)) + matcher.group(4).length()
+                        + Long.parseLong(matcher.group(2));
+            }
+        }
+        return bytes;
+    }
+}
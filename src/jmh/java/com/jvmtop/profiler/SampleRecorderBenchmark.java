@@ -0,0 +1,140 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes samples of synthetic stacks to a SampleRecorder, which discards the output.
+ * <p>
+ * write measures the throughput in samples/s, with the written bytes/s as secondary result.
+ * recordHour writes the samples of one hour at the default rate of 10 updates/s with
+ * {@link #THREADS} active threads into a new recording and reports its size in bytes.
+ * JMH sums event counters over the iterations, so recordHour is measured once.
+ */
+@State(Scope.Thread)
+@Fork(1)
+public class SampleRecorderBenchmark {
+
+    static final int THREADS = 8;
+
+    private static final int UPDATES_PER_HOUR = 3600 * 10;
+
+    private static final int FRAMES = 2000;
+
+    private static final int STACK_DEPTH = 30;
+
+    @Param({"200", "5000"})
+    private int stacks_;
+
+    private FrameDictionary frames_;
+
+    private int[][] stackFrameIds_;
+
+    private SampleRecorder recorder_;
+
+    private long timestamp_ = 0;
+
+    private int next_ = 0;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class WrittenBytes {
+        public long bytes;
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class RecordingSize {
+        public long bytesPerHour;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        frames_ = new FrameDictionary();
+        stackFrameIds_ = new int[stacks_][STACK_DEPTH];
+        Random random = new Random(42);
+        for (int[] stack : stackFrameIds_) {
+            for (int i = 0; i < STACK_DEPTH; i++) {
+                int frame = random.nextInt(FRAMES);
+                stack[i] = frames_.getId("com.example.Service" + frame % 100, "method" + frame, frame);
+            }
+        }
+        recorder_ = new SampleRecorder(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @OperationsPerInvocation(THREADS)
+    public void write(WrittenBytes written) throws IOException {
+        long bytes = recorder_.getBytes();
+        writeUpdate(recorder_);
+        written.bytes += recorder_.getBytes() - bytes;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 1)
+    public void recordHour(RecordingSize size) throws IOException {
+        SampleRecorder recorder = new SampleRecorder(OutputStream.nullOutputStream());
+        for (int i = 0; i < UPDATES_PER_HOUR; i++) {
+            writeUpdate(recorder);
+        }
+        recorder.close();
+        size.bytesPerHour = recorder.getBytes();
+    }
+
+    /**
+     * Writes an update 100ms after the previous one, with a sample per thread.
+     */
+    private void writeUpdate(SampleRecorder recorder) throws IOException {
+        timestamp_ += 100_000_000;
+        recorder.writeUpdate(timestamp_);
+        for (int thread = 1; thread <= THREADS; thread++) {
+            int[] frameIds = stackFrameIds_[next_];
+            next_ = (next_ + 1) % stacks_;
+            recorder.writeSample(thread, frames_, frameIds, STACK_DEPTH, 1_000_000 + next_ * 1000);
+        }
+        recorder.flushIfDue(timestamp_);
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selects the largest classes of the recorded 50k-class histogram, ordered like in HeapSampler.
+ * <p>
+ * sortBaseline sorts all entries and takes the first k.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopKBenchmark {
+
+    @Param({"10", "100"})
+    private int k_;
+
+    private ClassHistogram histogram_;
+
+    private TopK.IndexComparator order_;
+
+    @Setup
+    public void setup() throws IOException {
+        histogram_ = new ClassHistogramParser().parse(
+                new ByteArrayInputStream(ClassHistogramParserBenchmark.loadFixture()));
+        order_ = new TopK.IndexComparator() {
+            @Override
+            public int compare(int index1, int index2) {
+                int result = Long.compare(histogram_.getBytes(index2), histogram_.getBytes(index1));
+                if (result == 0) {
+                    result = histogram_.getClassName(index1).compareTo(histogram_.getClassName(index2));
+                }
+                return result != 0 ? result : Integer.compare(index1, index2);
+            }
+        };
+    }
+
+    @Benchmark
+    public int[] select() {
+        return TopK.select(histogram_.size(), k_, order_);
+    }
+
+    @Benchmark
+    public Integer[] sortBaseline() {
+        Integer[] indices = new Integer[histogram_.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        Arrays.sort(indices, (index1, index2) -> order_.compare(index1, index2));
+        return Arrays.copyOf(indices, Math.min(k_, indices.length));
+    }
+}
@@ -27,8 +27,13 @@ import com.jvmtop.view.VMProfileView;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 
+import com.jvmtop.monitor.VMInfoCollector;
+import com.jvmtop.profiler.CPUSampler;
 import com.jvmtop.profiler.HeapSampler;
+import com.jvmtop.profiler.PackageFilter;
+import com.jvmtop.profiler.WindowedCounters;
 import com.jvmtop.view.ConsoleView;
+import com.jvmtop.view.VMAllocProfileView;
 import com.jvmtop.view.VMDetailView;
 import com.jvmtop.view.VMMemProfileView;
 import com.jvmtop.view.VMOverviewView;
@@ -44,6 +49,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
@@ -88,9 +94,27 @@ public class JvmTop {
         parser.accepts("once", "jvmtop will exit after first output iteration [deprecated, use -n 1 instead]");
         parser.acceptsAll(Arrays.asList("n", "iteration"), "jvmtop will exit after n output iterations").withRequiredArg().ofType(Integer.class);
         parser.acceptsAll(Arrays.asList("d", "delay"), "delay between each output iteration").withRequiredArg().ofType(Double.class);
-        parser.accepts("profile", "start CPU profiling at the specified jvm");
+        parser.accepts("profile", "start CPU profiling at the specified jvm, optionally via jfr (Java Flight Recorder execution samples, --profile=jfr) or jmx (thread dumps, the default)").withOptionalArg().ofType(String.class);
+        parser.accepts("profile-view", "presentation of the CPU profile: flat, tree (top-down call tree) or inverted (bottom-up call tree), defaults to flat").withRequiredArg().ofType(String.class);
+        parser.accepts("profile-tree-min", "collapses call tree nodes below this percentage of the total cpu time (defaults to 1)").withRequiredArg().ofType(Double.class);
+        parser.accepts("profile-aggregation", "aggregation of the flat CPU profile: cumulative, window (sliding window) or decayed (exponentially decayed by age), defaults to cumulative").withRequiredArg().ofType(String.class);
+        parser.accepts("profile-window", "seconds of the sliding window of the CPU profile (defaults to " + WindowedCounters.DEFAULT_WINDOW_SECONDS + "), the half-life of the decayed aggregation is a quarter of it").withRequiredArg().ofType(Double.class);
+        parser.accepts("profile-include", "comma-separated class name prefixes (e.g. io.netty.) which are shown in the CPU profile, overriding shorter exclude prefixes").withRequiredArg().ofType(String.class).withValuesSeparatedBy(',');
+        parser.accepts("profile-exclude", "comma-separated class name prefixes which are skipped in the CPU profile, in addition to the default excludes").withRequiredArg().ofType(String.class).withValuesSeparatedBy(',');
+        parser.accepts("profile-filter-file", "file with CPU profile filter rules, one per line: +prefix to include, -prefix to exclude").withRequiredArg().ofType(String.class);
+        parser.accepts("profile-agent", "loads a sampling agent into the jvm when profiling, which samples locally and supports sample rates of 100-1000 per second (requires jvmtop-agent.jar next to jvmtop.jar)");
+        parser.accepts("sample-rate", "samples per second when profiling (defaults to 10, 100 with --profile-agent, or 50 per thread with --profile=jfr)").withRequiredArg().ofType(Double.class);
+        parser.accepts("sample-depth", "maximum number of stack frames fetched per thread and sample when profiling (defaults to " + CPUSampler.DEFAULT_SAMPLE_DEPTH + ")").withRequiredArg().ofType(Integer.class);
+        parser.accepts("sample-all-threads", "fetches the complete stacks of all threads on every sample when profiling, instead of only the threads which consumed cpu time");
+        parser.accepts("record", "records all samples to the specified file when CPU profiling, to be shown later via --replay").withRequiredArg().ofType(String.class);
+        parser.accepts("replay", "shows the CPU profile of a file recorded via --record, no jvm is attached (the --profile-* presentation and filter options apply)").withRequiredArg().ofType(String.class);
+        parser.accepts("profile-folded", "writes the sampled call stacks in folded format (for flame graphs) to the specified file on every iteration").withRequiredArg().ofType(String.class);
         parser.accepts("enable-deltas", "shows deltas between the updates (currently only applicable with --profile-mem)");
         parser.accepts("profile-mem", "start memory profiling at the specified jvm").requiredIf("enable-deltas");
+        parser.accepts("profile-mem-live", "counts only reachable objects when memory profiling, which forces a full GC on every histogram (by default, all objects are counted)");
+        parser.accepts("profile-mem-interval", "seconds between the class histograms when memory profiling, independent of the refresh delay (defaults to the delay)").withRequiredArg().ofType(Double.class);
+        parser.accepts("profile-mem-sort", "order of the classes when memory profiling: size or growth (bytes per second since the previous update, implies --enable-deltas), defaults to size").withRequiredArg().ofType(String.class);
+        parser.accepts("profile-alloc", "start allocation profiling at the specified jvm, showing the allocation rates per site and class (requires the Java Flight Recorder)");
         parser.accepts("sysinfo", "outputs diagnostic information");
         parser.accepts("verbose", "verbose mode");
         parser.accepts("threadlimit", "sets the number of displayed threads in detail mode").withRequiredArg().ofType(Integer.class);
@@ -100,6 +124,9 @@ public class JvmTop {
         parser.accepts("threadnamewidth", "sets displayed thread name length in detail mode (defaults to 30)").withRequiredArg().ofType(Integer.class);
         parser.accepts("thread-dump", "dumps the status of current running threads");
         parser.accepts("heap-dump", "generates and dumps the heap to the specified file").withRequiredArg().ofType(String.class);
+        parser.accepts("overview-attach", "attaches to all jvms in overview mode instead of reading their hsperfdata files (enables deadlock detection)");
+        parser.accepts("connect-timeout", "seconds to wait for attaching to a jvm before it is shown as timed out (defaults to 5)").withRequiredArg().ofType(Double.class);
+        parser.accepts("read-timeout", "seconds to wait for the metrics of a jvm before it is shown as timed out (defaults to 2)").withRequiredArg().ofType(Double.class);
         return parser;
     }
 
@@ -129,6 +156,8 @@ public class JvmTop {
         Integer threadlimit = null;
         boolean threadLimitEnabled = true;
         Integer threadNameWidth = null;
+        long connectTimeout = VMInfoCollector.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        long readTimeout = VMInfoCollector.DEFAULT_READ_TIMEOUT_MILLIS;
 
         if (a.hasArgument("delay")) {
             delay = (Double) (a.valueOf("delay"));
@@ -146,6 +175,20 @@ public class JvmTop {
             pid = Integer.valueOf((String) a.nonOptionArguments().get(0));
         }
 
+        //to support --profile PID, where jopt takes the PID as the optional argument
+        String profileSource = null;
+        if (a.hasArgument("profile")) {
+            profileSource = (String) a.valueOf("profile");
+            if (profileSource.chars().allMatch(Character::isDigit)) {
+                if (pid == null) {
+                    pid = Integer.valueOf(profileSource);
+                }
+                profileSource = null;
+            } else if (!profileSource.equalsIgnoreCase("jfr") && !profileSource.equalsIgnoreCase("jmx")) {
+                throw new IllegalArgumentException("Unknown profiling mode: " + profileSource);
+            }
+        }
+
         if (a.hasArgument("pid")) {
             pid = (Integer) a.valueOf("pid");
         }
@@ -172,6 +215,14 @@ public class JvmTop {
             threadNameWidth = (Integer) a.valueOf("threadnamewidth");
         }
 
+        if (a.hasArgument("connect-timeout")) {
+            connectTimeout = (long) ((Double) a.valueOf("connect-timeout") * 1000);
+        }
+
+        if (a.hasArgument("read-timeout")) {
+            readTimeout = (long) ((Double) a.valueOf("read-timeout") * 1000);
+        }
+
         if (a.has("thread-dump") || a.has("heap-dump")) {
             handleNonViewArgs(a, pid);
         }
@@ -182,16 +233,80 @@ public class JvmTop {
             JvmTop jvmTop = new JvmTop();
             jvmTop.setDelay(delay);
             jvmTop.setMaxIterations(iterations);
-            if (pid == null) {
-                jvmTop.run(new VMOverviewView(width));
+            if (a.hasArgument("replay")) {
+                VMProfileView vmProfileView = new VMProfileView(
+                        new File((String) a.valueOf("replay")), width);
+                configureProfileView(vmProfileView, a);
+                jvmTop.run(vmProfileView);
+            } else if (pid == null) {
+                VMInfoCollector collector = new VMInfoCollector();
+                collector.setConnectTimeout(connectTimeout);
+                collector.setReadTimeout(readTimeout);
+                VMOverviewView vmOverviewView = new VMOverviewView(width, collector);
+                vmOverviewView.setPerfDataEnabled(!a.has("overview-attach"));
+                jvmTop.run(vmOverviewView);
             } else {
+                // a single jvm does not need to share the refresh with others,
+                // so wait up to the read timeout for its metrics
+                VMInfoCollector collector = new VMInfoCollector(1, readTimeout);
+                collector.setConnectTimeout(connectTimeout);
+                collector.setReadTimeout(readTimeout);
                 if (profileMode) {
-                    jvmTop.run(new VMProfileView(pid, width));
+                    VMProfileView vmProfileView = new VMProfileView(pid, width, collector);
+                    configureProfileView(vmProfileView, a);
+                    if ("jfr".equalsIgnoreCase(profileSource)) {
+                        vmProfileView.setSource(VMProfileView.Source.JFR);
+                        vmProfileView.setSampleRate(50);
+                    }
+                    if (a.has("profile-agent")) {
+                        vmProfileView.setSource(VMProfileView.Source.AGENT);
+                        vmProfileView.setSampleRate(100);
+                    }
+                    if (a.hasArgument("sample-rate")) {
+                        double sampleRate = (Double) a.valueOf("sample-rate");
+                        if (!(sampleRate > 0)) {
+                            throw new IllegalArgumentException("Sample rate must be positive");
+                        }
+                        vmProfileView.setSampleRate(sampleRate);
+                    }
+                    if (a.hasArgument("sample-depth")) {
+                        vmProfileView.getCPUSampler().setSampleDepth((Integer) a.valueOf("sample-depth"));
+                    }
+                    if (a.has("sample-all-threads")) {
+                        vmProfileView.getCPUSampler().setCpuActiveOnly(false);
+                    }
+                    if (a.hasArgument("record")) {
+                        vmProfileView.setRecordingFile(new File((String) a.valueOf("record")));
+                    }
+                    jvmTop.run(vmProfileView);
                 }
-                if (profileMemMode) {
-                    jvmTop.run(new VMMemProfileView(pid, width, deltasEnabled));
+                if (a.has("profile-alloc")) {
+                    VMAllocProfileView vmAllocProfileView = new VMAllocProfileView(pid, width, collector);
+                    if (a.has("profile-include") || a.has("profile-exclude")
+                            || a.has("profile-filter-file")) {
+                        vmAllocProfileView.setFilter(createPackageFilter(a));
+                    }
+                    jvmTop.run(vmAllocProfileView);
+                } else if (profileMemMode) {
+                    HeapSampler.Order order = HeapSampler.Order.SIZE;
+                    if (a.hasArgument("profile-mem-sort")) {
+                        order = HeapSampler.Order.valueOf(
+                                ((String) a.valueOf("profile-mem-sort")).toUpperCase(Locale.US));
+                    }
+                    VMMemProfileView vmMemProfileView = new VMMemProfileView(pid, width,
+                            deltasEnabled || order == HeapSampler.Order.GROWTH, collector);
+                    vmMemProfileView.setOrder(order);
+                    vmMemProfileView.setLive(a.has("profile-mem-live"));
+                    if (a.hasArgument("profile-mem-interval")) {
+                        double interval = (Double) a.valueOf("profile-mem-interval");
+                        if (!(interval > 0)) {
+                            throw new IllegalArgumentException("Histogram interval must be positive");
+                        }
+                        vmMemProfileView.setHistogramInterval(interval);
+                    }
+                    jvmTop.run(vmMemProfileView);
                 } else {
-                    VMDetailView vmDetailView = new VMDetailView(pid, width);
+                    VMDetailView vmDetailView = new VMDetailView(pid, width, collector);
                     vmDetailView.setDisplayedThreadLimit(threadLimitEnabled);
                     if (threadlimit != null) {
                         vmDetailView.setNumberOfDisplayedThreads(threadlimit);
@@ -207,6 +322,55 @@ public class JvmTop {
         }
     }
 
+    /**
+     * Applies the presentation and filter options of the cpu profile.
+     *
+     * @param vmProfileView
+     * @param a
+     * @throws IOException
+     */
+    private static void configureProfileView(VMProfileView vmProfileView, OptionSet a) throws IOException {
+        if (a.hasArgument("profile-view")) {
+            vmProfileView.setMode(VMProfileView.Mode.valueOf(
+                    ((String) a.valueOf("profile-view")).toUpperCase(Locale.US)));
+        }
+        if (a.hasArgument("profile-tree-min")) {
+            vmProfileView.setTreeMinPercent((Double) a.valueOf("profile-tree-min"));
+        }
+        if (a.hasArgument("profile-aggregation")) {
+            vmProfileView.setAggregation(CPUSampler.Aggregation.valueOf(
+                    ((String) a.valueOf("profile-aggregation")).toUpperCase(Locale.US)));
+        }
+        if (a.hasArgument("profile-window")) {
+            vmProfileView.getCPUSampler().setWindow((Double) a.valueOf("profile-window"));
+        }
+        if (a.has("profile-include") || a.has("profile-exclude")
+                || a.has("profile-filter-file")) {
+            vmProfileView.getCPUSampler().setFilter(createPackageFilter(a));
+        }
+        if (a.hasArgument("profile-folded")) {
+            vmProfileView.setFoldedStacksFile(new File((String) a.valueOf("profile-folded")));
+        }
+    }
+
+    /**
+     * Creates the filter of the cpu profiler: the default excludes,
+     * followed by the rules of the filter file and the command line.
+     */
+    private static PackageFilter createPackageFilter(OptionSet a) throws IOException {
+        PackageFilter filter = PackageFilter.withDefaultExcludes();
+        if (a.hasArgument("profile-filter-file")) {
+            filter.loadRules(Paths.get((String) a.valueOf("profile-filter-file")));
+        }
+        for (Object prefix : a.valuesOf("profile-exclude")) {
+            filter.addExclude((String) prefix);
+        }
+        for (Object prefix : a.valuesOf("profile-include")) {
+            filter.addInclude((String) prefix);
+        }
+        return filter;
+    }
+
     private static void handleNonViewArgs(final OptionSet options, Integer pid) {
         if (pid == null) {
             System.err.println();
@@ -0,0 +1,95 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.agent;
+
+import com.sun.tools.attach.VirtualMachine;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.Locale;
+import javax.management.JMX;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+/**
+ * Loads the {@link SamplingAgent} into a target jvm.
+ * <p>
+ * The agent is loaded from jvmtop-agent.jar next to the jvmtop jar, which only contains
+ * the agent and the profiler classes it uses, as it stays on the class path of the target jvm.
+ */
+public final class AgentLoader {
+
+    public static final String AGENT_JAR = "jvmtop-agent.jar";
+
+    private AgentLoader() {
+    }
+
+    /**
+     * Loads the sampling agent into the given jvm (restarting it, if already loaded)
+     * and returns a proxy to its MBean.
+     *
+     * @param vmid
+     * @param connection connection to the platform MBean server of the jvm
+     * @param rate       samples per second
+     * @param depth      maximum number of frames per stack
+     * @return
+     * @throws Exception
+     */
+    public static SamplingAgentMBean load(int vmid, MBeanServerConnection connection,
+                                          double rate, int depth) throws Exception {
+        File agentJar = getAgentJar();
+        VirtualMachine vm = VirtualMachine.attach(String.valueOf(vmid));
+        try {
+            vm.loadAgent(agentJar.getAbsolutePath(),
+                    String.format(Locale.US, "rate=%f,depth=%d", rate, depth));
+        } finally {
+            vm.detach();
+        }
+        return JMX.newMBeanProxy(connection, new ObjectName(SamplingAgentMBean.OBJECT_NAME),
+                SamplingAgentMBean.class);
+    }
+
+    /**
+     * @return the agent jar in the directory of the jvmtop jar, or in the build directory
+     * when running from the compiled classes (target/classes)
+     * @throws IOException if the agent jar does not exist
+     */
+    private static File getAgentJar() throws IOException {
+        CodeSource codeSource = SamplingAgent.class.getProtectionDomain().getCodeSource();
+        File location = null;
+        try {
+            if (codeSource != null) {
+                location = new File(codeSource.getLocation().toURI());
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException("Cannot locate the jvmtop jar", e);
+        }
+        if (location != null) {
+            File file = new File(location.getAbsoluteFile().getParentFile(), AGENT_JAR);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        throw new IOException("The sampling agent requires " + AGENT_JAR + " next to the jvmtop jar");
+    }
+}
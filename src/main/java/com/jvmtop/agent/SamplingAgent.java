@@ -0,0 +1,288 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.agent;
+
+import com.jvmtop.profiler.FrameDictionary;
+import com.jvmtop.profiler.SamplingScheduler;
+import com.jvmtop.profiler.ThreadCpuBaseline;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Java agent which samples the cpu-active threads inside the target jvm,
+ * loaded by jvmtop via the Attach API (see {@link AgentLoader}).
+ * <p>
+ * Sampling locally avoids serializing {@link ThreadInfo} graphs over JMX on every sample,
+ * so much higher sample rates are possible. The samples are aggregated per distinct stack
+ * (as frame ids) and only the aggregated deltas are transferred,
+ * whenever the client calls {@link #drainSamples()}.
+ * <p>
+ * If no client drains the samples for {@link #IDLE_TIMEOUT_MILLIS}
+ * (e.g. because jvmtop has been terminated), the agent stops itself.
+ * <p>
+ * Agent arguments: comma-separated key=value pairs, "rate" (samples per second)
+ * and "depth" (maximum number of frames per stack).
+ */
+public class SamplingAgent implements SamplingAgentMBean {
+
+    public static final long IDLE_TIMEOUT_MILLIS = 60000;
+
+    public static final int MAX_PENDING_STACKS = 100000;
+
+    private static SamplingAgent instance_ = null;
+
+    private final long instanceId_ = System.nanoTime();
+
+    private final com.sun.management.ThreadMXBean threadMXBean_;
+
+    private final SamplingScheduler scheduler_;
+
+    private final int sampleDepth_;
+
+    private final FrameDictionary frames_ = new FrameDictionary();
+
+    private final ThreadCpuBaseline baseline_ = new ThreadCpuBaseline();
+
+    // cpu time per distinct stack since the last drain
+    private Map<Stack, long[]> pending_ = new HashMap<Stack, long[]>();
+
+    private long droppedSamples_ = 0;
+
+    private volatile long lastDrain_ = System.currentTimeMillis();
+
+    private SamplingAgent(double rate, int depth) {
+        threadMXBean_ = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        sampleDepth_ = depth;
+        scheduler_ = new SamplingScheduler(new SamplingScheduler.Task() {
+            @Override
+            public void sample() {
+                SamplingAgent.this.sample();
+            }
+        }, rate);
+    }
+
+    /**
+     * Entry point when loaded into a running jvm. Restarts sampling with the given
+     * arguments, if the agent is already running.
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static synchronized void agentmain(String args) throws Exception {
+        double rate = 100;
+        int depth = 128;
+        if (args != null && !args.isEmpty()) {
+            for (String arg : args.split(",")) {
+                String[] keyValue = arg.split("=", 2);
+                if (keyValue.length == 2 && keyValue[0].equals("rate")) {
+                    rate = Double.parseDouble(keyValue[1]);
+                } else if (keyValue.length == 2 && keyValue[0].equals("depth")) {
+                    depth = Integer.parseInt(keyValue[1]);
+                } else {
+                    throw new IllegalArgumentException("Unknown agent argument: " + arg);
+                }
+            }
+        }
+        if (instance_ != null) {
+            instance_.stop();
+        }
+        SamplingAgent agent = new SamplingAgent(rate, depth);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(agent, new ObjectName(OBJECT_NAME));
+        agent.scheduler_.start();
+        instance_ = agent;
+    }
+
+    @Override
+    public long getInstanceId() {
+        return instanceId_;
+    }
+
+    @Override
+    public double getSampleRate() {
+        return scheduler_.getRate();
+    }
+
+    @Override
+    public int getSampleDepth() {
+        return sampleDepth_;
+    }
+
+    @Override
+    public long getSamples() {
+        return scheduler_.getSamples();
+    }
+
+    @Override
+    public long getOverruns() {
+        return scheduler_.getOverruns();
+    }
+
+    @Override
+    public double getAverageSampleMillis() {
+        return scheduler_.getAverageSampleMillis();
+    }
+
+    @Override
+    public synchronized long getDroppedSamples() {
+        return droppedSamples_;
+    }
+
+    @Override
+    public synchronized String[] getFrames(int fromId) {
+        int count = Math.max(0, frames_.size() - fromId);
+        String[] result = new String[count * 3];
+        for (int i = 0; i < count; i++) {
+            result[i * 3] = frames_.getClassName(fromId + i);
+            result[i * 3 + 1] = frames_.getMethodName(fromId + i);
+            result[i * 3 + 2] = String.valueOf(frames_.getLineNumber(fromId + i));
+        }
+        return result;
+    }
+
+    @Override
+    public long[] drainSamples() {
+        Map<Stack, long[]> pending;
+        synchronized (this) {
+            lastDrain_ = System.currentTimeMillis();
+            pending = pending_;
+            pending_ = new HashMap<Stack, long[]>();
+        }
+        int length = 1;
+        for (Stack stack : pending.keySet()) {
+            length += 2 + stack.frameIds_.length;
+        }
+        long[] result = new long[length];
+        result[0] = instanceId_;
+        int i = 1;
+        for (Map.Entry<Stack, long[]> entry : pending.entrySet()) {
+            int[] frameIds = entry.getKey().frameIds_;
+            result[i++] = entry.getValue()[0];
+            result[i++] = frameIds.length;
+            for (int frameId : frameIds) {
+                result[i++] = frameId;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void stop() {
+        scheduler_.close();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            Logger.getLogger("jvmtop").log(Level.FINE, "could not unregister the sampling agent", e);
+        }
+        synchronized (SamplingAgent.class) {
+            if (instance_ == this) {
+                instance_ = null;
+            }
+        }
+    }
+
+    private void sample() {
+        if (System.currentTimeMillis() - lastDrain_ > IDLE_TIMEOUT_MILLIS) {
+            stop();
+            return;
+        }
+        long[] tids = threadMXBean_.getAllThreadIds();
+        long[] cpuTimes = threadMXBean_.getThreadCpuTime(tids);
+        long self = Thread.currentThread().getId();
+        long[] activeTids = new long[tids.length];
+        long[] deltaCpuTimes = new long[tids.length];
+        int active = 0;
+        for (int i = 0; i < tids.length; i++) {
+            long deltaCpuTime = baseline_.update(tids[i], cpuTimes[i]);
+            if (deltaCpuTime > 0 && tids[i] != self) {
+                activeTids[active] = tids[i];
+                deltaCpuTimes[active] = deltaCpuTime;
+                active++;
+            }
+        }
+        baseline_.swap();
+        if (active == 0) {
+            return;
+        }
+        ThreadInfo[] threadInfos = threadMXBean_.getThreadInfo(
+                Arrays.copyOf(activeTids, active), sampleDepth_);
+
+        synchronized (this) {
+            for (int i = 0; i < threadInfos.length; i++) {
+                ThreadInfo ti = threadInfos[i];
+                if (ti == null || ti.getThreadState() != Thread.State.RUNNABLE) {
+                    continue;
+                }
+                StackTraceElement[] stackTrace = ti.getStackTrace();
+                int[] frameIds = new int[stackTrace.length];
+                for (int j = 0; j < stackTrace.length; j++) {
+                    frameIds[j] = frames_.getId(stackTrace[j]);
+                }
+                Stack stack = new Stack(frameIds);
+                long[] cpuTime = pending_.get(stack);
+                if (cpuTime == null) {
+                    if (pending_.size() >= MAX_PENDING_STACKS) {
+                        droppedSamples_++;
+                        continue;
+                    }
+                    cpuTime = new long[1];
+                    pending_.put(stack, cpuTime);
+                }
+                cpuTime[0] += deltaCpuTimes[i];
+            }
+        }
+    }
+
+    /**
+     * Frame ids of a stack, as hash key
+     */
+    private static final class Stack {
+        private final int[] frameIds_;
+        private final int hash_;
+
+        private Stack(int[] frameIds) {
+            frameIds_ = frameIds;
+            hash_ = Arrays.hashCode(frameIds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Stack && Arrays.equals(frameIds_, ((Stack) o).frameIds_);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash_;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.agent;
+
+/**
+ * Management interface of the {@link SamplingAgent}, registered in the target jvm.
+ * <p>
+ * Frames are identified by ids assigned by the agent, starting at 0.
+ * A client resolves ids it has not seen yet via {@link #getFrames(int)}.
+ * The ids are only valid for the agent instance which assigned them: if the agent is
+ * restarted (e.g. loaded again after it stopped when idle), its ids start at 0 again
+ * and it reports a different {@link #getInstanceId() instance id}.
+ */
+public interface SamplingAgentMBean {
+
+    String OBJECT_NAME = "com.jvmtop:type=SamplingAgent";
+
+    /**
+     * @return an id which differs between the agent instances loaded into a jvm
+     */
+    long getInstanceId();
+
+    /**
+     * @return the samples per second
+     */
+    double getSampleRate();
+
+    int getSampleDepth();
+
+    long getSamples();
+
+    long getOverruns();
+
+    /**
+     * @return the average duration of a sample in ms
+     */
+    double getAverageSampleMillis();
+
+    /**
+     * @return the number of samples which could not be recorded, because too many
+     * distinct stacks were pending
+     */
+    long getDroppedSamples();
+
+    /**
+     * @param fromId the first frame id to return
+     * @return class name, method name and line number of each frame with an id of at least fromId,
+     * in ascending id order
+     */
+    String[] getFrames(int fromId);
+
+    /**
+     * Returns and resets the cpu time per distinct stack sampled since the previous call.
+     * The first element is the {@link #getInstanceId() instance id}, followed by the stacks.
+     * Each stack is encoded as its cpu time in ns, the number of frames and the frame ids,
+     * starting with the innermost frame.
+     *
+     * @return
+     */
+    long[] drainSamples();
+
+    /**
+     * Stops sampling and unregisters the agent.
+     */
+    void stop();
+}
@@ -0,0 +1,276 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only view of the jvmstat performance counters of a local HotSpot jvm,
+ * as exported in its hsperfdata file (e.g. /tmp/hsperfdata_&lt;user&gt;/&lt;pid&gt;).
+ * <p>
+ * The file is memory-mapped and the counters are decoded directly from it,
+ * so reading them requires neither the attach api nor a JMX connection
+ * and does not cause any work inside the monitored jvm.
+ * <p>
+ * The file starts with a prologue (magic, byte order, version, accessible flag,
+ * used bytes, overflow, modification time stamp, offset of the first entry and
+ * number of entries), followed by the entries. Each entry consists of its length,
+ * the offset of its name, the vector length, the data type ('J' for long,
+ * 'B' for byte vectors / strings), flags, units, variability and the offset of its data.
+ * The jvm may append new entries at runtime, these are indexed lazily.
+ */
+public class PerfDataBuffer {
+
+    private static final String PERFDATA_DIR_PREFIX = "hsperfdata_";
+
+    private static final int PERFDATA_MAGIC = 0xcafec0c0;
+
+    private static final int PERFDATA_BIG_ENDIAN = 0;
+
+    private static final int PERFDATA_MAJOR_VERSION = 2;
+
+    private static final int BYTE_ORDER_OFFSET = 4;
+
+    private static final int MAJOR_VERSION_OFFSET = 5;
+
+    private static final int ENTRY_OFFSET_OFFSET = 24;
+
+    private static final int NUM_ENTRIES_OFFSET = 28;
+
+    private static final byte TYPE_LONG = 'J';
+
+    private static final byte TYPE_BYTE = 'B';
+
+    private final int vmid_;
+
+    private final File file_;
+
+    private final MappedByteBuffer buffer_;
+
+    private final Map<String, Entry> entries_ = new HashMap<String, Entry>();
+
+    private int indexedEntries_ = 0;
+
+    private int nextEntryOffset_;
+
+    private PerfDataBuffer(int vmid, File file, MappedByteBuffer buffer) {
+        vmid_ = vmid;
+        file_ = file;
+        buffer_ = buffer;
+        nextEntryOffset_ = buffer_.getInt(ENTRY_OFFSET_OFFSET);
+        indexEntries();
+    }
+
+    /**
+     * Maps the hsperfdata file of the given jvm.
+     *
+     * @param vmid
+     * @return
+     * @throws IOException if there is no (readable) hsperfdata file for this jvm
+     */
+    public static PerfDataBuffer open(int vmid) throws IOException {
+        File file = findFile(vmid);
+        if (file == null) {
+            throw new IOException("No hsperfdata file found (PID=" + vmid + ")");
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < NUM_ENTRIES_OFFSET + 4) {
+            throw new IOException("Truncated hsperfdata file " + file);
+        }
+        // the magic is always stored in big endian order
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.getInt(0) != PERFDATA_MAGIC) {
+            throw new IOException("Invalid hsperfdata file " + file);
+        }
+        if (buffer.get(MAJOR_VERSION_OFFSET) != PERFDATA_MAJOR_VERSION) {
+            throw new IOException("Unsupported hsperfdata version "
+                    + buffer.get(MAJOR_VERSION_OFFSET) + " in " + file);
+        }
+        buffer.order(buffer.get(BYTE_ORDER_OFFSET) == PERFDATA_BIG_ENDIAN
+                ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        return new PerfDataBuffer(vmid, file, buffer);
+    }
+
+    /**
+     * Searches the hsperfdata directories of all users for the file of the given jvm.
+     *
+     * @param vmid
+     * @return the readable hsperfdata file or null, if not existing
+     */
+    public static File findFile(int vmid) {
+        File[] dirs = getPerfDataDirectories();
+        if (dirs == null) {
+            return null;
+        }
+        for (File dir : dirs) {
+            File file = new File(dir, String.valueOf(vmid));
+            if (file.isFile() && file.canRead()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the hsperfdata directories of all users
+     */
+    public static File[] getPerfDataDirectories() {
+        return getTempDirectory().listFiles(file -> file.isDirectory()
+                && file.getName().startsWith(PERFDATA_DIR_PREFIX));
+    }
+
+    /**
+     * Returns the directory in which the jvms create their hsperfdata directories.
+     * Like jvmstat, this is the temp directory of the vm, which is /tmp on all platforms except
+     * Windows and macOS, regardless of java.io.tmpdir.
+     * On Windows and macOS it is the temp directory of the user, which is also the default
+     * of java.io.tmpdir.
+     *
+     * @return the parent directory of the hsperfdata directories
+     */
+    public static File getTempDirectory() {
+        String osName = System.getProperty("os.name");
+        if (osName.startsWith("Windows") || osName.startsWith("Mac")) {
+            return new File(System.getProperty("java.io.tmpdir"));
+        }
+        return new File("/tmp");
+    }
+
+    public int getVmid() {
+        return vmid_;
+    }
+
+    public File getFile() {
+        return file_;
+    }
+
+    /**
+     * @return the owner of the jvm, derived from the name of its hsperfdata directory
+     */
+    public String getUser() {
+        return file_.getParentFile().getName().substring(PERFDATA_DIR_PREFIX.length());
+    }
+
+    public boolean hasCounter(String name) {
+        return getEntry(name) != null;
+    }
+
+    /**
+     * Returns the current value of a long counter.
+     *
+     * @param name         the counter name, e.g. sun.gc.collector.0.invocations
+     * @param defaultValue returned if the counter does not exist
+     * @return
+     */
+    public long getLong(String name, long defaultValue) {
+        Entry entry = getEntry(name);
+        if (entry == null || entry.type_ != TYPE_LONG || entry.vectorLength_ != 0) {
+            return defaultValue;
+        }
+        return buffer_.getLong(entry.dataOffset_);
+    }
+
+    /**
+     * Returns the current value of a string counter.
+     *
+     * @param name e.g. sun.rt.javaCommand
+     * @return the value or null, if the counter does not exist
+     */
+    public String getString(String name) {
+        Entry entry = getEntry(name);
+        if (entry == null || entry.type_ != TYPE_BYTE) {
+            return null;
+        }
+        return readString(entry.dataOffset_, entry.vectorLength_);
+    }
+
+    private Entry getEntry(String name) {
+        Entry entry = entries_.get(name);
+        if (entry == null && buffer_.getInt(NUM_ENTRIES_OFFSET) != indexedEntries_) {
+            indexEntries();
+            entry = entries_.get(name);
+        }
+        return entry;
+    }
+
+    /**
+     * Indexes all entries which were added since the last call
+     */
+    private void indexEntries() {
+        int numEntries = buffer_.getInt(NUM_ENTRIES_OFFSET);
+        while (indexedEntries_ < numEntries) {
+            int offset = nextEntryOffset_;
+            int entryLength = buffer_.getInt(offset);
+            if (entryLength <= 0 || offset + entryLength > buffer_.capacity()) {
+                // entry is being written or the buffer is corrupt
+                return;
+            }
+            int nameOffset = buffer_.getInt(offset + 4);
+            int vectorLength = buffer_.getInt(offset + 8);
+            byte type = buffer_.get(offset + 12);
+            int dataOffset = buffer_.getInt(offset + 16);
+
+            String name = readString(offset + nameOffset, dataOffset - nameOffset);
+            entries_.put(name, new Entry(type, vectorLength, offset + dataOffset));
+
+            nextEntryOffset_ += entryLength;
+            indexedEntries_++;
+        }
+    }
+
+    /**
+     * Reads a zero-terminated string of at most maxLength bytes
+     */
+    private String readString(int offset, int maxLength) {
+        int length = 0;
+        while (length < maxLength && buffer_.get(offset + length) != 0) {
+            length++;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer_.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Entry {
+        private final byte type_;
+        private final int vectorLength_;
+        private final int dataOffset_;
+
+        private Entry(byte type, int vectorLength, int dataOffset) {
+            type_ = type;
+            vectorLength_ = vectorLength;
+            dataOffset_ = dataOffset;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Discovers starting and terminating local jvms by watching the hsperfdata directories.
+ * <p>
+ * Every HotSpot jvm creates a file named by its PID in /tmp/hsperfdata_&lt;user&gt;
+ * on startup and deletes it on exit. These changes are reported by a
+ * {@link WatchService}, so discovering jvms does not require to poll all of them.
+ * A full (but slow) rescan is only done periodically, as safety net for missed
+ * events and platforms without hsperfdata files.
+ * <p>
+ * The events are queued until they are fetched by {@link #pollEvents()}.
+ */
+public class VMDiscoveryService implements Closeable {
+
+    public static final long DEFAULT_RESCAN_INTERVAL_MILLIS = 30000;
+
+    private static final String PERFDATA_DIR_PREFIX = "hsperfdata_";
+
+    private final long rescanIntervalMillis_;
+
+    private final Queue<Event> events_ = new ConcurrentLinkedQueue<Event>();
+
+    private final Set<Integer> knownVmids_ = ConcurrentHashMap.newKeySet();
+
+    // only accessed by the discovery thread (or before it has been started)
+    private final Map<WatchKey, Path> watchedDirs_ = new HashMap<WatchKey, Path>();
+
+    private final Path tmpDir_ = PerfDataBuffer.getTempDirectory().toPath();
+
+    private WatchService watchService_;
+
+    private Thread thread_;
+
+    private volatile boolean running_ = false;
+
+    public VMDiscoveryService() {
+        this(DEFAULT_RESCAN_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param rescanIntervalMillis interval of the full rescans
+     */
+    public VMDiscoveryService(long rescanIntervalMillis) {
+        rescanIntervalMillis_ = rescanIntervalMillis;
+    }
+
+    /**
+     * Does the initial scan and starts watching for jvm changes in the background.
+     * The events of the initial scan are available right after this method returns.
+     */
+    public void start() {
+        try {
+            watchService_ = FileSystems.getDefault().newWatchService();
+            // new hsperfdata directories are created once a user starts its first jvm
+            watchedDirs_.put(tmpDir_.register(watchService_, ENTRY_CREATE), tmpDir_);
+        } catch (IOException | UnsupportedOperationException e) {
+            Logger.getLogger("jvmtop").log(Level.FINE,
+                    "cannot watch " + tmpDir_ + ", using periodic rescans only", e);
+            watchService_ = null;
+        }
+        rescan();
+
+        running_ = true;
+        thread_ = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchLoop();
+            }
+        }, "jvmtop-discovery");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    /**
+     * @return all events since the last call, in the order they occurred
+     */
+    public List<Event> pollEvents() {
+        List<Event> events = new ArrayList<Event>();
+        Event event;
+        while ((event = events_.poll()) != null) {
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Forgets the given jvm without reporting it as removed, so that it is
+     * reported as added again by the next rescan if it is still running.
+     * Used for jvms which are still running but whose monitoring has been given up.
+     *
+     * @param vmid
+     */
+    public void forget(int vmid) {
+        knownVmids_.remove(vmid);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running_ = false;
+        if (thread_ != null) {
+            thread_.interrupt();
+        }
+        if (watchService_ != null) {
+            watchService_.close();
+        }
+    }
+
+    private void watchLoop() {
+        long nextRescan = System.currentTimeMillis() + rescanIntervalMillis_;
+        while (running_) {
+            try {
+                long wait = nextRescan - System.currentTimeMillis();
+                if (wait <= 0) {
+                    rescan();
+                    nextRescan = System.currentTimeMillis() + rescanIntervalMillis_;
+                } else if (watchService_ == null) {
+                    Thread.sleep(wait);
+                } else {
+                    WatchKey key = watchService_.poll(wait, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        processEvents(key);
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            } catch (RuntimeException e) {
+                Logger.getLogger("jvmtop").log(Level.FINE, "error during jvm discovery", e);
+            }
+        }
+    }
+
+    private void processEvents(WatchKey key) {
+        Path dir = watchedDirs_.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || dir == null) {
+                rescan();
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (dir.equals(tmpDir_)) {
+                if (isPerfDataDir(path)) {
+                    watchPerfDataDir(path);
+                }
+            } else {
+                Integer vmid = toVmid(path);
+                if (vmid == null) {
+                    continue;
+                }
+                if (event.kind() == ENTRY_CREATE) {
+                    vmAdded(vmid);
+                } else if (event.kind() == ENTRY_DELETE) {
+                    vmRemoved(vmid);
+                }
+            }
+        }
+        if (!key.reset()) {
+            // directory has been deleted
+            watchedDirs_.remove(key);
+        }
+    }
+
+    /**
+     * Registers the given hsperfdata directory (if not done yet) and reports all jvms in it.
+     */
+    private void watchPerfDataDir(Path dir) {
+        if (watchService_ == null || watchedDirs_.containsValue(dir)) {
+            return;
+        }
+        try {
+            watchedDirs_.put(dir.register(watchService_, ENTRY_CREATE, ENTRY_DELETE), dir);
+            // jvms which have been started before the registration
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Integer vmid = toVmid(file);
+                    if (vmid != null) {
+                        vmAdded(vmid);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Logger.getLogger("jvmtop").log(Level.FINE, "cannot watch " + dir, e);
+        }
+    }
+
+    /**
+     * Compares the known jvms with all currently running jvms
+     */
+    private void rescan() {
+        File[] perfDataDirs = PerfDataBuffer.getPerfDataDirectories();
+        if (perfDataDirs != null) {
+            for (File perfDataDir : perfDataDirs) {
+                watchPerfDataDir(perfDataDir.toPath());
+            }
+        }
+
+        Set<Integer> vmids = LocalVirtualMachine.getVirtualMachineIds();
+        for (Integer vmid : vmids) {
+            vmAdded(vmid);
+        }
+        for (Integer vmid : knownVmids_) {
+            if (!vmids.contains(vmid)) {
+                vmRemoved(vmid);
+            }
+        }
+    }
+
+    private void vmAdded(int vmid) {
+        if (knownVmids_.add(vmid)) {
+            events_.add(new Event(Event.Type.ADDED, vmid));
+        }
+    }
+
+    private void vmRemoved(int vmid) {
+        if (knownVmids_.remove(vmid)) {
+            events_.add(new Event(Event.Type.REMOVED, vmid));
+        }
+    }
+
+    private static boolean isPerfDataDir(Path path) {
+        return path.getFileName().toString().startsWith(PERFDATA_DIR_PREFIX)
+                && Files.isDirectory(path);
+    }
+
+    private static Integer toVmid(Path path) {
+        try {
+            return Integer.valueOf(path.getFileName().toString());
+        } catch (NumberFormatException e) {
+            // not a jvm
+            return null;
+        }
+    }
+
+    /**
+     * A started or terminated jvm
+     */
+    public static final class Event {
+        public enum Type {
+            ADDED, REMOVED
+        }
+
+        private final Type type_;
+
+        private final int vmid_;
+
+        private Event(Type type, int vmid) {
+            type_ = type;
+            vmid_ = vmid;
+        }
+
+        public Type getType() {
+            return type_;
+        }
+
+        public int getVmid() {
+            return vmid_;
+        }
+
+        @Override
+        public String toString() {
+            return type_ + "(PID=" + vmid_ + ")";
+        }
+    }
+}
@@ -20,6 +20,7 @@
  */
 package com.jvmtop.monitor;
 
+import com.jvmtop.openjdk.tools.AttachFailureCache;
 import com.jvmtop.openjdk.tools.ConnectionState;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
 import com.jvmtop.openjdk.tools.ProxyClient;
@@ -37,10 +38,9 @@ import java.rmi.ConnectException;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * VMInfo retrieves or updates the metrics for a specific remote jvm,
@@ -58,52 +58,62 @@ public class VMInfo {
 
     public static final Comparator<VMInfo> USED_HEAP_COMPARATOR = new UsedHeapComparator();
     public static final Comparator<VMInfo> CPU_LOAD_COMPARATOR = new CPULoadComparator();
-    private ProxyClient proxyClient = null;
+
+    // The metrics and MXBeans are written by the collector thread which attaches to and
+    // updates this jvm, and read by the rendering thread, hence volatile.
+    // The remaining fields are only used while updating or set before this VMInfo is published.
+    private volatile ProxyClient proxyClient = null;
 
     //private VirtualMachine                                          vm                   = null;
 
-    private OperatingSystemMXBean osBean;
+    private volatile OperatingSystemMXBean osBean;
 
-    private RuntimeMXBean runtimeMXBean;
+    private volatile RuntimeMXBean runtimeMXBean;
 
-    private Collection<java.lang.management.GarbageCollectorMXBean> gcMXBeans;
+    private volatile Collection<java.lang.management.GarbageCollectorMXBean> gcMXBeans;
 
-    private long lastGcTime;
+    private volatile long lastGcTime;
 
     private long lastUpTime = -1;
 
     private long lastCPUTime = -1;
 
-    private long gcCount = 0;
+    private volatile long gcCount = 0;
+
+    private volatile double cpuLoad = 0.0;
 
-    private double cpuLoad = 0.0;
+    private volatile double gcLoad = 0.0;
 
-    private double gcLoad = 0.0;
+    private volatile MemoryMXBean memoryMXBean;
 
-    private MemoryMXBean memoryMXBean;
+    private volatile MemoryUsage heapMemoryUsage;
 
-    private MemoryUsage heapMemoryUsage;
+    private volatile MemoryUsage nonHeapMemoryUsage;
 
-    private MemoryUsage nonHeapMemoryUsage;
+    private volatile ThreadMXBean threadMXBean;
 
-    private ThreadMXBean threadMXBean;
+    // DETACHED is final, see setState
+    private final AtomicReference<VMInfoState> state_ =
+            new AtomicReference<VMInfoState>(VMInfoState.INIT);
 
-    private VMInfoState state_ = VMInfoState.INIT;
+    private volatile boolean stale_ = false;
 
     private String rawId_ = null;
 
-    private LocalVirtualMachine localVm_;
-    private long deltaUptime_;
-    private long deltaCpuTime_;
-    private long deltaGcTime_;
+    private volatile LocalVirtualMachine localVm_;
+    private volatile long deltaUptime_;
+    private volatile long deltaCpuTime_;
+    private volatile long deltaGcTime_;
     private int updateErrorCount_ = 0;
-    private long totalLoadedClassCount_;
-    private ClassLoadingMXBean classLoadingMXBean_;
-    private boolean deadlocksDetected_ = false;
-    private String vmVersion_ = null;
-    private String osUser_;
-    private long threadCount_;
-    private Map<String, String> systemProperties_;
+    private volatile long totalLoadedClassCount_;
+    private volatile ClassLoadingMXBean classLoadingMXBean_;
+    private volatile boolean deadlocksDetected_ = false;
+    private volatile long threadCount_;
+    private volatile VMStaticInfo staticInfo_;
+    private volatile PerfDataBuffer perfData_;
+    private volatile long safepointTime_;
+    private volatile long safepointCount_;
+    private volatile double safepointLoad_;
 
     /**
      * @param lastCPUProcessTime
@@ -118,7 +128,7 @@ public class VMInfo {
         rawId_ = rawId;
         this.proxyClient = proxyClient;
         //this.vm = vm;
-        state_ = VMInfoState.ATTACHED;
+        state_.set(VMInfoState.ATTACHED);
         update();
     }
 
@@ -135,28 +145,73 @@ public class VMInfo {
      * @return
      */
     public static VMInfo processNewVM(LocalVirtualMachine localvm, int vmid) {
+        VMInfo vmInfo = createDeadVM(vmid, localvm, VMInfoState.INIT);
+        vmInfo.attach();
+        return vmInfo;
+    }
 
+    /**
+     * Attaches this not yet attached VMInfo to its jvm and retrieves the first metrics.
+     * <p>
+     * This might block for a long time if the jvm does not respond,
+     * use a {@link VMInfoCollector} to attach asynchronously.
+     */
+    void attach() {
         try {
-            if (localvm == null || !localvm.isAttachable()) {
+            if (localVm_ != null && AttachFailureCache.isSuppressed(localVm_.vmid())) {
+                Logger.getLogger("jvmtop").log(Level.FINE,
+                        "attach failed recently, not retrying yet (PID=" + rawId_ + ")");
+                setState(VMInfoState.ERROR_DURING_ATTACH);
+                return;
+            }
+            if (localVm_ == null || !localVm_.isAttachable()) {
                 Logger.getLogger("jvmtop").log(Level.FINE,
-                        "jvm is not attachable (PID=" + vmid + ")");
-                return VMInfo.createDeadVM(vmid, localvm);
+                        "jvm is not attachable (PID=" + rawId_ + ")");
+                setState(VMInfoState.ERROR_DURING_ATTACH);
+                if (localVm_ != null) {
+                    AttachFailureCache.recordFailure(localVm_.vmid());
+                }
+                return;
             }
-            return attachToVM(localvm, vmid);
+            attachToVM();
+        } catch (Exception e) {
+            Logger.getLogger("jvmtop").log(Level.FINE,
+                    "error during attach (PID=" + rawId_ + ")", e);
+            setState(VMInfoState.ERROR_DURING_ATTACH);
+        }
+        VMInfoState state = state_.get();
+        if (state == VMInfoState.ERROR_DURING_ATTACH
+                || state == VMInfoState.CONNECTION_REFUSED) {
+            AttachFailureCache.recordFailure(localVm_.vmid());
+        } else {
+            AttachFailureCache.recordSuccess(localVm_.vmid());
+        }
+    }
+
+    /**
+     * Resolves the LocalVirtualMachine of a jvm which is not listed via jvmstat
+     * (e.g. J9 or -XX:-UsePerfData), which requires to attach to it.
+     * <p>
+     * This might block as long as {@link #attach()}, on failure the
+     * unresolved LocalVirtualMachine is kept and the attach fails.
+     */
+    void resolveLocalVm() {
+        int vmid = localVm_.vmid();
+        if (AttachFailureCache.isSuppressed(vmid)) {
+            return;
+        }
+        try {
+            localVm_ = LocalVirtualMachine.getLocalVirtualMachine(vmid);
         } catch (Exception e) {
             Logger.getLogger("jvmtop").log(Level.FINE,
-                    "error during attach (PID=" + vmid + ")", e);
-            return VMInfo.createDeadVM(vmid, localvm);
+                    "could not resolve jvm (PID=" + vmid + ")", e);
         }
     }
 
     /**
      *
-     * Creates a new VMInfo which is attached to a given LocalVirtualMachine
+     * Attaches this VMInfo to its LocalVirtualMachine
      *
-     * @param localvm
-     * @param vmid
-     * @return
      * @throws AttachNotSupportedException
      * @throws IOException
      * @throws NoSuchMethodException
@@ -164,41 +219,59 @@ public class VMInfo {
      * @throws InvocationTargetException
      * @throws Exception
      */
-    private static VMInfo attachToVM(LocalVirtualMachine localvm, int vmid)
+    private void attachToVM()
             throws AttachNotSupportedException, IOException, NoSuchMethodException,
             IllegalAccessException, InvocationTargetException, Exception {
-        //VirtualMachine vm = VirtualMachine.attach("" + vmid);
+        int vmid = localVm_.vmid();
         try {
 
-            ProxyClient proxyClient = ProxyClient.getProxyClient(localvm);
+            ProxyClient proxyClient = ProxyClient.getProxyClient(localVm_);
             proxyClient.connect();
             if (proxyClient.getConnectionState() == ConnectionState.DISCONNECTED) {
                 Logger.getLogger("jvmtop").log(Level.FINE,
                         "connection refused (PID=" + vmid + ")");
-                return createDeadVM(vmid, localvm);
+                setState(VMInfoState.ERROR_DURING_ATTACH);
+                return;
             }
-            return new VMInfo(proxyClient, localvm, vmid + "");
+            this.proxyClient = proxyClient;
+            // atomically, as the VMInfo might be detached concurrently
+            VMInfoState state;
+            do {
+                state = state_.get();
+                if (state == VMInfoState.DETACHED) {
+                    // evicted while attaching, the client might have been cached again meanwhile
+                    ProxyClient.evictProxyClient(vmid);
+                    proxyClient.disconnect();
+                    return;
+                }
+            } while (!state_.compareAndSet(state, VMInfoState.ATTACHED));
+            update();
+            return;
         } catch (ConnectException rmiE) {
             if (rmiE.getMessage().contains("refused")) {
                 Logger.getLogger("jvmtop").log(Level.FINE,
                         "connection refused (PID=" + vmid + ")", rmiE);
-                return createDeadVM(vmid, localvm, VMInfoState.CONNECTION_REFUSED);
+                setState(VMInfoState.CONNECTION_REFUSED);
+                return;
             }
-            rmiE.printStackTrace(System.err);
+            Logger.getLogger("jvmtop").log(Level.FINE,
+                    "could not connect (PID=" + vmid + ")", rmiE);
         } catch (IOException e) {
             if ((e.getCause() != null
                     && e.getCause() instanceof AttachNotSupportedException)
                     || e.getMessage().contains("Permission denied")) {
                 Logger.getLogger("jvmtop").log(Level.FINE,
                         "could not attach (PID=" + vmid + ")", e);
-                return createDeadVM(vmid, localvm, VMInfoState.CONNECTION_REFUSED);
+                setState(VMInfoState.CONNECTION_REFUSED);
+                return;
             }
-            e.printStackTrace(System.err);
+            Logger.getLogger("jvmtop").log(Level.FINE,
+                    "could not attach (PID=" + vmid + ")", e);
         } catch (Exception e) {
             Logger.getLogger("jvmtop").log(Level.WARNING,
                     "could not attach (PID=" + vmid + ")", e);
         }
-        return createDeadVM(vmid, localvm);
+        setState(VMInfoState.ERROR_DURING_ATTACH);
     }
 
     /**
@@ -222,8 +295,29 @@ public class VMInfo {
     public static VMInfo createDeadVM(int vmid, LocalVirtualMachine localVm,
                                       VMInfoState state) {
         VMInfo vmInfo = new VMInfo();
-        vmInfo.state_ = state;
+        vmInfo.state_.set(state);
         vmInfo.localVm_ = localVm;
+        vmInfo.rawId_ = vmid + "";
+        return vmInfo;
+    }
+
+    /**
+     * Creates a VMInfo which retrieves the metrics of a local jvm from its hsperfdata file,
+     * without attaching to it.
+     * <p>
+     * As no JMX connection is available, such VMInfo does only provide the overview metrics,
+     * e.g. it does neither provide MXBeans nor deadlock detection.
+     *
+     * @param vmid
+     * @param localVm
+     * @param perfData
+     * @return
+     */
+    public static VMInfo createPerfDataVM(int vmid, LocalVirtualMachine localVm,
+                                          PerfDataBuffer perfData) {
+        VMInfo vmInfo = createDeadVM(vmid, localVm, VMInfoState.ATTACHED);
+        vmInfo.perfData_ = perfData;
+        vmInfo.staticInfo_ = VMStaticInfo.fromPerfData(perfData);
         return vmInfo;
     }
 
@@ -231,7 +325,62 @@ public class VMInfo {
      * @return the state
      */
     public VMInfoState getState() {
-        return state_;
+        return state_.get();
+    }
+
+    /**
+     * Changes the state, unless this VMInfo has been detached already.
+     *
+     * @param state
+     */
+    private void setState(VMInfoState state) {
+        VMInfoState current;
+        do {
+            current = state_.get();
+            if (current == VMInfoState.DETACHED) {
+                return;
+            }
+        } while (!state_.compareAndSet(current, state));
+    }
+
+    /**
+     * @return true if the last update did not complete in time,
+     * so the metrics of this jvm are outdated
+     */
+    public boolean isStale() {
+        return stale_;
+    }
+
+    void setStale(boolean stale) {
+        stale_ = stale;
+    }
+
+    /**
+     * Marks this VMInfo as not responding in time.
+     * Only applies to jvms which are (being) attached,
+     * the next successful update will mark it as attached again.
+     */
+    void markTimedOut() {
+        VMInfoState state;
+        do {
+            state = state_.get();
+            if (state != VMInfoState.INIT && state != VMInfoState.ATTACHED
+                    && state != VMInfoState.ATTACHED_UPDATE_ERROR) {
+                return;
+            }
+        } while (!state_.compareAndSet(state, VMInfoState.TIMED_OUT));
+    }
+
+    /**
+     * Stops monitoring the jvm. Its connection is closed and evicted from the
+     * {@link ProxyClient} cache, so that it can be garbage collected.
+     * The VMInfo is not updated anymore afterwards.
+     */
+    public void detach() {
+        state_.set(VMInfoState.DETACHED);
+        if (localVm_ != null) {
+            ProxyClient.evictProxyClient(localVm_.vmid());
+        }
     }
 
     /**
@@ -240,14 +389,26 @@ public class VMInfo {
      * @throws Exception
      */
     public void update() throws Exception {
-        if (state_ == VMInfoState.ERROR_DURING_ATTACH
-                || state_ == VMInfoState.DETACHED
-                || state_ == VMInfoState.CONNECTION_REFUSED) {
+        VMInfoState state = state_.get();
+        if (state == VMInfoState.INIT
+                || state == VMInfoState.ERROR_DURING_ATTACH
+                || state == VMInfoState.DETACHED
+                || state == VMInfoState.CONNECTION_REFUSED) {
+            return;
+        }
+
+        if (perfData_ != null) {
+            updateFromPerfData();
+            return;
+        }
+
+        // attach has timed out and is still pending
+        if (proxyClient == null) {
             return;
         }
 
         if (proxyClient.isDead()) {
-            state_ = VMInfoState.DETACHED;
+            setState(VMInfoState.DETACHED);
             return;
         }
 
@@ -263,22 +424,25 @@ public class VMInfo {
             nonHeapMemoryUsage = memoryMXBean.getNonHeapMemoryUsage();
             threadMXBean = proxyClient.getThreadMXBean();
 
-            //TODO: fetch jvm-constant data only once
-            systemProperties_ = runtimeMXBean.getSystemProperties();
-            vmVersion_ = extractShortVer();
-            osUser_ = systemProperties_.get("user.name");
+            // jvm-constant data is fetched only once
+            if (staticInfo_ == null) {
+                staticInfo_ = VMStaticInfo.fromMXBeans(runtimeMXBean, osBean);
+            }
             updateInternal();
 
             deadlocksDetected_ = threadMXBean.findDeadlockedThreads() != null
                     || threadMXBean.findMonitorDeadlockedThreads() != null;
 
+            // the jvm is responding again
+            state_.compareAndSet(VMInfoState.TIMED_OUT, VMInfoState.ATTACHED);
+
         } catch (Throwable e) {
             Logger.getLogger("jvmtop").log(Level.FINE, "error during update", e);
             updateErrorCount_++;
             if (updateErrorCount_ > 10) {
-                state_ = VMInfoState.DETACHED;
+                setState(VMInfoState.DETACHED);
             } else {
-                state_ = VMInfoState.ATTACHED_UPDATE_ERROR;
+                setState(VMInfoState.ATTACHED_UPDATE_ERROR);
             }
         }
     }
@@ -312,6 +476,96 @@ public class VMInfo {
         threadCount_ = threadMXBean.getThreadCount();
     }
 
+    /**
+     * Updates all jvm metrics from the hsperfdata counters
+     */
+    private void updateFromPerfData() {
+        if (!ProcessHandle.of(perfData_.getVmid()).map(ProcessHandle::isAlive).orElse(false)) {
+            setState(VMInfoState.DETACHED);
+            return;
+        }
+
+        // all time counters are measured in ticks of the high-resolution timer
+        long frequency = Math.max(1, perfData_.getLong("sun.os.hrt.frequency", 1));
+        long uptime = toMillis(perfData_.getLong("sun.os.hrt.ticks", 0), frequency);
+
+        long heapUsed = 0;
+        long heapCommitted = 0;
+        long heapMax = 0;
+        for (int gen = 0; gen < 2; gen++) {
+            String genPrefix = "sun.gc.generation." + gen;
+            long spaces = perfData_.getLong(genPrefix + ".spaces", 0);
+            for (int space = 0; space < spaces; space++) {
+                heapUsed += perfData_.getLong(genPrefix + ".space." + space + ".used", 0);
+            }
+            heapCommitted += perfData_.getLong(genPrefix + ".capacity", 0);
+            heapMax += perfData_.getLong(genPrefix + ".maxCapacity", 0);
+        }
+        heapMemoryUsage = toMemoryUsage(heapUsed, heapCommitted, heapMax);
+        nonHeapMemoryUsage = toMemoryUsage(perfData_.getLong("sun.gc.metaspace.used", 0),
+                perfData_.getLong("sun.gc.metaspace.capacity", 0),
+                perfData_.getLong("sun.gc.metaspace.maxCapacity", -1));
+
+        long gcTime = 0;
+        long gcCount = 0;
+        for (int collector = 0; perfData_.hasCounter("sun.gc.collector." + collector + ".time"); collector++) {
+            gcTime += perfData_.getLong("sun.gc.collector." + collector + ".time", 0);
+            gcCount += perfData_.getLong("sun.gc.collector." + collector + ".invocations", 0);
+        }
+        gcTime = toMillis(gcTime, frequency);
+        this.gcCount = gcCount;
+
+        // the process cpu time is not exported as counter, but provided by the os
+        long cpuTime = ProcessHandle.of(perfData_.getVmid())
+                .flatMap(handle -> handle.info().totalCpuDuration())
+                .map(duration -> duration.toNanos()).orElse(-1L);
+
+        if (lastUpTime > 0 && lastCPUTime > 0 && cpuTime > 0) {
+            deltaUptime_ = uptime - lastUpTime;
+            deltaCpuTime_ = (cpuTime - lastCPUTime) / 1000000;
+            deltaGcTime_ = gcTime - lastGcTime;
+
+            gcLoad = calcLoad(deltaCpuTime_, deltaGcTime_);
+            cpuLoad = calcLoad(deltaUptime_, deltaCpuTime_);
+        }
+
+        lastUpTime = uptime;
+        lastCPUTime = cpuTime;
+        lastGcTime = gcTime;
+
+        totalLoadedClassCount_ = perfData_.getLong("java.cls.loadedClasses", 0)
+                + perfData_.getLong("java.cls.sharedLoadedClasses", 0);
+        threadCount_ = perfData_.getLong("java.threads.live", 0);
+        long safepointTime = toMillis(perfData_.getLong("sun.rt.safepointTime", 0), frequency);
+        // all application threads are stopped at a safepoint, so it is relative to the wall time
+        if (deltaUptime_ > 0) {
+            safepointLoad_ = Math.min(1.0, Math.max(0, safepointTime - safepointTime_) / (double) deltaUptime_);
+        }
+        safepointTime_ = safepointTime;
+        safepointCount_ = perfData_.getLong("sun.rt.safepoints", 0);
+    }
+
+    private static long toMillis(long ticks, long frequency) {
+        return (long) (ticks * 1000d / frequency);
+    }
+
+    private static MemoryUsage toMemoryUsage(long used, long committed, long max) {
+        // MemoryUsage rejects values which are inconsistent, which might happen
+        // as the counters are not updated atomically
+        committed = Math.max(committed, used);
+        if (max >= 0) {
+            max = Math.max(max, committed);
+        }
+        return new MemoryUsage(-1, used, committed, max);
+    }
+
+    /**
+     * @return the number of cpus the monitored jvm can use
+     */
+    private int getAvailableProcessors() {
+        return staticInfo_.getAvailableProcessors();
+    }
+
     /**
      * calculates a "load", given on two deltas
      * @param deltaUptime
@@ -323,7 +577,7 @@ public class VMInfo {
             return 0.0;
         }
         return Math.min(99.0,
-                deltaTime / (deltaUptime * osBean.getAvailableProcessors()));
+                deltaTime / (deltaUptime * getAvailableProcessors()));
     }
 
     /**
@@ -350,20 +604,22 @@ public class VMInfo {
         return sum;
     }
 
+    // the memory usages are not available until the first update has finished
+
     public long getHeapUsed() {
-        return heapMemoryUsage.getUsed();
+        return heapMemoryUsage != null ? heapMemoryUsage.getUsed() : -1;
     }
 
     public long getHeapMax() {
-        return heapMemoryUsage.getMax();
+        return heapMemoryUsage != null ? heapMemoryUsage.getMax() : -1;
     }
 
     public long getNonHeapUsed() {
-        return nonHeapMemoryUsage.getUsed();
+        return nonHeapMemoryUsage != null ? nonHeapMemoryUsage.getUsed() : -1;
     }
 
     public long getNonHeapMax() {
-        return nonHeapMemoryUsage.getMax();
+        return nonHeapMemoryUsage != null ? nonHeapMemoryUsage.getMax() : -1;
     }
 
     public long getTotalLoadedClassCount() {
@@ -425,11 +681,20 @@ public class VMInfo {
   }
   */
     public String getVMVersion() {
-        return vmVersion_;
+        VMStaticInfo staticInfo = staticInfo_;
+        return staticInfo == null ? null : staticInfo.getShortVersion();
     }
 
     public String getOSUser() {
-        return osUser_;
+        VMStaticInfo staticInfo = staticInfo_;
+        return staticInfo == null ? null : staticInfo.getOSUser();
+    }
+
+    /**
+     * @return the metadata of the jvm or null, if not attached yet
+     */
+    public VMStaticInfo getStaticInfo() {
+        return staticInfo_;
     }
 
     public long getGcTime() {
@@ -469,32 +734,37 @@ public class VMInfo {
     }
 
     public Map<String, String> getSystemProperties() {
-        return systemProperties_;
+        VMStaticInfo staticInfo = staticInfo_;
+        return staticInfo == null ? null : staticInfo.getSystemProperties();
     }
 
     /**
-     * Extracts the jvmtop "short version" out of different properties
-     * TODO: should this be refactored?
-     * @param runtimeMXBean
-     * @return
+     * @return the total time spent in safepoints in ms (only available if monitored via hsperfdata)
      */
-    private String extractShortVer() {
-        String vmVer = systemProperties_.get("java.runtime.version");
+    public long getSafepointTime() {
+        return safepointTime_;
+    }
 
-        String vmVendor = systemProperties_.get("java.vendor");
+    /**
+     * @return the number of safepoints (only available if monitored via hsperfdata)
+     */
+    public long getSafepointCount() {
+        return safepointCount_;
+    }
 
-        Pattern pattern = Pattern.compile("[0-9]\\.([0-9])\\.0_([0-9]+)-.*");
-        Matcher matcher = pattern.matcher(vmVer);
-        if (matcher.matches()) {
-            return vmVendor.charAt(0) + matcher.group(1) + "U" + matcher.group(2);
-        } else {
-            pattern = Pattern.compile(".*-(.*)_.*");
-            matcher = pattern.matcher(vmVer);
-            if (matcher.matches()) {
-                return vmVendor.charAt(0) + matcher.group(1).substring(2, 6);
-            }
-            return vmVer;
-        }
+    /**
+     * @return the fraction of the wall time spent in safepoints since the previous update
+     * (only available if monitored via hsperfdata)
+     */
+    public double getSafepointLoad() {
+        return safepointLoad_;
+    }
+
+    /**
+     * @return true if this jvm is monitored via its hsperfdata file instead of JMX
+     */
+    public boolean isPerfDataVM() {
+        return perfData_ != null;
     }
 
     /**
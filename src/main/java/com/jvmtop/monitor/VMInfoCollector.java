@@ -0,0 +1,277 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Attaches to and updates the metrics of several jvms in parallel,
+ * using a bounded thread pool.
+ * <p>
+ * Every refresh waits at most until its deadline. A jvm whose update did not
+ * complete in time keeps its previous metrics and is marked as stale, so that
+ * a single slow jvm cannot stall the whole overview.
+ * Its pending update is not resubmitted until it has finished.
+ * <p>
+ * If attaching takes longer than the connect timeout or updating takes longer
+ * than the read timeout, the jvm is marked as {@link VMInfoState#TIMED_OUT}.
+ * The pending task keeps running in the background and a new update is
+ * scheduled as soon as it finishes, so a late-answering jvm recovers by itself.
+ */
+public class VMInfoCollector {
+
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    public static final long DEFAULT_DEADLINE_MILLIS = 500;
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+    public static final long DEFAULT_READ_TIMEOUT_MILLIS = 2000;
+
+    private final ExecutorService executor_;
+
+    private final long deadlineMillis_;
+
+    private long connectTimeoutMillis_ = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    private long readTimeoutMillis_ = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    private final Map<VMInfo, PendingTask> pendingTasks_ = new ConcurrentHashMap<VMInfo, PendingTask>();
+
+    public VMInfoCollector() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * @param poolSize       maximum number of jvms which are attached / updated at the same time
+     * @param deadlineMillis maximum time a refresh waits for the jvm updates
+     */
+    public VMInfoCollector(int poolSize, long deadlineMillis) {
+        executor_ = Executors.newFixedThreadPool(poolSize, new CollectorThreadFactory());
+        deadlineMillis_ = deadlineMillis;
+    }
+
+    /**
+     * Creates a VMInfo for the given jvm and attaches to it in the background.
+     * The returned VMInfo stays in state {@link VMInfoState#INIT} until the attach has finished.
+     *
+     * @param localvm
+     * @param vmid
+     * @return
+     */
+    public VMInfo attach(LocalVirtualMachine localvm, int vmid) {
+        final VMInfo vmInfo = VMInfo.createDeadVM(vmid, localvm, VMInfoState.INIT);
+        pendingTasks_.put(vmInfo, new PendingTask(executor_.submit(new AttachTask(vmInfo, false)),
+                connectTimeoutMillis_));
+        return vmInfo;
+    }
+
+    /**
+     * Creates a VMInfo for a jvm which is not listed via jvmstat, resolves its
+     * LocalVirtualMachine and attaches to it in the background.
+     * Until then, the returned VMInfo stays in state {@link VMInfoState#INIT}
+     * and is named by its PID.
+     *
+     * @param vmid
+     * @return
+     */
+    public VMInfo resolveAndAttach(int vmid) {
+        final VMInfo vmInfo = VMInfo.createDeadVM(vmid,
+                new LocalVirtualMachine(vmid, String.valueOf(vmid), false, null), VMInfoState.INIT);
+        pendingTasks_.put(vmInfo, new PendingTask(executor_.submit(new AttachTask(vmInfo, true)),
+                connectTimeoutMillis_));
+        return vmInfo;
+    }
+
+    /**
+     * Waits until the attach of the given VMInfo has finished
+     * or the connect timeout has passed.
+     *
+     * @param vmInfo
+     * @throws InterruptedException
+     */
+    public void awaitAttach(VMInfo vmInfo) throws InterruptedException {
+        PendingTask pending = pendingTasks_.get(vmInfo);
+        if (pending != null) {
+            await(vmInfo, pending, pending.startNanos_
+                    + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis_));
+        }
+    }
+
+    /**
+     * Updates all given jvms concurrently and waits until all of them
+     * have finished or the deadline has passed.
+     *
+     * @param vmInfos
+     * @throws InterruptedException
+     */
+    public void updateAll(Collection<VMInfo> vmInfos) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis_);
+
+        for (VMInfo vmInfo : vmInfos) {
+            PendingTask pending = pendingTasks_.get(vmInfo);
+            if (pending == null || pending.future_.isDone()) {
+                pendingTasks_.put(vmInfo, new PendingTask(executor_.submit(new UpdateTask(vmInfo)),
+                        readTimeoutMillis_));
+            }
+        }
+
+        for (VMInfo vmInfo : vmInfos) {
+            await(vmInfo, pendingTasks_.get(vmInfo), deadline);
+        }
+
+        // forget about jvms which are not monitored anymore
+        pendingTasks_.keySet().retainAll(new HashSet<VMInfo>(vmInfos));
+    }
+
+    /**
+     * Updates the given jvm and waits until it has finished or the deadline has passed.
+     *
+     * @param vmInfo
+     * @throws InterruptedException
+     */
+    public void update(VMInfo vmInfo) throws InterruptedException {
+        updateAll(Collections.singletonList(vmInfo));
+    }
+
+    private void await(VMInfo vmInfo, PendingTask pending, long deadline)
+            throws InterruptedException {
+        try {
+            pending.future_.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            Logger.getLogger("jvmtop").log(Level.FINE,
+                    "update deadline missed (PID=" + vmInfo.getRawId() + ")");
+        } catch (ExecutionException e) {
+            Logger.getLogger("jvmtop").log(Level.FINE,
+                    "error during update (PID=" + vmInfo.getRawId() + ")", e.getCause());
+        }
+        boolean done = pending.future_.isDone();
+        vmInfo.setStale(!done);
+        if (!done && pending.isTimedOut()) {
+            vmInfo.markTimedOut();
+        }
+    }
+
+    /**
+     * Stops all collector threads, pending tasks are abandoned.
+     */
+    public void shutdown() {
+        executor_.shutdownNow();
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeoutMillis_;
+    }
+
+    /**
+     * @param connectTimeoutMillis time after which a jvm which is still being attached is marked as timed out
+     */
+    public void setConnectTimeout(long connectTimeoutMillis) {
+        connectTimeoutMillis_ = connectTimeoutMillis;
+    }
+
+    public long getReadTimeout() {
+        return readTimeoutMillis_;
+    }
+
+    /**
+     * @param readTimeoutMillis time after which a jvm which is still being updated is marked as timed out
+     */
+    public void setReadTimeout(long readTimeoutMillis) {
+        readTimeoutMillis_ = readTimeoutMillis;
+    }
+
+    private static final class PendingTask {
+        private final Future<?> future_;
+        private final long startNanos_ = System.nanoTime();
+        private final long timeoutMillis_;
+
+        private PendingTask(Future<?> future, long timeoutMillis) {
+            future_ = future;
+            timeoutMillis_ = timeoutMillis;
+        }
+
+        private boolean isTimedOut() {
+            return System.nanoTime() - startNanos_ >= TimeUnit.MILLISECONDS.toNanos(timeoutMillis_);
+        }
+    }
+
+    private static final class AttachTask implements Callable<Void> {
+        private final VMInfo vmInfo_;
+        private final boolean resolve_;
+
+        private AttachTask(VMInfo vmInfo, boolean resolve) {
+            vmInfo_ = vmInfo;
+            resolve_ = resolve;
+        }
+
+        @Override
+        public Void call() {
+            if (resolve_) {
+                vmInfo_.resolveLocalVm();
+            }
+            vmInfo_.attach();
+            return null;
+        }
+    }
+
+    private static final class UpdateTask implements Callable<Void> {
+        private final VMInfo vmInfo_;
+
+        private UpdateTask(VMInfo vmInfo) {
+            vmInfo_ = vmInfo;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            vmInfo_.update();
+            return null;
+        }
+    }
+
+    private static final class CollectorThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber_ = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "jvmtop-collector-" + threadNumber_.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
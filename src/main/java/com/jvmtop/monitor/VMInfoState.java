@@ -29,5 +29,6 @@ package com.jvmtop.monitor;
 public enum VMInfoState {
     INIT, ERROR_DURING_ATTACH, ATTACHED, ATTACHED_UPDATE_ERROR, DETACHED,
     CONNECTION_REFUSED,
+    TIMED_OUT,
     UNKNOWN_ERROR
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Releases the resources of jvms which have exited.
+ * <p>
+ * Liveness is checked via {@link ProcessHandle}, which neither requires
+ * a JMX call nor an attach. Exited and detached jvms are removed from the
+ * monitored jvms and their connections are closed and evicted from the
+ * ProxyClient cache, so that the memory and work per refresh do not grow
+ * on hosts where many short-lived jvms come and go.
+ * <p>
+ * Updates of evicted jvms which are still running in the background
+ * fail harmlessly, as their VMInfo is already detached.
+ */
+public class VMLifecycleManager {
+
+    /**
+     * @param vmid
+     * @return true if the process of the given jvm is still running
+     */
+    public boolean isAlive(int vmid) {
+        return ProcessHandle.of(vmid).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+    /**
+     * Detaches and removes all exited or detached jvms from the given collection.
+     *
+     * @param vmInfos
+     * @return the removed jvms
+     */
+    public List<VMInfo> evictDeadVMs(Collection<VMInfo> vmInfos) {
+        List<VMInfo> evicted = new ArrayList<VMInfo>();
+        for (Iterator<VMInfo> it = vmInfos.iterator(); it.hasNext(); ) {
+            VMInfo vmInfo = it.next();
+            if (vmInfo.getState() == VMInfoState.DETACHED || !isAlive(vmInfo.getId())) {
+                it.remove();
+                evict(vmInfo);
+                evicted.add(vmInfo);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Stops monitoring the given jvm and releases its connection.
+     *
+     * @param vmInfo
+     */
+    public void evict(VMInfo vmInfo) {
+        Logger.getLogger("jvmtop").log(Level.FINE,
+                "evicting jvm (PID=" + vmInfo.getRawId() + ")");
+        vmInfo.detach();
+    }
+}
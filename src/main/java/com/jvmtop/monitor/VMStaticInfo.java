@@ -0,0 +1,227 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable metadata of a jvm which does not change during its lifetime
+ * (version, vendor, command line, vm arguments, user, number of processors).
+ * <p>
+ * It is fetched only once after attaching, so that the (large) system properties
+ * do not need to be transferred on every update.
+ */
+public final class VMStaticInfo {
+
+    private static final Pattern JAVA6_VERSION_PATTERN = Pattern.compile("[0-9]\\.([0-9])\\.0_([0-9]+)(-.*)?");
+
+    private static final String ACTIVE_PROCESSOR_COUNT_ARG = "-XX:ActiveProcessorCount=";
+
+    private static final Pattern BUILD_VERSION_PATTERN = Pattern.compile(".*-(.*)_.*");
+
+    private final String shortVersion_;
+
+    private final String javaVersion_;
+
+    private final String vendor_;
+
+    private final String vmName_;
+
+    private final String command_;
+
+    private final List<String> inputArguments_;
+
+    private final String osUser_;
+
+    private final int availableProcessors_;
+
+    private final boolean availableProcessorsApproximate_;
+
+    private final Map<String, String> systemProperties_;
+
+    private VMStaticInfo(String shortVersion, String javaVersion, String vendor, String vmName,
+                         String command, List<String> inputArguments, String osUser,
+                         int availableProcessors, boolean availableProcessorsApproximate,
+                         Map<String, String> systemProperties) {
+        shortVersion_ = shortVersion;
+        javaVersion_ = javaVersion;
+        vendor_ = vendor;
+        vmName_ = vmName;
+        command_ = command;
+        inputArguments_ = Collections.unmodifiableList(inputArguments);
+        osUser_ = osUser;
+        availableProcessors_ = availableProcessors;
+        availableProcessorsApproximate_ = availableProcessorsApproximate;
+        systemProperties_ = Collections.unmodifiableMap(systemProperties);
+    }
+
+    /**
+     * Fetches the metadata of an attached jvm.
+     * The version and vendor are taken from the same properties as in {@link #fromPerfData(PerfDataBuffer)},
+     * as only some properties are exported as perf counters.
+     *
+     * @param runtimeMXBean
+     * @param osBean
+     * @return
+     */
+    public static VMStaticInfo fromMXBeans(RuntimeMXBean runtimeMXBean,
+                                           OperatingSystemMXBean osBean) {
+        Map<String, String> properties = new HashMap<String, String>(
+                runtimeMXBean.getSystemProperties());
+        return new VMStaticInfo(
+                extractShortVer(properties.get("java.version"), properties.get("java.vm.vendor")),
+                properties.get("java.version"), properties.get("java.vm.vendor"),
+                properties.get("java.vm.name"), properties.get("sun.java.command"),
+                runtimeMXBean.getInputArguments(), properties.get("user.name"),
+                osBean.getAvailableProcessors(), false, properties);
+    }
+
+    /**
+     * Reads the metadata of a local jvm from its hsperfdata file.
+     * Only the system properties which are exported as perf counters are available.
+     * The number of processors is not exported: unless set via -XX:ActiveProcessorCount,
+     * it is the number of processors available to jvmtop, see {@link #isAvailableProcessorsApproximate()}.
+     *
+     * @param perfData
+     * @return
+     */
+    public static VMStaticInfo fromPerfData(PerfDataBuffer perfData) {
+        Map<String, String> properties = new HashMap<String, String>();
+        for (String name : new String[]{"java.version", "java.vm.vendor", "java.vm.name",
+                "java.vm.version", "java.home"}) {
+            String value = perfData.getString("java.property." + name);
+            if (value != null) {
+                properties.put(name, value);
+            }
+        }
+        String vmArgs = perfData.getString("java.rt.vmArgs");
+        List<String> inputArguments = vmArgs == null || vmArgs.isEmpty()
+                ? Collections.<String>emptyList() : Arrays.asList(vmArgs.split(" "));
+        int activeProcessorCount = getActiveProcessorCount(inputArguments);
+        return new VMStaticInfo(
+                extractShortVer(properties.get("java.version"), properties.get("java.vm.vendor")),
+                properties.get("java.version"), properties.get("java.vm.vendor"),
+                properties.get("java.vm.name"), perfData.getString("sun.rt.javaCommand"),
+                inputArguments, perfData.getUser(),
+                // hsperfdata is only available for jvms running on this host
+                activeProcessorCount > 0 ? activeProcessorCount : Runtime.getRuntime().availableProcessors(),
+                activeProcessorCount <= 0, properties);
+    }
+
+    /**
+     * @return the value of the last -XX:ActiveProcessorCount argument, 0 if not set or invalid
+     */
+    private static int getActiveProcessorCount(List<String> inputArguments) {
+        int count = 0;
+        for (String argument : inputArguments) {
+            if (argument.startsWith(ACTIVE_PROCESSOR_COUNT_ARG)) {
+                try {
+                    count = Integer.parseInt(argument.substring(ACTIVE_PROCESSOR_COUNT_ARG.length()));
+                } catch (NumberFormatException e) {
+                    count = 0;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the jvmtop "short version", e.g. O8U66 or 17.0.2
+     */
+    public String getShortVersion() {
+        return shortVersion_;
+    }
+
+    public String getJavaVersion() {
+        return javaVersion_;
+    }
+
+    public String getVendor() {
+        return vendor_;
+    }
+
+    public String getVMName() {
+        return vmName_;
+    }
+
+    /**
+     * @return the main class / jar and its arguments or null, if unknown
+     */
+    public String getCommand() {
+        return command_;
+    }
+
+    public List<String> getInputArguments() {
+        return inputArguments_;
+    }
+
+    public String getOSUser() {
+        return osUser_;
+    }
+
+    public int getAvailableProcessors() {
+        return availableProcessors_;
+    }
+
+    /**
+     * @return true if the number of processors is the one available to jvmtop instead of the jvm,
+     * which differs if the jvm is restricted e.g. by its cpu affinity or a container cpu limit
+     */
+    public boolean isAvailableProcessorsApproximate() {
+        return availableProcessorsApproximate_;
+    }
+
+    public Map<String, String> getSystemProperties() {
+        return systemProperties_;
+    }
+
+    /**
+     * Extracts the jvmtop "short version" out of different properties
+     * TODO: should this be refactored?
+     * @param vmVer the java version
+     * @param vmVendor the java vendor
+     * @return
+     */
+    private static String extractShortVer(String vmVer, String vmVendor) {
+        if (vmVer == null || vmVendor == null || vmVendor.isEmpty()) {
+            return vmVer;
+        }
+
+        Matcher matcher = JAVA6_VERSION_PATTERN.matcher(vmVer);
+        if (matcher.matches()) {
+            return vmVendor.charAt(0) + matcher.group(1) + "U" + matcher.group(2);
+        } else {
+            matcher = BUILD_VERSION_PATTERN.matcher(vmVer);
+            if (matcher.matches()) {
+                return vmVendor.charAt(0) + matcher.group(1).substring(2, 6);
+            }
+            return vmVer;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.openjdk.tools;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers jvms which could not be attached
+ * (e.g. owned by other users, -XX:+DisableAttachMechanism or permission denied),
+ * so that they are not attached again on every refresh.
+ * <p>
+ * After each consecutive failure, the next attempt is suppressed for an exponentially
+ * growing backoff period. A failure is forgotten after {@link #TTL_MILLIS}, so that
+ * a jvm whose attachability changed is picked up again eventually.
+ * <p>
+ * Failures are keyed by the PID and the start time of the process,
+ * so a new process which reuses the PID of a failed one is not affected.
+ */
+public final class AttachFailureCache {
+
+    public static final long INITIAL_BACKOFF_MILLIS = 5000;
+
+    public static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    public static final long TTL_MILLIS = 30 * 60 * 1000;
+
+    private static final Map<Key, Failure> failures_ = new ConcurrentHashMap<Key, Failure>();
+
+    private AttachFailureCache() {
+    }
+
+    /**
+     * @param vmid
+     * @return true if attaching to the given jvm failed recently and should not be retried yet
+     */
+    public static boolean isSuppressed(int vmid) {
+        long now = System.currentTimeMillis();
+        Failure failure = failures_.get(Key.of(vmid));
+        return failure != null && !failure.isExpired(now) && now < failure.retryAt_;
+    }
+
+    /**
+     * Records a failed attach to the given jvm and extends its backoff.
+     *
+     * @param vmid
+     */
+    public static void recordFailure(int vmid) {
+        long now = System.currentTimeMillis();
+        purgeExpired(now);
+        failures_.compute(Key.of(vmid), (key, previous) ->
+                new Failure(previous == null || previous.isExpired(now) ? 1 : previous.count_ + 1, now));
+    }
+
+    /**
+     * Forgets all previous failures of the given jvm.
+     *
+     * @param vmid
+     */
+    public static void recordSuccess(int vmid) {
+        failures_.remove(Key.of(vmid));
+    }
+
+    private static void purgeExpired(long now) {
+        for (Iterator<Failure> it = failures_.values().iterator(); it.hasNext(); ) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Failure {
+        private final int count_;
+        private final long lastFailure_;
+        private final long retryAt_;
+
+        private Failure(int count, long lastFailure) {
+            count_ = count;
+            lastFailure_ = lastFailure;
+            retryAt_ = lastFailure + Math.min(MAX_BACKOFF_MILLIS,
+                    INITIAL_BACKOFF_MILLIS << Math.min(count - 1, 16));
+        }
+
+        private boolean isExpired(long now) {
+            return now - lastFailure_ > TTL_MILLIS;
+        }
+    }
+
+    private static final class Key {
+        private final int vmid_;
+        private final Instant startTime_;
+
+        private Key(int vmid, Instant startTime) {
+            vmid_ = vmid;
+            startTime_ = startTime;
+        }
+
+        private static Key of(int vmid) {
+            return new Key(vmid, ProcessHandle.of(vmid)
+                    .flatMap(process -> process.info().startInstant())
+                    .orElse(null));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return vmid_ == other.vmid_ && Objects.equals(startTime_, other.startTime_);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * vmid_ + Objects.hashCode(startTime_);
+        }
+    }
+}
@@ -46,10 +46,13 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class LocalVirtualMachine {
     private static final String LOCAL_CONNECTOR_ADDRESS_PROP = "com.sun.management.jmxremote.localConnectorAddress";
@@ -202,6 +205,57 @@ public class LocalVirtualMachine {
         }
     }
 
+    // This method returns the ids of all virtual machines currently
+    // running on the machine, without attaching to any of them
+    public static Set<Integer> getVirtualMachineIds() {
+        Set<Integer> vmids = new HashSet<Integer>();
+        //Unsupported on J9
+        if (!J9Mode) {
+            try {
+                MonitoredHost host = MonitoredHost.getMonitoredHost(new HostIdentifier((String) null));
+                for (Object vmid : host.activeVms()) {
+                    if (vmid instanceof Integer) {
+                        vmids.add((Integer) vmid);
+                    }
+                }
+            } catch (java.net.URISyntaxException | MonitorException x) {
+                // ignore, fall back to the attach provider
+            }
+        }
+        for (VirtualMachineDescriptor vmd : VirtualMachine.list()) {
+            try {
+                vmids.add(Integer.valueOf(vmd.id()));
+            } catch (NumberFormatException e) {
+                // do not support vmid different than pid
+            }
+        }
+        return vmids;
+    }
+
+    // This method returns the given virtual machine if it exports its
+    // perf data, without attaching to it or to any other virtual machine.
+    // Returns null if the perf data is not (yet) accessible
+    public static LocalVirtualMachine getMonitoredVM(int vmid) {
+        //Unsupported on J9
+        if (J9Mode) {
+            return null;
+        }
+        try {
+            MonitoredHost host = MonitoredHost.getMonitoredHost(new HostIdentifier((String) null));
+            MonitoredVm mvm = host.getMonitoredVm(new VmIdentifier(String.valueOf(vmid)));
+            try {
+                // use the command line as the display name
+                return new LocalVirtualMachine(vmid, MonitoredVmUtil.commandLine(mvm),
+                        MonitoredVmUtil.isAttachable(mvm), ConnectorAddressLink.importFrom(vmid));
+            } finally {
+                mvm.detach();
+            }
+        } catch (Exception x) {
+            // no perf data available (e.g. -XX:-UsePerfData or different user)
+            return null;
+        }
+    }
+
     private static void getAttachableVMs(Map<Integer, LocalVirtualMachine> map,
                                          Map<Integer, LocalVirtualMachine> existingVmMap) {
         List<VirtualMachineDescriptor> vms = VirtualMachine.list();
@@ -211,19 +265,24 @@ public class LocalVirtualMachine {
                 if (!map.containsKey(vmid) && !existingVmMap.containsKey(vmid)) {
                     boolean attachable = false;
                     String address = null;
+                    if (AttachFailureCache.isSuppressed(vmid)) {
+                        // failed recently, do not try again yet
+                        map.put(vmid, new LocalVirtualMachine(vmid.intValue(), vmd.displayName(),
+                                false, null));
+                        continue;
+                    }
                     try {
                         VirtualMachine vm = VirtualMachine.attach(vmd);
                         attachable = true;
                         Properties agentProps = vm.getAgentProperties();
                         address = (String) agentProps.get(LOCAL_CONNECTOR_ADDRESS_PROP);
                         vm.detach();
-                    } catch (AttachNotSupportedException x) {
+                        AttachFailureCache.recordSuccess(vmid);
+                    } catch (AttachNotSupportedException | NullPointerException | IOException x) {
                         // not attachable
-                        x.printStackTrace(System.err);
-                    } catch (NullPointerException e) {
-                        e.printStackTrace(System.err);
-                    } catch (IOException x) {
-                        // ignore
+                        Logger.getLogger("jvmtop").log(Level.FINE,
+                                "could not attach (PID=" + vmid + ")", x);
+                        AttachFailureCache.recordFailure(vmid);
                     }
                     map.put(vmid,
                             new LocalVirtualMachine(vmid.intValue(), vmd.displayName(),
@@ -235,25 +294,39 @@ public class LocalVirtualMachine {
         }
     }
 
+    // This method returns the given virtual machine. In contrast to
+    // getAllVirtualMachines(), it does not attach to any other virtual machine,
+    // so its cost does not depend on the number of running virtual machines
     public static LocalVirtualMachine getLocalVirtualMachine(int vmid)
             throws Exception {
-        Map<Integer, LocalVirtualMachine> map = getAllVirtualMachines();
-        LocalVirtualMachine lvm = map.get(vmid);
+        LocalVirtualMachine lvm = getMonitoredVM(vmid);
         if (lvm == null) {
-            // Check if the VM is attachable but not included in the list
-            // if it's running with a different security context.
+            // Attach to this VM only. This includes VMs which are attachable
+            // but not listed if running with a different security context.
             // For example, Windows services running
             // local SYSTEM account are attachable if you have Adminstrator
             // privileges.
             boolean attachable = false;
             String address = null;
             String name = String.valueOf(vmid); // default display name to pid
+            for (VirtualMachineDescriptor vmd : VirtualMachine.list()) {
+                if (name.equals(vmd.id())) {
+                    name = vmd.displayName();
+                    break;
+                }
+            }
 
-            VirtualMachine vm = VirtualMachine.attach(name);
-            attachable = true;
-            Properties agentProps = vm.getAgentProperties();
-            address = (String) agentProps.get(LOCAL_CONNECTOR_ADDRESS_PROP);
-            vm.detach();
+            try {
+                VirtualMachine vm = VirtualMachine.attach(String.valueOf(vmid));
+                attachable = true;
+                Properties agentProps = vm.getAgentProperties();
+                address = (String) agentProps.get(LOCAL_CONNECTOR_ADDRESS_PROP);
+                vm.detach();
+            } catch (AttachNotSupportedException | IOException x) {
+                AttachFailureCache.recordFailure(vmid);
+                throw x;
+            }
+            AttachFailureCache.recordSuccess(vmid);
             lvm = new LocalVirtualMachine(vmid, name, attachable, address);
 
         }
@@ -54,6 +54,7 @@ import javax.rmi.ssl.SslRMIClientSocketFactory;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.management.ClassLoadingMXBean;
 import java.lang.management.CompilationMXBean;
 import java.lang.management.GarbageCollectorMXBean;
@@ -85,6 +86,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static java.lang.management.ManagementFactory.CLASS_LOADING_MXBEAN_NAME;
 import static java.lang.management.ManagementFactory.COMPILATION_MXBEAN_NAME;
@@ -105,7 +109,7 @@ public class ProxyClient {
             "javax.management.remote.rmi.RMIServerImpl_Stub";
     private static final Class<? extends Remote> rmiServerImplStubClass;
     private static final Map<String, ProxyClient> cache =
-            Collections.synchronizedMap(new HashMap<String, ProxyClient>());
+            new ConcurrentHashMap<String, ProxyClient>();
 
     static {
         // FIXME: RMIServerImpl_Stub is generated at build time
@@ -161,6 +165,8 @@ public class ProxyClient {
     private RuntimeMXBean runtimeMBean = null;
     private ThreadMXBean threadMBean = null;
     private java.lang.management.OperatingSystemMXBean sunOperatingSystemMXBean = null;
+    private com.sun.management.ThreadMXBean sunThreadMXBean = null;
+    private volatile boolean bulkThreadCpuTimeSupported = true;
     private List<GarbageCollectorMXBean> garbageCollectorMBeans = null;
 
     private ProxyClient(String hostName, int port,
@@ -246,12 +252,28 @@ public class ProxyClient {
     public static ProxyClient getProxyClient(LocalVirtualMachine lvm)
             throws IOException {
         final String key = getCacheKey(lvm);
-        ProxyClient proxyClient = cache.get(key);
-        if (proxyClient == null) {
-            proxyClient = new ProxyClient(lvm);
-            cache.put(key, proxyClient);
+        try {
+            return cache.computeIfAbsent(key, k -> {
+                try {
+                    return new ProxyClient(lvm);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Removes the proxy client of the given local virtual machine from the cache
+     * and closes its connection, if any.
+     */
+    public static void evictProxyClient(int vmid) {
+        ProxyClient proxyClient = cache.remove(Integer.toString(vmid));
+        if (proxyClient != null) {
+            proxyClient.disconnect();
         }
-        return proxyClient;
     }
 
     public static String getConnectionName(LocalVirtualMachine lvm) {
@@ -269,12 +291,17 @@ public class ProxyClient {
                                              String userName, String password)
             throws IOException {
         final String key = getCacheKey(url, userName, password);
-        ProxyClient proxyClient = cache.get(key);
-        if (proxyClient == null) {
-            proxyClient = new ProxyClient(url, userName, password);
-            cache.put(key, proxyClient);
+        try {
+            return cache.computeIfAbsent(key, k -> {
+                try {
+                    return new ProxyClient(url, userName, password);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return proxyClient;
     }
 
     public static String getConnectionName(String url,
@@ -300,12 +327,17 @@ public class ProxyClient {
                                              String userName, String password)
             throws IOException {
         final String key = getCacheKey(hostName, port, userName, password);
-        ProxyClient proxyClient = cache.get(key);
-        if (proxyClient == null) {
-            proxyClient = new ProxyClient(hostName, port, userName, password);
-            cache.put(key, proxyClient);
+        try {
+            return cache.computeIfAbsent(key, k -> {
+                try {
+                    return new ProxyClient(hostName, port, userName, password);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return proxyClient;
     }
 
     public static String getConnectionName(String hostName, int port,
@@ -594,6 +626,7 @@ public class ProxyClient {
         runtimeMBean = null;
         threadMBean = null;
         sunOperatingSystemMXBean = null;
+        sunThreadMXBean = null;
         garbageCollectorMBeans = null;
         // Set connection state to DISCONNECTED
         if (!isDead) {
@@ -815,6 +848,56 @@ public class ProxyClient {
         return sunOperatingSystemMXBean;
     }
 
+    /**
+     * Returns the HotSpot specific thread MXBean, providing bulk operations
+     * (e.g. the cpu times of several threads in a single call),
+     * or null if not supported by the remote jvm.
+     */
+    public synchronized com.sun.management.ThreadMXBean getSunThreadMXBean() throws IOException {
+        try {
+            ObjectName on = new ObjectName(THREAD_MXBEAN_NAME);
+            if (sunThreadMXBean == null
+                    && server.isInstanceOf(on, "com.sun.management.ThreadMXBean")) {
+                sunThreadMXBean =
+                        newPlatformMXBeanProxy(server, THREAD_MXBEAN_NAME,
+                                com.sun.management.ThreadMXBean.class);
+            }
+        } catch (InstanceNotFoundException e) {
+            return null;
+        } catch (MalformedObjectNameException e) {
+            return null; // should never reach here
+        }
+        return sunThreadMXBean;
+    }
+
+    /**
+     * Returns the cpu times of the given threads, using a single remote call if
+     * the jvm supports it, otherwise one call per thread.
+     *
+     * @return the cpu time in ns per thread, -1 for terminated threads
+     */
+    public long[] getThreadCpuTimes(long[] tids) throws IOException {
+        if (bulkThreadCpuTimeSupported) {
+            try {
+                com.sun.management.ThreadMXBean tm = getSunThreadMXBean();
+                if (tm != null) {
+                    return tm.getThreadCpuTime(tids);
+                }
+            } catch (RuntimeException e) {
+                // e.g. operation not available on older jvms
+                Logger.getLogger("jvmtop").log(Level.FINE,
+                        "bulk thread cpu time not supported, falling back", e);
+            }
+            bulkThreadCpuTimeSupported = false;
+        }
+        ThreadMXBean tm = getThreadMXBean();
+        long[] threadCpuTimes = new long[tids.length];
+        for (int i = 0; i < tids.length; i++) {
+            threadCpuTimes[i] = tm.getThreadCpuTime(tids[i]);
+        }
+        return threadCpuTimes;
+    }
+
   /*
       public synchronized HotSpotDiagnosticMXBean getHotSpotDiagnosticMXBean() throws IOException {
           if (hasHotSpotDiagnosticMXBean && hotspotDiagnosticMXBean == null) {
@@ -0,0 +1,386 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import com.jvmtop.openjdk.tools.ProxyClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+
+/**
+ * Allocation profiler based on the allocation events of the Java Flight Recorder
+ * (see {@link JfrRecording#forAllocationSamples}).
+ * <p>
+ * The sampled bytes are aggregated by allocating stack and allocated class,
+ * as sliding window, so they can be shown as recent rates per second.
+ * The stacks are interned starting at the allocation site, the first frame which
+ * is not filtered (e.g. the application method calling into a collection class).
+ * The rates per site and per class are derived from these.
+ * <p>
+ * Once the number of distinct allocations has doubled, those without bytes in the window
+ * are dropped together with the stacks, frames and classes only they referenced,
+ * so the memory use depends on the recent allocations instead of all since the start.
+ */
+public class AllocationSampler {
+
+    public static final int DEFAULT_WINDOW_SECONDS = 10;
+
+    private final ProxyClient proxyClient_;
+
+    private JfrRecording recording_ = null;
+
+    private static final int INITIAL_ALLOCATIONS = 1024;
+
+    private static final int MIN_COMPACT_ALLOCATIONS = 4096;
+
+    private FrameDictionary frames_ = new FrameDictionary();
+
+    // allocated classes, interned as frames without method
+    private FrameDictionary classes_ = new FrameDictionary();
+
+    private StackDictionary stacks_ = new StackDictionary();
+
+    // allocation ids, keyed by stack id (upper half, -1 if unknown) and class id
+    private LongLongMap allocationIds_ = new LongLongMap();
+
+    private int[] allocationStacks_ = new int[INITIAL_ALLOCATIONS];
+
+    private int[] allocationClasses_ = new int[INITIAL_ALLOCATIONS];
+
+    private int allocations_ = 0;
+
+    // number of allocations at which the next compaction takes place
+    private int compactAt_ = MIN_COMPACT_ALLOCATIONS;
+
+    private final WindowedCounters allocationBytes_;
+
+    private int[] frameIds_ = new int[64];
+
+    private PackageFilter filter_ = PackageFilter.withDefaultExcludes();
+
+    private long totalBytes_ = 0;
+
+    private long lastUpdate_ = 0;
+
+    private int lastEvents_ = 0;
+
+    public AllocationSampler(ProxyClient proxyClient) {
+        this(proxyClient, DEFAULT_WINDOW_SECONDS);
+    }
+
+    /**
+     * @param proxyClient
+     * @param windowSeconds the duration over which the allocation rates are computed
+     */
+    public AllocationSampler(ProxyClient proxyClient, int windowSeconds) {
+        proxyClient_ = proxyClient;
+        allocationBytes_ = new WindowedCounters(windowSeconds, windowSeconds, windowSeconds);
+    }
+
+    /**
+     * Starts the allocation recording in the target jvm.
+     *
+     * @throws Exception if the flight recorder is not available
+     */
+    public void start() throws Exception {
+        recording_ = JfrRecording.forAllocationSamples(proxyClient_.getMBeanServerConnection());
+        synchronized (this) {
+            // the first update covers the events since the recording started
+            lastUpdate_ = System.nanoTime();
+        }
+    }
+
+    /**
+     * Fetches the allocation events recorded since the previous update.
+     *
+     * @throws IOException
+     */
+    public void update() throws IOException {
+        long start = System.nanoTime();
+        List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+        recording_.poll(events::add);
+
+        synchronized (this) {
+            allocationBytes_.advance(start);
+            if (allocations_ >= compactAt_) {
+                compact();
+            }
+            for (RecordedEvent event : events) {
+                long bytes = getWeight(event);
+                RecordedClass objectClass = event.getClass("objectClass");
+                if (bytes <= 0 || objectClass == null) {
+                    continue;
+                }
+                totalBytes_ += bytes;
+                int classId = classes_.getId(objectClass.getName(), "", -1);
+                int stackId = getAllocatingStack(event.getStackTrace());
+                allocationBytes_.add(getAllocationId(stackId, classId), bytes);
+            }
+            if (lastUpdate_ != 0) {
+                allocationBytes_.addWallTime(start - lastUpdate_);
+            }
+            lastUpdate_ = start;
+            lastEvents_ = events.size();
+        }
+    }
+
+    /**
+     * @return the sampled allocation rate in bytes per second, within the window
+     */
+    public synchronized double getAllocationRate() {
+        return toRate(allocationBytes_.getWindowTotal());
+    }
+
+    /**
+     * @param bytes allocated bytes within the window
+     * @return the bytes per second
+     */
+    public synchronized double toRate(long bytes) {
+        long wallTime = allocationBytes_.getWindowWallTime();
+        return wallTime == 0 ? 0 : bytes * 1000000000d / wallTime;
+    }
+
+    /**
+     * @param limit
+     * @return the allocation sites with the most bytes allocated within the window
+     */
+    public synchronized List<MethodStats> getTopSites(int limit) {
+        long[] siteBytes = new long[frames_.size()];
+        for (int id = 0; id < allocations_; id++) {
+            int stack = allocationStacks_[id];
+            if (stack >= 0) {
+                siteBytes[stacks_.getFrameId(stack, 0)] += allocationBytes_.getWindowValue(id);
+            }
+        }
+        List<MethodStats> stats = new ArrayList<MethodStats>();
+        for (int id = 0; id < siteBytes.length; id++) {
+            long bytes = siteBytes[id];
+            if (bytes > 0) {
+                stats.add(new MethodStats(frames_.getClassName(id), frames_.getMethodName(id),
+                        frames_.getLineNumber(id), bytes));
+            }
+        }
+        Collections.sort(stats);
+        return stats.subList(0, Math.min(limit, stats.size()));
+    }
+
+    /**
+     * @param limit
+     * @return the classes with the most bytes allocated within the window
+     */
+    public synchronized List<ClassAllocationStats> getTopClasses(int limit) {
+        long[] classBytes = new long[classes_.size()];
+        for (int id = 0; id < allocations_; id++) {
+            classBytes[allocationClasses_[id]] += allocationBytes_.getWindowValue(id);
+        }
+        List<ClassAllocationStats> stats = new ArrayList<ClassAllocationStats>();
+        for (int id = 0; id < classBytes.length; id++) {
+            long bytes = classBytes[id];
+            if (bytes > 0) {
+                stats.add(new ClassAllocationStats(classes_.getClassName(id), bytes));
+            }
+        }
+        Collections.sort(stats);
+        return stats.subList(0, Math.min(limit, stats.size()));
+    }
+
+    /**
+     * @param limit
+     * @param depth maximum number of frames per stack, starting at the allocation site
+     * @return the allocating stacks and classes with the most bytes allocated within the window
+     */
+    public synchronized List<AllocationStackStats> getTopStacks(int limit, int depth) {
+        int[] top = TopK.select(allocations_, limit, new TopK.IndexComparator() {
+            @Override
+            public int compare(int id1, int id2) {
+                int order = Long.compare(allocationBytes_.getWindowValue(id2), allocationBytes_.getWindowValue(id1));
+                return order != 0 ? order : Integer.compare(id1, id2);
+            }
+        });
+        List<AllocationStackStats> stats = new ArrayList<AllocationStackStats>();
+        for (int id : top) {
+            long bytes = allocationBytes_.getWindowValue(id);
+            int stack = allocationStacks_[id];
+            if (bytes <= 0 || stack < 0) {
+                continue;
+            }
+            List<StackTraceElement> frames = new ArrayList<StackTraceElement>();
+            for (int i = 0; i < Math.min(depth, stacks_.getLength(stack)); i++) {
+                int frame = stacks_.getFrameId(stack, i);
+                frames.add(new StackTraceElement(frames_.getClassName(frame), frames_.getMethodName(frame),
+                        null, frames_.getLineNumber(frame)));
+            }
+            stats.add(new AllocationStackStats(classes_.getClassName(allocationClasses_[id]), frames, bytes));
+        }
+        return stats;
+    }
+
+    /**
+     * @return the sampled bytes since the profiling started
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes_;
+    }
+
+    /**
+     * @return the number of allocation events fetched by the last update
+     */
+    public synchronized int getLastEvents() {
+        return lastEvents_;
+    }
+
+    public JfrRecording getRecording() {
+        return recording_;
+    }
+
+    public synchronized void setFilter(PackageFilter filter) {
+        filter_ = filter;
+    }
+
+    /**
+     * Stops the recording in the target jvm.
+     */
+    public void close() {
+        if (recording_ != null) {
+            recording_.close();
+        }
+    }
+
+    /**
+     * @return the id of the stack starting at the first frame which is not filtered
+     * (the allocation site), or of the complete stack if all frames are filtered;
+     * -1 if the stack is unknown
+     */
+    private int getAllocatingStack(RecordedStackTrace stackTrace) {
+        if (stackTrace == null || stackTrace.getFrames().isEmpty()) {
+            return -1;
+        }
+        List<RecordedFrame> frames = stackTrace.getFrames();
+        // the allocation events are throttled, so the filter is applied without caching
+        int site = 0;
+        while (site < frames.size() && filter_.isFiltered(frames.get(site).getMethod().getType().getName())) {
+            site++;
+        }
+        if (site == frames.size()) {
+            site = 0;
+        }
+        int length = frames.size() - site;
+        if (length > frameIds_.length) {
+            frameIds_ = new int[Math.max(length, frameIds_.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            RecordedFrame frame = frames.get(site + i);
+            RecordedMethod method = frame.getMethod();
+            frameIds_[i] = frames_.getId(method.getType().getName(), method.getName(), frame.getLineNumber());
+        }
+        return stacks_.getId(frameIds_, length);
+    }
+
+    /**
+     * @return the id of the allocations of the class at the stack, a new one if they have not been seen before
+     */
+    private int getAllocationId(int stackId, int classId) {
+        long key = ((long) stackId << 32) | classId;
+        int id = (int) allocationIds_.get(key, -1);
+        if (id < 0) {
+            id = allocations_++;
+            if (id == allocationStacks_.length) {
+                allocationStacks_ = Arrays.copyOf(allocationStacks_, id * 2);
+                allocationClasses_ = Arrays.copyOf(allocationClasses_, id * 2);
+            }
+            allocationStacks_[id] = stackId;
+            allocationClasses_[id] = classId;
+            allocationIds_.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * Drops the allocations without bytes in the window, renumbering the remaining ones,
+     * and rebuilds the dictionaries from the stacks and classes they reference.
+     */
+    private void compact() {
+        FrameDictionary frames = new FrameDictionary();
+        FrameDictionary classes = new FrameDictionary();
+        StackDictionary stacks = new StackDictionary();
+        LongLongMap allocationIds = new LongLongMap();
+        int[] retained = new int[allocations_];
+        int count = 0;
+        for (int id = 0; id < allocations_; id++) {
+            if (allocationBytes_.getWindowValue(id) > 0) {
+                retained[count++] = id;
+            }
+        }
+        int[] allocationStacks = new int[Math.max(INITIAL_ALLOCATIONS, count * 2)];
+        int[] allocationClasses = new int[allocationStacks.length];
+        for (int i = 0; i < count; i++) {
+            int stackId = allocationStacks_[retained[i]];
+            if (stackId >= 0) {
+                int length = stacks_.getLength(stackId);
+                if (length > frameIds_.length) {
+                    frameIds_ = new int[length];
+                }
+                for (int j = 0; j < length; j++) {
+                    int frame = stacks_.getFrameId(stackId, j);
+                    frameIds_[j] = frames.getId(frames_.getClassName(frame), frames_.getMethodName(frame),
+                            frames_.getLineNumber(frame));
+                }
+                stackId = stacks.getId(frameIds_, length);
+            }
+            int classId = classes.getId(classes_.getClassName(allocationClasses_[retained[i]]), "", -1);
+            allocationStacks[i] = stackId;
+            allocationClasses[i] = classId;
+            allocationIds.put(((long) stackId << 32) | classId, i);
+        }
+        allocationBytes_.retain(retained, count);
+        frames_ = frames;
+        classes_ = classes;
+        stacks_ = stacks;
+        allocationIds_ = allocationIds;
+        allocationStacks_ = allocationStacks;
+        allocationClasses_ = allocationClasses;
+        allocations_ = count;
+        compactAt_ = Math.max(MIN_COMPACT_ALLOCATIONS, count * 2);
+    }
+
+    /**
+     * @return the allocated bytes represented by the event
+     */
+    private static long getWeight(RecordedEvent event) {
+        String type = event.getEventType().getName();
+        if (type.equals(JfrRecording.OBJECT_ALLOCATION_SAMPLE)) {
+            return event.getLong("weight");
+        } else if (type.equals(JfrRecording.OBJECT_ALLOCATION_IN_NEW_TLAB)) {
+            // a new TLAB is sampled, so it represents all allocations in it
+            return event.getLong("tlabSize");
+        }
+        return event.getLong("allocationSize");
+    }
+}
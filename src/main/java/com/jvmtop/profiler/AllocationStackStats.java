@@ -0,0 +1,66 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.List;
+
+/**
+ * Snapshot of the bytes sampled for an allocated class at an allocating stack.
+ */
+public class AllocationStackStats implements Comparable<AllocationStackStats> {
+
+    private final String className_;
+
+    private final List<StackTraceElement> stack_;
+
+    private final long bytes_;
+
+    /**
+     * @param className
+     * @param stack     the allocating stack, starting at the allocation site
+     * @param bytes
+     */
+    public AllocationStackStats(String className, List<StackTraceElement> stack, long bytes) {
+        className_ = className;
+        stack_ = stack;
+        bytes_ = bytes;
+    }
+
+    /**
+     * Compares by the allocated bytes (descending)
+     */
+    @Override
+    public int compareTo(AllocationStackStats o) {
+        return Long.compare(o.bytes_, bytes_);
+    }
+
+    public String getClassName() {
+        return className_;
+    }
+
+    public List<StackTraceElement> getStack() {
+        return stack_;
+    }
+
+    public long getBytes() {
+        return bytes_;
+    }
+}
@@ -20,8 +20,14 @@
  */
 package com.jvmtop.profiler;
 
+import com.jvmtop.agent.AgentLoader;
+import com.jvmtop.agent.SamplingAgent;
+import com.jvmtop.agent.SamplingAgentMBean;
 import com.jvmtop.monitor.VMInfo;
+import com.jvmtop.openjdk.tools.ProxyClient;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.Thread.State;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
@@ -29,33 +35,103 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedThread;
 
 /**
  * Experimental and very basic sampling-based CPU-Profiler.
  * <p>
  * It uses package excludes to filter common 3rd party libraries which often
- * distort application problems.
+ * distort application problems (see {@link PackageFilter}).
+ * The filter decision is cached per frame.
+ * <p>
+ * Sampled frames are interned in a {@link FrameDictionary} and their cpu time
+ * is accumulated in a primitive array indexed by the frame id,
+ * so aggregating a sample does not allocate once its frames are known.
+ * <p>
+ * Besides the cumulative aggregation, the recent cpu time is kept as sliding window
+ * and exponentially decayed sum in {@link WindowedCounters}, so new hotspots show up quickly.
+ * <p>
+ * Optionally, the complete stacks are aggregated in a {@link CallTree}.
+ * <p>
+ * The samples can be recorded to a file by a {@link SampleRecorder}
+ * and aggregated again later via {@link #replay(SampleReplay)}.
+ * <p>
+ * By default, only threads which consumed cpu time since the previous sample are sampled:
+ * the cpu times of all threads are fetched in bulk first, then only the stacks of the
+ * active threads are requested, limited to the sample depth. This reduces both the
+ * transferred data and the time the target jvm spends in safepoints for the stack walks.
  *
  * @author paru
  */
 public class CPUSampler {
-    private final ThreadMXBean threadMxBean_;
-    private final ConcurrentMap<String, MethodStats> data_ = new ConcurrentHashMap<>();
-    private final AtomicLong totalThreadCPUTime_ = new AtomicLong(0);
+    public static final int DEFAULT_SAMPLE_DEPTH = 128;
 
+    /**
+     * Which samples are aggregated
+     */
+    public enum Aggregation {
+        /**
+         * all samples since the profiling started
+         */
+        CUMULATIVE,
+        /**
+         * the samples of the sliding window only
+         */
+        WINDOW,
+        /**
+         * all samples, exponentially decayed by their age
+         */
+        DECAYED
+    }
 
-    //TODO: these exception list should be expanded to the most common 3rd-party library packages
-    private final List<String> filter = Arrays
-            .asList("org.eclipse.", "org.apache.", "java.", "sun.", "com.sun.", "javax.",
-                    "oracle.", "com.trilead.", "org.junit.", "org.mockito.",
-                    "org.hibernate.", "com.ibm.", "com.caucho.", "jdk.internal.reflect.", "io.netty.");
-
-    private final ConcurrentMap<Long, Long> threadCPUTime = new ConcurrentHashMap<>();
+    private final ThreadMXBean threadMxBean_;
+    private final ProxyClient proxyClient_;
+    private volatile boolean cpuActiveOnly_ = true;
+    private volatile int sampleDepth_ = DEFAULT_SAMPLE_DEPTH;
+    private final ThreadCpuBaseline baseline_ = new ThreadCpuBaseline();
+    private long sampleNanos_ = 0;
+    // start of the previous sample, 0 before the first sample
+    private long lastSampleStart_ = 0;
+    // wall time covered by the samples which attributed cpu time
+    private long sampledWallNanos_ = 0;
+    private long sampleCount_ = 0;
+    private int lastSampledThreads_ = 0;
+    private int lastTotalThreads_ = 0;
+    private final FrameDictionary frames_ = new FrameDictionary();
+    // cpu time per frame id
+    private long[] hits_ = new long[1024];
+    private long totalThreadCPUTime_ = 0;
+    private WindowedCounters windowed_ = new WindowedCounters();
+    private CallTree callTree_ = null;
+    // reused buffer for the frame ids of a stack, outermost frame first
+    private int[] stackFrameIds_ = new int[256];
+    // reused buffer for the frame ids of a sample, innermost frame first
+    private int[] sampleFrameIds_ = new int[256];
+    private SamplingAgentMBean agent_ = null;
+    // local frame id per frame id of the agent
+    private int[] agentFrameIds_ = new int[1024];
+    private int agentFrameCount_ = 0;
+    // the agent instance which assigned the frame ids, 0 if none yet
+    private long agentInstanceId_ = 0;
+    private JfrRecording jfr_ = null;
+    // cpu time represented by a jfr execution sample
+    private long jfrPeriodNanos_ = 0;
+    private SampleRecorder recorder_ = null;
+    private PackageFilter filter_ = PackageFilter.withDefaultExcludes();
+    // cached filter decision per frame id
+    private byte[] filterDecisions_ = new byte[1024];
+    private static final byte UNDECIDED = 0;
+    private static final byte FILTERED = 1;
+    private static final byte NOT_FILTERED = 2;
+    private static final byte IDLE = 3;
 
-    private final AtomicLong updateCount_ = new AtomicLong(0);
+    private long updateCount_ = 0;
 
     /**
      * @param threadMxBean
@@ -63,63 +139,652 @@ public class CPUSampler {
     public CPUSampler(VMInfo vmInfo) {
         super();
         threadMxBean_ = vmInfo.getThreadMXBean();
+        proxyClient_ = vmInfo.getProxyClient();
+    }
+
+    /**
+     * Creates a sampler without a target jvm, which is fed by {@link #replay(SampleReplay)}.
+     */
+    public CPUSampler() {
+        super();
+        threadMxBean_ = null;
+        proxyClient_ = null;
     }
 
     public List<MethodStats> getTop(int limit) {
-        ArrayList<MethodStats> statList = new ArrayList<MethodStats>(data_.values());
+        return getTop(limit, Aggregation.CUMULATIVE);
+    }
+
+    public synchronized List<MethodStats> getTop(int limit, Aggregation aggregation) {
+        ArrayList<MethodStats> statList = new ArrayList<MethodStats>();
+        for (int id = 0; id < frames_.size(); id++) {
+            long hits;
+            if (aggregation == Aggregation.WINDOW) {
+                hits = windowed_.getWindowValue(id);
+            } else if (aggregation == Aggregation.DECAYED) {
+                hits = Math.round(windowed_.getDecayedValue(id));
+            } else {
+                hits = hits_[id];
+            }
+            if (hits > 0) {
+                statList.add(new MethodStats(frames_.getClassName(id), frames_.getMethodName(id),
+                        frames_.getLineNumber(id), hits));
+            }
+        }
         Collections.sort(statList);
         return statList.subList(0, Math.min(limit, statList.size()));
     }
 
-    public long getTotal() {
-        return totalThreadCPUTime_.get();
+    /**
+     * @param callTreeEnabled if true, the complete stacks are aggregated in a call tree (in addition)
+     */
+    public synchronized void setCallTreeEnabled(boolean callTreeEnabled) {
+        callTree_ = callTreeEnabled ? new CallTree() : null;
     }
 
+    public synchronized boolean isCallTreeEnabled() {
+        return callTree_ != null;
+    }
+
+    /**
+     * @param inverted if true, the bottom-up (callers) view is returned
+     * @return a snapshot of the call tree or null, if not enabled
+     */
+    public synchronized CallTree getCallTree(boolean inverted) {
+        if (callTree_ == null) {
+            return null;
+        }
+        return inverted ? callTree_.invert() : callTree_.copy();
+    }
+
+    /**
+     * Writes the call tree in the folded stacks format (in ms of cpu time),
+     * which can be converted to a flame graph.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public synchronized void writeFoldedStacks(Writer writer) throws IOException {
+        if (callTree_ != null) {
+            callTree_.writeFolded(frames_, writer, 1000 * 1000);
+        }
+    }
+
+    /**
+     * Resolves a frame id of the call tree.
+     *
+     * @param frameId
+     * @return
+     */
+    public synchronized StackTraceElement getFrame(int frameId) {
+        return new StackTraceElement(frames_.getClassName(frameId), frames_.getMethodName(frameId),
+                null, frames_.getLineNumber(frameId));
+    }
+
+    public synchronized long getTotal() {
+        return totalThreadCPUTime_;
+    }
+
+    /**
+     * @param aggregation
+     * @return the attributed cpu time (in ns) of the given aggregation
+     */
+    public synchronized long getTotal(Aggregation aggregation) {
+        if (aggregation == Aggregation.WINDOW) {
+            return windowed_.getWindowTotal();
+        } else if (aggregation == Aggregation.DECAYED) {
+            return Math.round(windowed_.getDecayedTotal());
+        }
+        return totalThreadCPUTime_;
+    }
+
+    /**
+     * @param aggregation
+     * @return the sampled wall time (in ns) of the given aggregation
+     */
+    public synchronized long getSampledWallTime(Aggregation aggregation) {
+        if (aggregation == Aggregation.WINDOW) {
+            return windowed_.getWindowWallTime();
+        } else if (aggregation == Aggregation.DECAYED) {
+            return Math.round(windowed_.getDecayedWallTime());
+        }
+        return sampledWallNanos_;
+    }
+
+    /**
+     * Sets the duration of the sliding window, discarding the recent samples.
+     * The half-life of the decayed aggregation is a quarter of the window.
+     *
+     * @param windowSeconds
+     */
+    public synchronized void setWindow(double windowSeconds) {
+        windowed_ = new WindowedCounters(windowSeconds, WindowedCounters.DEFAULT_BUCKETS,
+                windowSeconds / 4);
+    }
+
+    /**
+     * Takes a sample, must not be called concurrently.
+     *
+     * @throws Exception
+     */
     public void update() throws Exception {
-        boolean samplesAcquired = false;
-        for (ThreadInfo ti : threadMxBean_.dumpAllThreads(false, false)) {
-            long cpuTime = threadMxBean_.getThreadCpuTime(ti.getThreadId());
-            threadCPUTime.putIfAbsent(ti.getThreadId(), cpuTime);
-            Long tCPUTime = threadCPUTime.get(ti.getThreadId());
-            long deltaCpuTime = (cpuTime - tCPUTime);
-            if (ti.getStackTrace().length > 0 && ti.getThreadState() == State.RUNNABLE) {
-                for (StackTraceElement stElement : ti.getStackTrace()) {
-                    if (isReallySleeping(stElement)) {
-                        break;
+        long start = System.nanoTime();
+        if (agent_ != null) {
+            updateFromAgent(start);
+            return;
+        }
+        if (jfr_ != null) {
+            updateFromJfr(start);
+            return;
+        }
+        ThreadInfo[] threadInfos;
+        long[] deltaCpuTimes;
+        int totalThreads;
+        if (cpuActiveOnly_ && threadMxBean_.isThreadCpuTimeSupported()) {
+            long[] tids = threadMxBean_.getAllThreadIds();
+            long[] cpuTimes = proxyClient_.getThreadCpuTimes(tids);
+            long[] activeTids = new long[tids.length];
+            deltaCpuTimes = new long[tids.length];
+            int active = 0;
+            for (int i = 0; i < tids.length; i++) {
+                long deltaCpuTime = baseline_.update(tids[i], cpuTimes[i]);
+                if (deltaCpuTime > 0) {
+                    activeTids[active] = tids[i];
+                    deltaCpuTimes[active] = deltaCpuTime;
+                    active++;
+                }
+            }
+            baseline_.swap();
+            threadInfos = active == 0 ? new ThreadInfo[0]
+                    : threadMxBean_.getThreadInfo(Arrays.copyOf(activeTids, active), sampleDepth_);
+            totalThreads = tids.length;
+        } else {
+            threadInfos = threadMxBean_.dumpAllThreads(false, false);
+            deltaCpuTimes = new long[threadInfos.length];
+            for (int i = 0; i < threadInfos.length; i++) {
+                long tid = threadInfos[i].getThreadId();
+                deltaCpuTimes[i] = baseline_.update(tid, threadMxBean_.getThreadCpuTime(tid));
+            }
+            baseline_.swap();
+            totalThreads = threadInfos.length;
+        }
+
+        synchronized (this) {
+            windowed_.advance(start);
+            recordUpdate(start);
+            boolean samplesAcquired = false;
+            for (int i = 0; i < threadInfos.length; i++) {
+                ThreadInfo ti = threadInfos[i];
+                long deltaCpuTime = deltaCpuTimes[i];
+                if (ti == null || deltaCpuTime <= 0) {
+                    // thread has terminated in the meantime or was idle
+                    continue;
+                }
+                if (ti.getThreadState() == State.RUNNABLE) {
+                    // getStackTrace() returns a copy on every call
+                    int length = internStack(ti.getStackTrace());
+                    samplesAcquired |= addStack(ti.getThreadId(), sampleFrameIds_, length, deltaCpuTime);
+                }
+            }
+            finishSample(start, System.nanoTime(), samplesAcquired);
+            lastSampledThreads_ = threadInfos.length;
+            lastTotalThreads_ = totalThreads;
+        }
+    }
+
+    /**
+     * Fetches the samples aggregated by the agent since the previous update.
+     *
+     * @param start
+     */
+    private void updateFromAgent(long start) {
+        long[] samples = agent_.drainSamples();
+        long instanceId = samples[0];
+        if (instanceId != agentInstanceId_) {
+            // the agent has been restarted, its frame ids start at 0 again
+            synchronized (this) {
+                agentInstanceId_ = instanceId;
+                agentFrameCount_ = 0;
+            }
+        }
+        int maxFrameId = -1;
+        for (int i = 1; i < samples.length; i += 2 + (int) samples[i + 1]) {
+            for (int j = 0; j < samples[i + 1]; j++) {
+                maxFrameId = Math.max(maxFrameId, (int) samples[i + 2 + j]);
+            }
+        }
+        // resolve the frames the agent has interned since the previous update
+        String[] newFrames = null;
+        if (maxFrameId >= agentFrameCount_) {
+            newFrames = agent_.getFrames(agentFrameCount_);
+            if (agent_.getInstanceId() != instanceId) {
+                Logger.getLogger("jvmtop").log(Level.FINE, "sampling agent restarted, samples skipped");
+                return;
+            }
+        }
+
+        synchronized (this) {
+            if (newFrames != null) {
+                for (int i = 0; i + 2 < newFrames.length; i += 3) {
+                    if (agentFrameCount_ == agentFrameIds_.length) {
+                        agentFrameIds_ = Arrays.copyOf(agentFrameIds_, agentFrameIds_.length * 2);
                     }
-                    if (isFiltered(stElement)) {
-                        continue;
+                    agentFrameIds_[agentFrameCount_++] = frames_.getId(new StackTraceElement(
+                            newFrames[i], newFrames[i + 1], null, Integer.parseInt(newFrames[i + 2])));
+                }
+            }
+            windowed_.advance(start);
+            recordUpdate(start);
+            boolean samplesAcquired = false;
+            int stacks = 0;
+            for (int i = 1; i < samples.length; stacks++) {
+                long deltaCpuTime = samples[i];
+                int length = (int) samples[i + 1];
+                if (length > sampleFrameIds_.length) {
+                    sampleFrameIds_ = new int[length];
+                }
+                boolean resolved = true;
+                for (int j = 0; j < length && resolved; j++) {
+                    long agentFrameId = samples[i + 2 + j];
+                    resolved = agentFrameId >= 0 && agentFrameId < agentFrameCount_;
+                    if (resolved) {
+                        sampleFrameIds_[j] = agentFrameIds_[(int) agentFrameId];
                     }
-                    String key = stElement.getClassName() + "." + stElement.getMethodName() + ":" + stElement.getLineNumber();
-                    data_.putIfAbsent(key, new MethodStats(stElement.getClassName(), stElement.getMethodName(), stElement.getLineNumber()));
-                    data_.get(key).getHits().addAndGet(deltaCpuTime);
-                    totalThreadCPUTime_.addAndGet(deltaCpuTime);
-                    samplesAcquired = true;
-                    break;
                 }
+                i += 2 + length;
+                if (!resolved) {
+                    Logger.getLogger("jvmtop").log(Level.FINE, "unknown frame id of the sampling agent, stack skipped");
+                    continue;
+                }
+                // the agent aggregates the stacks of all threads
+                samplesAcquired |= addStack(SampleRecorder.UNKNOWN_THREAD, sampleFrameIds_, length,
+                        deltaCpuTime);
+            }
+            finishSample(start, System.nanoTime(), samplesAcquired);
+            lastSampledThreads_ = stacks;
+        }
+    }
+
+    /**
+     * Fetches the execution samples recorded by the flight recorder since the previous update.
+     *
+     * @param start
+     * @throws IOException
+     */
+    private void updateFromJfr(long start) throws IOException {
+        List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+        jfr_.poll(event -> {
+            if (event.getStackTrace() != null) {
+                events.add(event);
+            }
+        });
+
+        synchronized (this) {
+            windowed_.advance(start);
+            recordUpdate(start);
+            boolean samplesAcquired = false;
+            for (RecordedEvent event : events) {
+                List<RecordedFrame> frames = event.getStackTrace().getFrames();
+                int length = frames.size();
+                if (length > sampleFrameIds_.length) {
+                    sampleFrameIds_ = new int[length];
+                }
+                for (int i = 0; i < length; i++) {
+                    RecordedMethod method = frames.get(i).getMethod();
+                    sampleFrameIds_[i] = frames_.getId(method.getType().getName(), method.getName(),
+                            frames.get(i).getLineNumber());
+                }
+                RecordedThread thread = event.getThread("sampledThread");
+                samplesAcquired |= addStack(thread == null ? SampleRecorder.UNKNOWN_THREAD
+                        : thread.getJavaThreadId(), sampleFrameIds_, length, jfrPeriodNanos_);
             }
+            finishSample(start, System.nanoTime(), samplesAcquired);
+            lastSampledThreads_ = events.size();
         }
+    }
+
+    /**
+     * Aggregates the samples of a recording, in addition to the samples taken so far.
+     * Timestamps are taken from the recording, so the sliding window ends with the recording.
+     *
+     * @param replay
+     * @throws IOException
+     */
+    public synchronized void replay(SampleReplay replay) throws IOException {
+        boolean[] samplesAcquired = {false};
+        long[] lastUpdate = {-1};
+        replay.replay(frames_, new SampleReplay.Listener() {
+            @Override
+            public void update(long timestamp) {
+                if (lastUpdate[0] != -1) {
+                    finishSample(lastUpdate[0], lastUpdate[0], samplesAcquired[0]);
+                }
+                windowed_.advance(timestamp);
+                recordUpdate(timestamp);
+                samplesAcquired[0] = false;
+                lastUpdate[0] = timestamp;
+            }
+
+            @Override
+            public void sample(long threadId, int[] frameIds, int length, long cpuTime) {
+                samplesAcquired[0] |= addStack(threadId, frameIds, length, cpuTime);
+            }
+        });
+        if (lastUpdate[0] != -1) {
+            finishSample(lastUpdate[0], lastUpdate[0], samplesAcquired[0]);
+        }
+    }
+
+    /**
+     * Records the wall time and the duration of a sample, must be called with the lock held.
+     */
+    private void finishSample(long start, long end, boolean samplesAcquired) {
         if (samplesAcquired) {
-            updateCount_.incrementAndGet();
+            updateCount_++;
+            if (lastSampleStart_ != 0) {
+                sampledWallNanos_ += start - lastSampleStart_;
+                windowed_.addWallTime(start - lastSampleStart_);
+            }
+        }
+        lastSampleStart_ = start;
+        sampleNanos_ += end - start;
+        sampleCount_++;
+        if (recorder_ != null) {
+            try {
+                recorder_.flushIfDue(end);
+            } catch (IOException e) {
+                recordingFailed(e);
+            }
         }
     }
 
-    public Long getUpdateCount() {
-        return updateCount_.get();
+    /**
+     * Writes all subsequent samples to the recorder.
+     *
+     * @param recorder the recorder or null, to stop recording
+     */
+    public synchronized void setRecorder(SampleRecorder recorder) {
+        recorder_ = recorder;
     }
 
-    private boolean isReallySleeping(StackTraceElement se) {
-        return se.getClassName().equals("sun.nio.ch.EPollArrayWrapper") &&
-                se.getMethodName().equals("epollWait");
+    public synchronized SampleRecorder getRecorder() {
+        return recorder_;
     }
 
-    public boolean isFiltered(StackTraceElement se) {
-        for (String filteredPackage : filter) {
-            if (se.getClassName().startsWith(filteredPackage)) {
-                return true;
+    private void recordUpdate(long timestamp) {
+        if (recorder_ != null) {
+            try {
+                recorder_.writeUpdate(timestamp);
+            } catch (IOException e) {
+                recordingFailed(e);
+            }
+        }
+    }
+
+    private void recordingFailed(IOException e) {
+        Logger.getLogger("jvmtop").log(Level.WARNING, "could not record samples, recording stopped", e);
+        try {
+            recorder_.close();
+        } catch (IOException closeException) {
+            e.addSuppressed(closeException);
+        }
+        recorder_ = null;
+    }
+
+    /**
+     * @return the elapsed wall time (in ns) of the sample intervals in which cpu time has been attributed
+     */
+    public synchronized long getSampledWallTime() {
+        return sampledWallNanos_;
+    }
+
+    /**
+     * @return the average duration of a sample in ms, including the remote calls
+     */
+    public synchronized double getAverageSampleMillis() {
+        return sampleCount_ == 0 ? 0 : sampleNanos_ / 1000000d / sampleCount_;
+    }
+
+    /**
+     * @return the number of threads whose stacks were fetched by the last sample
+     */
+    public synchronized int getLastSampledThreads() {
+        return lastSampledThreads_;
+    }
+
+    /**
+     * @return the number of threads of the jvm at the last sample
+     */
+    public synchronized int getLastTotalThreads() {
+        return lastTotalThreads_;
+    }
+
+    public boolean isCpuActiveOnly() {
+        return cpuActiveOnly_;
+    }
+
+    /**
+     * @param cpuActiveOnly if false, the stacks of all threads are fetched on every sample
+     */
+    public void setCpuActiveOnly(boolean cpuActiveOnly) {
+        cpuActiveOnly_ = cpuActiveOnly;
+    }
+
+    /**
+     * Samples inside the target jvm via the {@link SamplingAgent}, instead of
+     * fetching the stacks remotely. The sample rate and depth are configured
+     * when loading the agent.
+     *
+     * @param vmid
+     * @param rate samples per second
+     * @throws Exception if the agent could not be loaded
+     */
+    public void enableAgent(int vmid, double rate) throws Exception {
+        SamplingAgentMBean agent = AgentLoader.load(vmid, proxyClient_.getMBeanServerConnection(),
+                rate, sampleDepth_);
+        synchronized (this) {
+            agent_ = agent;
+            agentFrameCount_ = 0;
+            agentInstanceId_ = 0;
+        }
+    }
+
+    /**
+     * Samples via a Java Flight Recorder recording in the target jvm, which does not
+     * suffer from the safepoint bias of thread dumps. Each execution sample is
+     * weighted with the sampling period.
+     *
+     * @param rate execution samples per second and thread
+     * @throws Exception if the flight recorder is not available
+     */
+    public void enableJfr(double rate) throws Exception {
+        long periodMillis = Math.max(1, Math.round(1000 / rate));
+        JfrRecording recording = JfrRecording.forExecutionSamples(
+                proxyClient_.getMBeanServerConnection(), periodMillis);
+        synchronized (this) {
+            jfr_ = recording;
+            jfrPeriodNanos_ = periodMillis * 1000000;
+        }
+    }
+
+    /**
+     * @return the flight recording used for sampling or null, if not sampling via jfr
+     */
+    public synchronized JfrRecording getJfrRecording() {
+        return jfr_;
+    }
+
+    /**
+     * Stops sampling inside the target jvm and the recording, if enabled.
+     */
+    public void close() {
+        JfrRecording jfr;
+        SamplingAgentMBean agent;
+        synchronized (this) {
+            jfr = jfr_;
+            agent = agent_;
+            if (recorder_ != null) {
+                try {
+                    recorder_.close();
+                } catch (IOException e) {
+                    Logger.getLogger("jvmtop").log(Level.WARNING, "could not close the sample recording", e);
+                }
+                recorder_ = null;
+            }
+        }
+        if (jfr != null) {
+            jfr.close();
+        }
+        if (agent != null) {
+            try {
+                agent.stop();
+            } catch (Exception e) {
+                Logger.getLogger("jvmtop").log(Level.FINE, "could not stop the sampling agent", e);
+            }
+        }
+    }
+
+    /**
+     * @return the agent sampling inside the target jvm or null, if sampling remotely
+     */
+    public synchronized SamplingAgentMBean getAgent() {
+        return agent_;
+    }
+
+    public int getSampleDepth() {
+        return sampleDepth_;
+    }
+
+    /**
+     * @param sampleDepth maximum number of frames fetched per stack (only applies to cpu-active sampling)
+     */
+    public void setSampleDepth(int sampleDepth) {
+        sampleDepth_ = sampleDepth;
+    }
+
+    /**
+     * Interns the frames of a stack into the sample buffer.
+     *
+     * @param stackTrace
+     * @return the number of frames
+     */
+    private int internStack(StackTraceElement[] stackTrace) {
+        int length = stackTrace.length;
+        if (length > sampleFrameIds_.length) {
+            sampleFrameIds_ = new int[length];
+        }
+        for (int i = 0; i < length; i++) {
+            sampleFrameIds_[i] = frames_.getId(stackTrace[i]);
+        }
+        return length;
+    }
+
+    /**
+     * Attributes the cpu time to the first frame of the stack which is not filtered
+     * and adds the complete stack to the call tree and the recording, if enabled.
+     *
+     * @param threadId
+     * @param frameIds     the frame ids, starting with the innermost frame
+     * @param length       number of valid entries in frameIds
+     * @param deltaCpuTime
+     * @return true if the cpu time has been attributed
+     */
+    private boolean addStack(long threadId, int[] frameIds, int length, long deltaCpuTime) {
+        if (recorder_ != null) {
+            try {
+                recorder_.writeSample(threadId, frames_, frameIds, length, deltaCpuTime);
+            } catch (IOException e) {
+                recordingFailed(e);
             }
         }
+        if (callTree_ != null) {
+            addCallTreeSample(frameIds, length, deltaCpuTime);
+        }
+        for (int i = 0; i < length; i++) {
+            int id = frameIds[i];
+            byte decision = getFilterDecision(id);
+            if (decision == IDLE) {
+                return false;
+            }
+            if (decision == FILTERED) {
+                continue;
+            }
+            if (id >= hits_.length) {
+                hits_ = Arrays.copyOf(hits_, Math.max(id + 1, hits_.length * 2));
+            }
+            hits_[id] += deltaCpuTime;
+            totalThreadCPUTime_ += deltaCpuTime;
+            windowed_.add(id, deltaCpuTime);
+            return true;
+        }
         return false;
     }
-}
 
+    /**
+     * Adds the complete stack to the call tree.
+     *
+     * @param frameIds     the frame ids, starting with the innermost frame
+     * @param length       number of valid entries in frameIds
+     * @param deltaCpuTime
+     */
+    private void addCallTreeSample(int[] frameIds, int length, long deltaCpuTime) {
+        if (length == 0 || getFilterDecision(frameIds[0]) == IDLE) {
+            return;
+        }
+        if (length > stackFrameIds_.length) {
+            stackFrameIds_ = new int[length];
+        }
+        for (int i = 0; i < length; i++) {
+            stackFrameIds_[length - 1 - i] = frameIds[i];
+        }
+        callTree_.add(stackFrameIds_, length, deltaCpuTime);
+    }
+
+    public synchronized Long getUpdateCount() {
+        return updateCount_;
+    }
+
+    private boolean isReallySleeping(String className, String methodName) {
+        return className.equals("sun.nio.ch.EPollArrayWrapper") &&
+                methodName.equals("epollWait");
+    }
+
+    public boolean isFiltered(StackTraceElement se) {
+        return filter_.isFiltered(se.getClassName());
+    }
+
+    public synchronized PackageFilter getFilter() {
+        return filter_;
+    }
+
+    /**
+     * @param filter decides which frames are skipped when attributing cpu time,
+     *               only applies to subsequent samples
+     */
+    public synchronized void setFilter(PackageFilter filter) {
+        filter_ = filter;
+        Arrays.fill(filterDecisions_, UNDECIDED);
+    }
+
+    /**
+     * @param frameId
+     * @return the (cached) filter decision of the frame
+     */
+    private byte getFilterDecision(int frameId) {
+        if (frameId >= filterDecisions_.length) {
+            filterDecisions_ = Arrays.copyOf(filterDecisions_,
+                    Math.max(frameId + 1, filterDecisions_.length * 2));
+        }
+        byte decision = filterDecisions_[frameId];
+        if (decision == UNDECIDED) {
+            String className = frames_.getClassName(frameId);
+            if (isReallySleeping(className, frames_.getMethodName(frameId))) {
+                decision = IDLE;
+            } else {
+                decision = filter_.isFiltered(className) ? FILTERED : NOT_FILTERED;
+            }
+            filterDecisions_[frameId] = decision;
+        }
+        return decision;
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Prefix tree of sampled call stacks, storing the self and total cpu time per node.
+ * <p>
+ * A node represents a frame (as id of a {@link FrameDictionary}) reached via
+ * a specific call path, the root (node 0) represents all threads.
+ * All node data is kept in primitive arrays.
+ * <p>
+ * The number of nodes is bounded: if the limit is reached, the coldest subtrees
+ * are pruned and their cpu time is added to the self time of their parent,
+ * so that totals stay correct and memory does not grow with the profiling duration.
+ * <p>
+ * Not thread-safe.
+ */
+public class CallTree {
+
+    public static final int DEFAULT_MAX_NODES = 50000;
+
+    public static final int ROOT = 0;
+
+    private static final int NONE = -1;
+
+    /**
+     * Initial fraction of the total cpu time below which subtrees are pruned,
+     * doubled until enough nodes are removed
+     */
+    private static final double INITIAL_PRUNE_RATIO = 0.0001;
+
+    private final int maxNodes_;
+
+    private int[] frameIds_;
+
+    private int[] parents_;
+
+    private int[] firstChildren_;
+
+    private int[] nextSiblings_;
+
+    private long[] selfTimes_;
+
+    private long[] totalTimes_;
+
+    private int size_;
+
+    private long prunedNodes_ = 0;
+
+    public CallTree() {
+        this(DEFAULT_MAX_NODES);
+    }
+
+    /**
+     * @param maxNodes maximum number of nodes, before cold subtrees are pruned
+     */
+    public CallTree(int maxNodes) {
+        maxNodes_ = Math.max(maxNodes, 2);
+        allocate(Math.min(maxNodes_, 1024));
+        size_ = 1;
+        frameIds_[ROOT] = NONE;
+        parents_[ROOT] = NONE;
+        firstChildren_[ROOT] = NONE;
+        nextSiblings_[ROOT] = NONE;
+    }
+
+    /**
+     * Adds the cpu time of a sampled stack.
+     *
+     * @param frameIds the frame ids, starting with the outermost frame
+     * @param length   number of valid entries in frameIds
+     * @param cpuTime
+     */
+    public void add(int[] frameIds, int length, long cpuTime) {
+        if (size_ + length > maxNodes_) {
+            prune(size_ + length - maxNodes_);
+        }
+        int node = ROOT;
+        totalTimes_[ROOT] += cpuTime;
+        for (int i = 0; i < length; i++) {
+            int child = getOrAddChild(node, frameIds[i]);
+            if (child == NONE) {
+                // still full after pruning, attribute to the deepest known frame
+                break;
+            }
+            node = child;
+            totalTimes_[node] += cpuTime;
+        }
+        selfTimes_[node] += cpuTime;
+    }
+
+    /**
+     * @return an independent copy of this tree
+     */
+    public CallTree copy() {
+        CallTree copy = new CallTree(maxNodes_);
+        copy.allocate(size_);
+        System.arraycopy(frameIds_, 0, copy.frameIds_, 0, size_);
+        System.arraycopy(parents_, 0, copy.parents_, 0, size_);
+        System.arraycopy(firstChildren_, 0, copy.firstChildren_, 0, size_);
+        System.arraycopy(nextSiblings_, 0, copy.nextSiblings_, 0, size_);
+        System.arraycopy(selfTimes_, 0, copy.selfTimes_, 0, size_);
+        System.arraycopy(totalTimes_, 0, copy.totalTimes_, 0, size_);
+        copy.size_ = size_;
+        copy.prunedNodes_ = prunedNodes_;
+        return copy;
+    }
+
+    /**
+     * Creates the bottom-up view of this tree: its first level consists of the frames
+     * consuming cpu time themselves, their children are their callers.
+     *
+     * @return
+     */
+    public CallTree invert() {
+        CallTree inverted = new CallTree(maxNodes_);
+        int[] path = new int[16];
+        for (int node = 1; node < size_; node++) {
+            if (selfTimes_[node] == 0) {
+                continue;
+            }
+            int length = 0;
+            for (int n = node; n != ROOT; n = parents_[n]) {
+                if (length == path.length) {
+                    path = Arrays.copyOf(path, length * 2);
+                }
+                path[length++] = frameIds_[n];
+            }
+            inverted.add(path, length, selfTimes_[node]);
+        }
+        return inverted;
+    }
+
+    /**
+     * Writes the tree in the "folded stacks" format of Brendan Gregg's flame graph tools:
+     * one line per call path, frames separated by semicolons, followed by its self time.
+     *
+     * @param frames dictionary to resolve the frame ids
+     * @param writer
+     * @param unit   the self times are divided by this value (e.g. 1000000 for milliseconds)
+     * @throws IOException
+     */
+    public void writeFolded(FrameDictionary frames, Writer writer, long unit) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int[] path = new int[16];
+        for (int node = 1; node < size_; node++) {
+            long value = selfTimes_[node] / unit;
+            if (value == 0) {
+                continue;
+            }
+            int length = 0;
+            for (int n = node; n != ROOT; n = parents_[n]) {
+                if (length == path.length) {
+                    path = Arrays.copyOf(path, length * 2);
+                }
+                path[length++] = n;
+            }
+            line.setLength(0);
+            for (int i = length - 1; i >= 0; i--) {
+                int frameId = frameIds_[path[i]];
+                line.append(frames.getClassName(frameId)).append('.')
+                        .append(frames.getMethodName(frameId));
+                line.append(i > 0 ? ';' : ' ');
+            }
+            line.append(value).append('\n');
+            writer.write(line.toString());
+        }
+    }
+
+    /**
+     * @return the children of the given node, ordered by their total cpu time (descending)
+     */
+    public int[] getChildren(int node) {
+        int count = 0;
+        for (int child = firstChildren_[node]; child != NONE; child = nextSiblings_[child]) {
+            count++;
+        }
+        Integer[] children = new Integer[count];
+        count = 0;
+        for (int child = firstChildren_[node]; child != NONE; child = nextSiblings_[child]) {
+            children[count++] = child;
+        }
+        Arrays.sort(children, (a, b) -> Long.compare(totalTimes_[b], totalTimes_[a]));
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = children[i];
+        }
+        return result;
+    }
+
+    public int getFrameId(int node) {
+        return frameIds_[node];
+    }
+
+    public long getSelfTime(int node) {
+        return selfTimes_[node];
+    }
+
+    public long getTotalTime(int node) {
+        return totalTimes_[node];
+    }
+
+    /**
+     * @return the number of nodes, including the root
+     */
+    public int size() {
+        return size_;
+    }
+
+    /**
+     * @return the number of nodes removed by pruning so far
+     */
+    public long getPrunedNodes() {
+        return prunedNodes_;
+    }
+
+    private int getOrAddChild(int node, int frameId) {
+        for (int child = firstChildren_[node]; child != NONE; child = nextSiblings_[child]) {
+            if (frameIds_[child] == frameId) {
+                return child;
+            }
+        }
+        if (size_ == frameIds_.length) {
+            if (size_ >= maxNodes_) {
+                return NONE;
+            }
+            allocate(Math.min(maxNodes_, frameIds_.length * 2));
+        }
+        int child = size_++;
+        frameIds_[child] = frameId;
+        parents_[child] = node;
+        firstChildren_[child] = NONE;
+        nextSiblings_[child] = firstChildren_[node];
+        firstChildren_[node] = child;
+        selfTimes_[child] = 0;
+        totalTimes_[child] = 0;
+        return child;
+    }
+
+    /**
+     * Removes the coldest subtrees until at least the given number of nodes is free.
+     * At least a quarter of the nodes is freed, so that pruning does not happen on every sample.
+     */
+    private void prune(int required) {
+        int target = size_ - Math.max(required, maxNodes_ / 4);
+        double ratio = INITIAL_PRUNE_RATIO;
+        while (true) {
+            long threshold = (long) Math.ceil(totalTimes_[ROOT] * ratio);
+            if (countRetained(threshold) <= target || ratio >= 1) {
+                compact(threshold);
+                return;
+            }
+            ratio *= 2;
+        }
+    }
+
+    private int countRetained(long threshold) {
+        // parents always have lower ids than their children
+        boolean[] retained = new boolean[size_];
+        retained[ROOT] = true;
+        int count = 1;
+        for (int node = 1; node < size_; node++) {
+            retained[node] = retained[parents_[node]] && totalTimes_[node] >= threshold;
+            if (retained[node]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Rebuilds the arrays, keeping only subtrees whose total time reaches the threshold.
+     */
+    private void compact(long threshold) {
+        int[] newIds = new int[size_];
+        int newSize = 0;
+        newIds[ROOT] = newSize++;
+        for (int node = 1; node < size_; node++) {
+            int parent = parents_[node];
+            if (newIds[parent] != NONE && totalTimes_[node] >= threshold) {
+                newIds[node] = newSize++;
+            } else {
+                newIds[node] = NONE;
+                if (newIds[parent] != NONE) {
+                    // keep the cpu time of the pruned subtree
+                    selfTimes_[parent] += totalTimes_[node];
+                }
+            }
+        }
+
+        // ids are assigned in ascending order, so nodes can be moved in place
+        for (int node = 1; node < size_; node++) {
+            int newId = newIds[node];
+            if (newId == NONE) {
+                continue;
+            }
+            frameIds_[newId] = frameIds_[node];
+            parents_[newId] = newIds[parents_[node]];
+            selfTimes_[newId] = selfTimes_[node];
+            totalTimes_[newId] = totalTimes_[node];
+        }
+        prunedNodes_ += size_ - newSize;
+        size_ = newSize;
+
+        // rebuild the child lists
+        Arrays.fill(firstChildren_, 0, size_, NONE);
+        for (int node = size_ - 1; node >= 1; node--) {
+            nextSiblings_[node] = firstChildren_[parents_[node]];
+            firstChildren_[parents_[node]] = node;
+        }
+        nextSiblings_[ROOT] = NONE;
+    }
+
+    private void allocate(int capacity) {
+        if (frameIds_ == null) {
+            frameIds_ = new int[capacity];
+            parents_ = new int[capacity];
+            firstChildren_ = new int[capacity];
+            nextSiblings_ = new int[capacity];
+            selfTimes_ = new long[capacity];
+            totalTimes_ = new long[capacity];
+        } else {
+            frameIds_ = Arrays.copyOf(frameIds_, capacity);
+            parents_ = Arrays.copyOf(parents_, capacity);
+            firstChildren_ = Arrays.copyOf(firstChildren_, capacity);
+            nextSiblings_ = Arrays.copyOf(nextSiblings_, capacity);
+            selfTimes_ = Arrays.copyOf(selfTimes_, capacity);
+            totalTimes_ = Arrays.copyOf(totalTimes_, capacity);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+/**
+ * Snapshot of the bytes sampled for an allocated class.
+ */
+public class ClassAllocationStats implements Comparable<ClassAllocationStats> {
+
+    private final String className_;
+
+    private final long bytes_;
+
+    public ClassAllocationStats(String className, long bytes) {
+        className_ = className;
+        bytes_ = bytes;
+    }
+
+    /**
+     * Compares by the allocated bytes (descending)
+     */
+    @Override
+    public int compareTo(ClassAllocationStats o) {
+        return Long.compare(o.bytes_, bytes_);
+    }
+
+    public String getClassName() {
+        return className_;
+    }
+
+    public long getBytes() {
+        return bytes_;
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+
+/**
+ * A class histogram of a jvm heap, stored column-wise:
+ * the class names, instance counts and sizes of the entry at index i are in the i-th element
+ * of the respective column.
+ * <p>
+ * Class names are in Java notation (e.g. byte[] instead of [B), entries are in the order
+ * of the histogram output (i.e. descending by size).
+ * <p>
+ * Entries can be looked up by class name via a hash index, which is built on the first lookup,
+ * so joining two histograms is linear in their size. A class name may occur several times,
+ * once per class loader which has loaded a class of that name.
+ */
+public class ClassHistogram {
+
+    private String[] classNames_;
+
+    private long[] instances_;
+
+    private long[] bytes_;
+
+    private int size_ = 0;
+
+    private long totalInstances_ = 0;
+
+    private long totalBytes_ = 0;
+
+    private final long timestamp_;
+
+    // hash index slots, containing entry indices; null until the first lookup
+    private int[] slots_ = null;
+
+    /**
+     * @param timestamp in ns as returned by {@link System#nanoTime()}
+     */
+    public ClassHistogram(long timestamp) {
+        this(timestamp, 1024);
+    }
+
+    /**
+     * @param timestamp in ns as returned by {@link System#nanoTime()}
+     * @param capacity  expected number of classes
+     */
+    public ClassHistogram(long timestamp, int capacity) {
+        timestamp_ = timestamp;
+        capacity = Math.max(capacity, 16);
+        classNames_ = new String[capacity];
+        instances_ = new long[capacity];
+        bytes_ = new long[capacity];
+    }
+
+    /**
+     * Appends an entry.
+     *
+     * @param className
+     * @param instances
+     * @param bytes
+     */
+    public void add(String className, long instances, long bytes) {
+        if (size_ == classNames_.length) {
+            int capacity = size_ * 2;
+            classNames_ = Arrays.copyOf(classNames_, capacity);
+            instances_ = Arrays.copyOf(instances_, capacity);
+            bytes_ = Arrays.copyOf(bytes_, capacity);
+        }
+        slots_ = null;
+        classNames_[size_] = className;
+        instances_[size_] = instances;
+        bytes_[size_] = bytes;
+        size_++;
+        totalInstances_ += instances;
+        totalBytes_ += bytes;
+    }
+
+    /**
+     * @return the number of classes
+     */
+    public int size() {
+        return size_;
+    }
+
+    public String getClassName(int index) {
+        return classNames_[index];
+    }
+
+    public long getInstances(int index) {
+        return instances_[index];
+    }
+
+    public long getBytes(int index) {
+        return bytes_[index];
+    }
+
+    /**
+     * @param className
+     * @return the index of the (first) entry of the given class or -1, if not contained
+     */
+    public int indexOf(String className) {
+        return indexOf(className, 0);
+    }
+
+    /**
+     * @param className
+     * @param occurrence 0 for the first entry of the given class, 1 for the second, ...
+     * @return the index of the entry or -1, if the class has fewer entries
+     */
+    public int indexOf(String className, int occurrence) {
+        if (slots_ == null) {
+            buildIndex();
+        }
+        int mask = slots_.length - 1;
+        // the entries were inserted in index order, so they are probed in that order
+        for (int slot = hash(className) & mask; slots_[slot] != -1; slot = (slot + 1) & mask) {
+            int index = slots_[slot];
+            if (classNames_[index].equals(className) && occurrence-- == 0) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void buildIndex() {
+        // load factor below 0.5
+        int capacity = Integer.highestOneBit(Math.max(size_, 8) * 2) * 2;
+        slots_ = new int[capacity];
+        Arrays.fill(slots_, -1);
+        int mask = capacity - 1;
+        for (int index = 0; index < size_; index++) {
+            int slot = hash(classNames_[index]) & mask;
+            while (slots_[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            slots_[slot] = index;
+        }
+    }
+
+    private static int hash(String className) {
+        int hash = className.hashCode();
+        // spread the bits, as only the lower ones are used for the slot
+        return hash ^ (hash >>> 16);
+    }
+
+    public long getTotalInstances() {
+        return totalInstances_;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes_;
+    }
+
+    /**
+     * @return the time the histogram was taken, in ns as returned by {@link System#nanoTime()}
+     */
+    public long getTimestamp() {
+        return timestamp_;
+    }
+}
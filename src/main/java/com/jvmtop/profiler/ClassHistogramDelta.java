@@ -0,0 +1,185 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes between two class histograms of the same jvm.
+ * <p>
+ * The histograms are joined by class name via the hash index of the previous one.
+ * Classes whose name occurs several times (one entry per class loader) are joined by
+ * their occurrence, i.e. the n-th entry of a name with the n-th entry of the previous histogram.
+ * The deltas are stored column-wise, indexed like the entries of the current histogram.
+ * Classes which are only contained in the previous histogram are listed as disappeared.
+ */
+public class ClassHistogramDelta {
+
+    private final ClassHistogram current_;
+
+    private final long[] bytesDeltas_;
+
+    private final long[] instancesDeltas_;
+
+    private final boolean[] appeared_;
+
+    private final List<String> disappeared_;
+
+    private final long disappearedBytes_;
+
+    private final int appearedCount_;
+
+    private final double seconds_;
+
+    private ClassHistogramDelta(ClassHistogram current, long[] bytesDeltas, long[] instancesDeltas,
+                                boolean[] appeared, int appearedCount, List<String> disappeared,
+                                long disappearedBytes, double seconds) {
+        current_ = current;
+        bytesDeltas_ = bytesDeltas;
+        instancesDeltas_ = instancesDeltas;
+        appeared_ = appeared;
+        appearedCount_ = appearedCount;
+        disappeared_ = Collections.unmodifiableList(disappeared);
+        disappearedBytes_ = disappearedBytes;
+        seconds_ = seconds;
+    }
+
+    /**
+     * @param previous
+     * @param current
+     * @return the changes from the previous to the current histogram
+     */
+    public static ClassHistogramDelta compute(ClassHistogram previous, ClassHistogram current) {
+        int size = current.size();
+        long[] bytesDeltas = new long[size];
+        long[] instancesDeltas = new long[size];
+        boolean[] appeared = new boolean[size];
+        boolean[] matched = new boolean[previous.size()];
+        int appearedCount = 0;
+        // occurrences of the names seen more than once so far
+        Map<String, Integer> occurrences = null;
+        for (int i = 0; i < size; i++) {
+            String className = current.getClassName(i);
+            int occurrence = 0;
+            if (current.indexOf(className) != i) {
+                if (occurrences == null) {
+                    occurrences = new HashMap<String, Integer>();
+                }
+                Integer seen = occurrences.get(className);
+                occurrence = seen == null ? 1 : seen + 1;
+                occurrences.put(className, occurrence);
+            }
+            int previousIndex = previous.indexOf(className, occurrence);
+            if (previousIndex == -1) {
+                appeared[i] = true;
+                appearedCount++;
+                bytesDeltas[i] = current.getBytes(i);
+                instancesDeltas[i] = current.getInstances(i);
+            } else {
+                matched[previousIndex] = true;
+                bytesDeltas[i] = current.getBytes(i) - previous.getBytes(previousIndex);
+                instancesDeltas[i] = current.getInstances(i) - previous.getInstances(previousIndex);
+            }
+        }
+        List<String> disappeared = new ArrayList<String>();
+        long disappearedBytes = 0;
+        for (int i = 0; i < matched.length; i++) {
+            if (!matched[i]) {
+                disappeared.add(previous.getClassName(i));
+                disappearedBytes += previous.getBytes(i);
+            }
+        }
+        double seconds = (current.getTimestamp() - previous.getTimestamp()) / 1000000000d;
+        return new ClassHistogramDelta(current, bytesDeltas, instancesDeltas, appeared, appearedCount,
+                disappeared, disappearedBytes, seconds);
+    }
+
+    /**
+     * @return the histogram the deltas are indexed by
+     */
+    public ClassHistogram getCurrent() {
+        return current_;
+    }
+
+    /**
+     * @param index entry index of the current histogram
+     * @return the change of the size in bytes, the complete size if the class appeared
+     */
+    public long getBytesDelta(int index) {
+        return bytesDeltas_[index];
+    }
+
+    /**
+     * @param index entry index of the current histogram
+     * @return the change of the instance count, the complete count if the class appeared
+     */
+    public long getInstancesDelta(int index) {
+        return instancesDeltas_[index];
+    }
+
+    /**
+     * @param index entry index of the current histogram
+     * @return the change of the size since the previous histogram, in bytes per second
+     */
+    public double getBytesPerSecond(int index) {
+        return seconds_ > 0 ? bytesDeltas_[index] / seconds_ : 0;
+    }
+
+    /**
+     * @param index entry index of the current histogram
+     * @return true if the class is not contained in the previous histogram
+     */
+    public boolean isAppeared(int index) {
+        return appeared_[index];
+    }
+
+    /**
+     * @return the number of classes which are not contained in the previous histogram
+     */
+    public int getAppearedCount() {
+        return appearedCount_;
+    }
+
+    /**
+     * @return the classes which are only contained in the previous histogram
+     */
+    public List<String> getDisappeared() {
+        return disappeared_;
+    }
+
+    /**
+     * @return the size of the disappeared classes in the previous histogram
+     */
+    public long getDisappearedBytes() {
+        return disappearedBytes_;
+    }
+
+    /**
+     * @return the time between the histograms in seconds
+     */
+    public double getElapsedSeconds() {
+        return seconds_;
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses the class histogram output of a jvm (as printed by GC.class_histogram or
+ * the heapHisto attach operation) into a {@link ClassHistogram}:
+ * <pre>
+ *  num     #instances         #bytes  class name (module)
+ * -------------------------------------------------------
+ *    1:        119427       73574256  [B (java.base@17.0.9)
+ * </pre>
+ * The bytes of the stream are parsed directly, without regular expressions and without
+ * creating a String per line. Counts are parsed as long, so classes using more than 2 GiB are fine.
+ * Class names are interned in a hash table which is kept across histograms,
+ * so only classes which are seen for the first time allocate their name.
+ * The module column is ignored, lines which are not histogram entries are skipped.
+ * <p>
+ * Not thread-safe.
+ */
+public class ClassHistogramParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] buffer_ = new byte[BUFFER_SIZE];
+
+    // interned class names: hash table slots, containing indices of the names
+    private int[] slots_ = newSlots(INITIAL_CAPACITY * 2);
+
+    private byte[][] rawNames_ = new byte[INITIAL_CAPACITY][];
+
+    private String[] names_ = new String[INITIAL_CAPACITY];
+
+    private int[] hashes_ = new int[INITIAL_CAPACITY];
+
+    private int nameCount_ = 0;
+
+    private int lastSize_ = INITIAL_CAPACITY;
+
+    /**
+     * Parses the complete stream, but does not close it.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public ClassHistogram parse(InputStream in) throws IOException {
+        ClassHistogram histogram = new ClassHistogram(System.nanoTime(), lastSize_);
+        int length = 0;
+        while (true) {
+            if (length == buffer_.length) {
+                // a single line does not fit into the buffer
+                buffer_ = Arrays.copyOf(buffer_, buffer_.length * 2);
+            }
+            int read = in.read(buffer_, length, buffer_.length - length);
+            if (read == -1) {
+                if (length > 0) {
+                    parseLine(histogram, 0, length);
+                }
+                break;
+            }
+            length += read;
+
+            int lineStart = 0;
+            for (int i = lineStart; i < length; i++) {
+                if (buffer_[i] == '\n') {
+                    parseLine(histogram, lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            // keep the incomplete last line
+            length -= lineStart;
+            System.arraycopy(buffer_, lineStart, buffer_, 0, length);
+        }
+        lastSize_ = histogram.size();
+        return histogram;
+    }
+
+    /**
+     * Parses a line of the form "  num:  instances  bytes  classname (module)".
+     */
+    private void parseLine(ClassHistogram histogram, int start, int end) {
+        int pos = skipSpaces(start, end);
+        int numEnd = skipDigits(pos, end);
+        if (numEnd == pos || numEnd == end || buffer_[numEnd] != ':') {
+            return;
+        }
+        pos = skipSpaces(numEnd + 1, end);
+        int instancesEnd = skipDigits(pos, end);
+        if (instancesEnd == pos) {
+            return;
+        }
+        long instances = parseLong(pos, instancesEnd);
+        pos = skipSpaces(instancesEnd, end);
+        int bytesEnd = skipDigits(pos, end);
+        if (bytesEnd == pos) {
+            return;
+        }
+        long bytes = parseLong(pos, bytesEnd);
+        pos = skipSpaces(bytesEnd, end);
+        int nameEnd = pos;
+        while (nameEnd < end && !isSpace(buffer_[nameEnd])) {
+            nameEnd++;
+        }
+        if (nameEnd == pos) {
+            return;
+        }
+        histogram.add(intern(pos, nameEnd), instances, bytes);
+    }
+
+    private int skipSpaces(int pos, int end) {
+        while (pos < end && isSpace(buffer_[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int skipDigits(int pos, int end) {
+        while (pos < end && buffer_[pos] >= '0' && buffer_[pos] <= '9') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private long parseLong(int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (buffer_[i] - '0');
+        }
+        return value;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * @return the class name (in Java notation) of the given bytes
+     */
+    private String intern(int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = hash * 31 + buffer_[i];
+        }
+        hash ^= hash >>> 16;
+
+        int mask = slots_.length - 1;
+        int slot = hash & mask;
+        while (slots_[slot] != -1) {
+            int index = slots_[slot];
+            if (hashes_[index] == hash && Arrays.equals(rawNames_[index], 0, rawNames_[index].length,
+                    buffer_, start, end)) {
+                return names_[index];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int index = nameCount_++;
+        if (index == names_.length) {
+            int capacity = names_.length * 2;
+            rawNames_ = Arrays.copyOf(rawNames_, capacity);
+            names_ = Arrays.copyOf(names_, capacity);
+            hashes_ = Arrays.copyOf(hashes_, capacity);
+        }
+        rawNames_[index] = Arrays.copyOfRange(buffer_, start, end);
+        String name = new String(buffer_, start, end - start, StandardCharsets.UTF_8);
+        names_[index] = name.startsWith("[") ? HeapSampler.fromNativeType(name) : name;
+        hashes_[index] = hash;
+
+        // keep the load factor below 0.5
+        if (nameCount_ * 2 > slots_.length) {
+            slots_ = newSlots(slots_.length * 2);
+            mask = slots_.length - 1;
+            for (int i = 0; i < nameCount_; i++) {
+                int s = hashes_[i] & mask;
+                while (slots_[s] != -1) {
+                    s = (s + 1) & mask;
+                }
+                slots_[s] = i;
+            }
+        } else {
+            slots_[slot] = index;
+        }
+        return names_[index];
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        return slots;
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Interns stack frames (class, method and line number) to dense int ids,
+ * starting at 0, so that per-frame data can be kept in primitive arrays.
+ * <p>
+ * The frames of every sample are new (deserialized) objects, so the lookup
+ * compares their content using an open-addressing hash table.
+ * Looking up a known frame does not allocate.
+ * <p>
+ * Not thread-safe.
+ */
+public class FrameDictionary {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int NO_ID = -1;
+
+    // hash table slots, containing frame ids
+    private int[] slots_ = newSlots(INITIAL_CAPACITY * 2);
+
+    private String[] classNames_ = new String[INITIAL_CAPACITY];
+
+    private String[] methodNames_ = new String[INITIAL_CAPACITY];
+
+    private int[] lineNumbers_ = new int[INITIAL_CAPACITY];
+
+    private int[] hashes_ = new int[INITIAL_CAPACITY];
+
+    private int size_ = 0;
+
+    /**
+     * @param frame
+     * @return the id of the given frame, a new one if it has not been seen before
+     */
+    public int getId(StackTraceElement frame) {
+        return getId(frame.getClassName(), frame.getMethodName(), frame.getLineNumber());
+    }
+
+    /**
+     * @param className
+     * @param methodName
+     * @param lineNumber
+     * @return the id of the given frame, a new one if it has not been seen before
+     */
+    public int getId(String className, String methodName, int lineNumber) {
+        int hash = hash(className, methodName, lineNumber);
+
+        int mask = slots_.length - 1;
+        int slot = hash & mask;
+        while (slots_[slot] != NO_ID) {
+            int id = slots_[slot];
+            if (hashes_[id] == hash && lineNumbers_[id] == lineNumber
+                    && classNames_[id].equals(className) && methodNames_[id].equals(methodName)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(slot, hash, className, methodName, lineNumber);
+    }
+
+    /**
+     * @return the number of interned frames, all ids are lower than this
+     */
+    public int size() {
+        return size_;
+    }
+
+    public String getClassName(int id) {
+        return classNames_[id];
+    }
+
+    public String getMethodName(int id) {
+        return methodNames_[id];
+    }
+
+    public int getLineNumber(int id) {
+        return lineNumbers_[id];
+    }
+
+    private int add(int slot, int hash, String className, String methodName, int lineNumber) {
+        int id = size_++;
+        if (id == classNames_.length) {
+            int capacity = classNames_.length * 2;
+            classNames_ = Arrays.copyOf(classNames_, capacity);
+            methodNames_ = Arrays.copyOf(methodNames_, capacity);
+            lineNumbers_ = Arrays.copyOf(lineNumbers_, capacity);
+            hashes_ = Arrays.copyOf(hashes_, capacity);
+        }
+        classNames_[id] = className;
+        methodNames_[id] = methodName;
+        lineNumbers_[id] = lineNumber;
+        hashes_[id] = hash;
+
+        // keep the load factor below 0.5
+        if (size_ * 2 > slots_.length) {
+            rehash(slots_.length * 2);
+        } else {
+            slots_[slot] = id;
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        slots_ = newSlots(capacity);
+        int mask = capacity - 1;
+        for (int id = 0; id < size_; id++) {
+            int slot = hashes_[id] & mask;
+            while (slots_[slot] != NO_ID) {
+                slot = (slot + 1) & mask;
+            }
+            slots_[slot] = id;
+        }
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, NO_ID);
+        return slots;
+    }
+
+    private static int hash(String className, String methodName, int lineNumber) {
+        int hash = (className.hashCode() * 31 + methodName.hashCode()) * 31 + lineNumber;
+        // spread the bits, as only the lower ones are used for the slot
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -4,22 +4,30 @@ import com.sun.tools.attach.AttachNotSupportedException;
 import com.sun.tools.attach.VirtualMachine;
 import sun.tools.attach.HotSpotVirtualMachine;
 
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A sampler for the heap histograms
+ * <p>
+ * Histograms are taken either via an attach session or via the DiagnosticCommand MBean
+ * of an existing JMX connection (GC.class_histogram). By default, all objects are counted
+ * (-all), including unreachable ones, as a live histogram forces a full GC.
  *
  * @author tckb
  */
@@ -27,9 +35,6 @@ public class HeapSampler {
     public static final Map<Long, String> binaryPrefixes_IEC;
     public static final long _1KB = 1024L;
     public static final Map<Character, String> jniTypeSignatureMap;
-    private static final Pattern HIST_PATTERN = Pattern.compile(
-            "\\s+(\\d+):{1}\\s+(\\d+)\\s+(\\d+)\\s+(.+)"
-    );
 
     static {
         binaryPrefixes_IEC = new TreeMap<Long, String>();
@@ -42,7 +47,8 @@ public class HeapSampler {
         jniTypeSignatureMap = new HashMap<Character, String>();
         jniTypeSignatureMap.put('L', "class");
         jniTypeSignatureMap.put('[', "array");
-        jniTypeSignatureMap.put('B', "boolean");
+        jniTypeSignatureMap.put('Z', "boolean");
+        jniTypeSignatureMap.put('B', "byte");
         jniTypeSignatureMap.put('C', "char");
         jniTypeSignatureMap.put('S', "short");
         jniTypeSignatureMap.put('I', "int");
@@ -51,8 +57,27 @@ public class HeapSampler {
         jniTypeSignatureMap.put('D', "double");
     }
 
+    public static final String DIAGNOSTIC_COMMAND_MBEAN_NAME = "com.sun.management:type=DiagnosticCommand";
     private final HotSpotVirtualMachine hVm;
-    private Set<HeapHistogram> currentHist;
+    private final MBeanServerConnection connection_;
+    private volatile boolean live_ = false;
+    private final ClassHistogramParser parser_ = new ClassHistogramParser();
+    /**
+     * Order of the top heap objects
+     */
+    public enum Order {
+        /**
+         * largest classes first
+         */
+        SIZE,
+        /**
+         * fastest growing classes first, by size if deltas are not available
+         */
+        GROWTH
+    }
+
+    private ClassHistogram previous_;
+    private ClassHistogramDelta lastDelta_;
 
     /**
      * initializes the heap sampler
@@ -61,6 +86,18 @@ public class HeapSampler {
      */
     public HeapSampler(final HotSpotVirtualMachine hVm) {
         this.hVm = hVm;
+        this.connection_ = null;
+    }
+
+    /**
+     * initializes the heap sampler, which takes the histograms via the DiagnosticCommand MBean.
+     * Thread and heap dumps are not supported.
+     *
+     * @param connection
+     */
+    public HeapSampler(final MBeanServerConnection connection) {
+        this.hVm = null;
+        this.connection_ = connection;
     }
 
     /**
@@ -70,6 +107,18 @@ public class HeapSampler {
      */
     public HeapSampler(int vmid) throws IOException, AttachNotSupportedException {
         this.hVm = (HotSpotVirtualMachine) VirtualMachine.attach(String.valueOf(vmid));
+        this.connection_ = null;
+    }
+
+    public boolean isLive() {
+        return live_;
+    }
+
+    /**
+     * @param live if true, only reachable objects are counted, which forces a full GC on every histogram
+     */
+    public void setLive(boolean live) {
+        live_ = live;
     }
 
     /**
@@ -136,7 +185,10 @@ public class HeapSampler {
                 return fromNativeType(nativeClassType.substring(1)) + "[]";
             }
             if (type.equals("class")) {
-                return nativeClassType.substring(1);
+                // e.g. Ljava.lang.String;
+                return nativeClassType.endsWith(";")
+                        ? nativeClassType.substring(1, nativeClassType.length() - 1)
+                        : nativeClassType.substring(1);
             } else {
                 return type;
             }
@@ -149,29 +201,69 @@ public class HeapSampler {
      * Returns all the heap objects present in the VM sorted by their consumption
      *
      * @param updateDeltas include the delta information
-     * @return the set of HeapHistograms
+     * @return all HeapHistograms, including classes of equal name and size from different class loaders
      * @throws IOException
      */
-    public Set<HeapHistogram> getHistogram(boolean updateDeltas) throws IOException {
-        SortedSet<HeapHistogram> updatedHist = new TreeSet<HeapHistogram>();
-        final Matcher matcher = HIST_PATTERN.matcher("");
-        String heapLine;
-        final BufferedReader data = new BufferedReader(new InputStreamReader(hVm.heapHisto()));
-        while ((heapLine = data.readLine()) != null) {
-            matcher.reset(heapLine);
-            if (matcher.matches()) {
-                updatedHist.add(
-                        new HeapHistogram(matcher.group(4),
-                                matcher.group(2), matcher.group(3))
-                );
-            }
+    public List<HeapHistogram> getHistogram(boolean updateDeltas) throws IOException {
+        ClassHistogram histogram = sample(updateDeltas);
+        List<HeapHistogram> updatedHist = new ArrayList<HeapHistogram>(histogram.size());
+        for (int i = 0; i < histogram.size(); i++) {
+            updatedHist.add(toHeapHistogram(histogram, i));
+        }
+        Collections.sort(updatedHist);
+        return updatedHist;
+    }
+
+    /**
+     * Takes a histogram and computes the deltas to the previous one, if requested.
+     */
+    private ClassHistogram sample(boolean updateDeltas) throws IOException {
+        ClassHistogram histogram;
+        try (InputStream in = openHistogram()) {
+            histogram = parser_.parse(in);
+        }
+        lastDelta_ = updateDeltas && previous_ != null
+                ? ClassHistogramDelta.compute(previous_, histogram) : null;
+        previous_ = histogram;
+        return histogram;
+    }
+
+    private InputStream openHistogram() throws IOException {
+        if (connection_ == null) {
+            return hVm.heapHisto(live_ ? "-live" : "-all");
         }
-        if (updateDeltas && currentHist != null) {
-            updateDeltas(updatedHist, currentHist);
+        try {
+            String histogram = (String) connection_.invoke(new ObjectName(DIAGNOSTIC_COMMAND_MBEAN_NAME),
+                    "gcClassHistogram", new Object[]{live_ ? new String[0] : new String[]{"-all"}},
+                    new String[]{String[].class.getName()});
+            return new ByteArrayInputStream(histogram.getBytes(StandardCharsets.UTF_8));
+        } catch (JMException e) {
+            throw new IOException("Could not take the class histogram: " + e.getMessage(), e);
         }
+    }
 
-        currentHist = updatedHist;
-        return updatedHist;
+    private HeapHistogram toHeapHistogram(ClassHistogram histogram, int index) {
+        HeapHistogram entry = new HeapHistogram(histogram.getClassName(index),
+                histogram.getInstances(index), histogram.getBytes(index));
+        if (lastDelta_ != null) {
+            entry.setDelta(lastDelta_, index);
+        }
+        return entry;
+    }
+
+    /**
+     * @return the complete last histogram or null, if none has been taken yet
+     */
+    public ClassHistogram getLastHistogram() {
+        return previous_;
+    }
+
+    /**
+     * @return the deltas computed by the last histogram or null, if deltas were not requested
+     * or there was no previous histogram
+     */
+    public ClassHistogramDelta getLastDelta() {
+        return lastDelta_;
     }
 
     /**
@@ -179,50 +271,62 @@ public class HeapSampler {
      *
      * @param limit        the top limit
      * @param updateDeltas include the delta information
-     * @return the set of HeapHistograms
+     * @return the top HeapHistograms, including classes of equal name and size from different class loaders
      * @throws IOException
      */
-    public Set<HeapHistogram> getHistogram(final int limit, boolean updateDeltas) throws IOException {
-        final Set<HeapHistogram> topHeapHist = new TreeSet<HeapHistogram>();
-        int cnt = 0;
-        for (HeapHistogram histogram : getHistogram(updateDeltas)) {
-            topHeapHist.add(histogram);
-            if (++cnt > limit) {
-                break;
-            }
-        }
-        return topHeapHist;
+    public List<HeapHistogram> getHistogram(final int limit, boolean updateDeltas) throws IOException {
+        return getHistogram(limit, updateDeltas, Order.SIZE);
     }
 
-    // this is computationally expensive!
-    protected void updateDeltas(Set<HeapHistogram> updatedSamples, Set<HeapHistogram> original) {
-        for (HeapHistogram updatedSample : updatedSamples) {
-
-            innerloop:
-            for (HeapHistogram originalSample : original) {
-                if (originalSample.className.equals(updatedSample.className)) {
-                    double changePer = ((updatedSample.bytes - originalSample.bytes) * 100.d / originalSample.bytes);
-                    String sign = changePer > 0 ? "▲" : "▼";
-                    changePer = Math.abs(changePer);
-                    if (changePer > 0) {
-                        updatedSample.delta = changePer;
-                        updatedSample.deltaSign = sign;
-//                        updatedSample.delta = String.format("%s%-5.3f%%", sign, changePer);
-                    }
-                    break innerloop;
+    /**
+     * Returns the top heap objects present in the VM in the given order.
+     * Only the top entries are selected (via {@link TopK}) and converted,
+     * classes of equal size or growth are ordered by name, then by their position in the histogram.
+     *
+     * @param limit        the top limit
+     * @param updateDeltas include the delta information
+     * @param order
+     * @return the top HeapHistograms, in the given order
+     * @throws IOException
+     */
+    public List<HeapHistogram> getHistogram(final int limit, boolean updateDeltas, Order order)
+            throws IOException {
+        final ClassHistogram histogram = sample(updateDeltas);
+        final ClassHistogramDelta delta = lastDelta_;
+        int[] top = TopK.select(histogram.size(), limit, new TopK.IndexComparator() {
+            @Override
+            public int compare(int index1, int index2) {
+                int result = 0;
+                if (order == Order.GROWTH && delta != null) {
+                    result = Long.compare(delta.getBytesDelta(index2), delta.getBytesDelta(index1));
+                }
+                if (result == 0) {
+                    result = Long.compare(histogram.getBytes(index2), histogram.getBytes(index1));
                 }
+                if (result == 0) {
+                    result = histogram.getClassName(index1).compareTo(histogram.getClassName(index2));
+                }
+                if (result == 0) {
+                    // the same class name loaded by different class loaders
+                    result = Integer.compare(index1, index2);
+                }
+                return result;
             }
-
+        });
+        List<HeapHistogram> result = new ArrayList<HeapHistogram>(top.length);
+        for (int index : top) {
+            result.add(toHeapHistogram(histogram, index));
         }
+        return result;
     }
 
-
     /**
      * returns the current thread dump
      *
      * @return thread dump
      */
     public String threadDump() throws IOException {
+        checkAttached();
         StringBuilder data = new StringBuilder();
         final BufferedReader br = new BufferedReader(new InputStreamReader(hVm.remoteDataDump()));
         String line;
@@ -236,6 +340,7 @@ public class HeapSampler {
      * generates the heap dump
      */
     public boolean dumpHeap(File file) throws IOException {
+        checkAttached();
         if (file.exists()) {
             throw new IOException("file already exist.");
         }
@@ -255,21 +360,36 @@ public class HeapSampler {
     }
 
 
+    private void checkAttached() throws IOException {
+        if (hVm == null) {
+            throw new IOException("Only supported via an attach session");
+        }
+    }
+
     /**
      * the heap heap histogram of the java object
      */
-    public class HeapHistogram implements Comparable<HeapHistogram> {
+    public static class HeapHistogram implements Comparable<HeapHistogram> {
 
-        public final int count;
-        public final int bytes;
+        public final long count;
+        public final long bytes;
         public final String className;
         public final String memory;
         public final String memorySuffix;
         public double delta;
         public String deltaSign;
-
-        private HeapHistogram(final String className, final int count, final int bytes) {
-            this.className = HeapSampler.fromNativeType(className);
+        public long bytesDelta;
+        public long countDelta;
+        public double bytesPerSecond;
+        public boolean appeared;
+
+        /**
+         * @param className in Java notation
+         * @param count
+         * @param bytes
+         */
+        private HeapHistogram(final String className, final long count, final long bytes) {
+            this.className = className;
             this.count = count;
             this.bytes = bytes;
             final String[] strings = HeapSampler.toHumanForm(bytes);
@@ -279,8 +399,19 @@ public class HeapSampler {
             this.deltaSign = "";
         }
 
-        private HeapHistogram(final String className, final String count, final String bytes) {
-            this(className, Integer.valueOf(count), Integer.valueOf(bytes));
+        /**
+         * Sets the delta information of the given index of the delta.
+         */
+        private void setDelta(ClassHistogramDelta histogramDelta, int index) {
+            bytesDelta = histogramDelta.getBytesDelta(index);
+            countDelta = histogramDelta.getInstancesDelta(index);
+            bytesPerSecond = histogramDelta.getBytesPerSecond(index);
+            appeared = histogramDelta.isAppeared(index);
+            long previousBytes = bytes - bytesDelta;
+            if (bytesDelta != 0 && previousBytes > 0) {
+                delta = Math.abs(bytesDelta * 100.d / previousBytes);
+                deltaSign = bytesDelta > 0 ? "▲" : "▼";
+            }
         }
 
         @Override
@@ -309,7 +440,8 @@ public class HeapSampler {
                     return 1;
                 }
             }
-            return 0;
+            // consistent with equals, so that classes of the same size are kept in sorted sets
+            return className.compareTo(o.className);
         }
 
         @Override
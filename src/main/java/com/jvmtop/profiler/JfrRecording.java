@@ -0,0 +1,302 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMX;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+import jdk.management.jfr.FlightRecorderMXBean;
+import jdk.management.jfr.RecordingInfo;
+
+/**
+ * Java Flight Recorder recording of sampling events (e.g. execution or allocation samples)
+ * in a remote jvm, controlled via its {@link FlightRecorderMXBean}.
+ * <p>
+ * On every poll, a snapshot of the recording is taken (which flushes the recorded events),
+ * the chunks since the previous poll are streamed into a local temp file and
+ * parsed with {@link RecordingFile}.
+ * <p>
+ * The events are not ordered by time: each thread flushes its own buffer, so an event
+ * may arrive after newer events of other threads. Therefore every poll reads the events
+ * from {@link #LATE_EVENT_SLACK} before the newest event seen so far and skips only
+ * those which have already been consumed, identified by type, thread and start time in ticks
+ * (the start time as Instant differs slightly between the chunks of overlapping snapshots).
+ * <p>
+ * The recording is named {@link #RECORDING_NAME}, so that a recording left over by
+ * a terminated jvmtop is closed when profiling the jvm again.
+ * Its maximum age and size bound the memory and disk usage in the target jvm.
+ */
+public class JfrRecording implements Closeable {
+
+    public static final String RECORDING_NAME = "jvmtop";
+
+    public static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+
+    /**
+     * Throttled allocation samples, weighted with the bytes allocated since the previous sample (JDK 16+)
+     */
+    public static final String OBJECT_ALLOCATION_SAMPLE = "jdk.ObjectAllocationSample";
+
+    public static final String OBJECT_ALLOCATION_IN_NEW_TLAB = "jdk.ObjectAllocationInNewTLAB";
+
+    public static final String OBJECT_ALLOCATION_OUTSIDE_TLAB = "jdk.ObjectAllocationOutsideTLAB";
+
+    /**
+     * How long an event may arrive after newer events and still be consumed
+     */
+    public static final Duration LATE_EVENT_SLACK = Duration.ofSeconds(10);
+
+    private static final String FLIGHT_RECORDER_MXBEAN_NAME = "jdk.management.jfr:type=FlightRecorder";
+
+    private final FlightRecorderMXBean flightRecorder_;
+
+    private final long recordingId_;
+
+    private final Set<String> eventNames_;
+
+    private Instant lastEventTime_ = null;
+
+    // events consumed within the slack before the newest event, mapped to their start time
+    private final Map<EventKey, Instant> consumed_ = new HashMap<EventKey, Instant>();
+
+    private volatile long transferredBytes_ = 0;
+
+    /**
+     * Starts a recording of execution samples in the target jvm.
+     *
+     * @param connection   connection to the platform MBean server of the jvm
+     * @param periodMillis the sampling period per thread
+     * @return
+     * @throws Exception if the jvm does not support the Flight Recorder
+     */
+    public static JfrRecording forExecutionSamples(MBeanServerConnection connection,
+                                                   long periodMillis) throws Exception {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put(EXECUTION_SAMPLE + "#enabled", "true");
+        settings.put(EXECUTION_SAMPLE + "#period", periodMillis + " ms");
+        return new JfrRecording(getFlightRecorder(connection), settings);
+    }
+
+    /**
+     * Starts a recording of allocation samples in the target jvm: the throttled
+     * {@link #OBJECT_ALLOCATION_SAMPLE} if supported, otherwise the TLAB allocation events.
+     *
+     * @param connection connection to the platform MBean server of the jvm
+     * @return
+     * @throws Exception if the jvm does not support the Flight Recorder
+     */
+    public static JfrRecording forAllocationSamples(MBeanServerConnection connection) throws Exception {
+        FlightRecorderMXBean flightRecorder = getFlightRecorder(connection);
+        boolean allocationSampleSupported = false;
+        // read as open data, EventTypeInfo cannot be reconstructed from the event types of all jvms
+        Object[] eventTypes = (Object[]) connection.getAttribute(
+                new ObjectName(FLIGHT_RECORDER_MXBEAN_NAME), "EventTypes");
+        for (Object eventType : eventTypes) {
+            allocationSampleSupported |= OBJECT_ALLOCATION_SAMPLE.equals(((CompositeData) eventType).get("name"));
+        }
+        Map<String, String> settings = new HashMap<String, String>();
+        if (allocationSampleSupported) {
+            settings.put(OBJECT_ALLOCATION_SAMPLE + "#enabled", "true");
+            settings.put(OBJECT_ALLOCATION_SAMPLE + "#throttle", "300/s");
+            settings.put(OBJECT_ALLOCATION_SAMPLE + "#stackTrace", "true");
+        } else {
+            for (String event : new String[]{OBJECT_ALLOCATION_IN_NEW_TLAB, OBJECT_ALLOCATION_OUTSIDE_TLAB}) {
+                settings.put(event + "#enabled", "true");
+                settings.put(event + "#stackTrace", "true");
+            }
+        }
+        return new JfrRecording(flightRecorder, settings);
+    }
+
+    private static FlightRecorderMXBean getFlightRecorder(MBeanServerConnection connection)
+            throws Exception {
+        ObjectName name = new ObjectName(FLIGHT_RECORDER_MXBEAN_NAME);
+        if (!connection.isRegistered(name)) {
+            throw new IOException("Java Flight Recorder is not available in the target jvm");
+        }
+        return JMX.newMXBeanProxy(connection, name, FlightRecorderMXBean.class);
+    }
+
+    /**
+     * Starts a recording with the given event settings, e.g. "jdk.ExecutionSample#enabled" = "true".
+     *
+     * @param flightRecorder
+     * @param settings
+     * @throws IOException
+     */
+    private JfrRecording(FlightRecorderMXBean flightRecorder, Map<String, String> settings)
+            throws IOException {
+        flightRecorder_ = flightRecorder;
+        eventNames_ = new HashSet<String>();
+        for (String setting : settings.keySet()) {
+            eventNames_.add(setting.substring(0, setting.indexOf('#')));
+        }
+        for (RecordingInfo recording : flightRecorder_.getRecordings()) {
+            if (RECORDING_NAME.equals(recording.getName())) {
+                flightRecorder_.closeRecording(recording.getId());
+            }
+        }
+
+        recordingId_ = flightRecorder_.newRecording();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("name", RECORDING_NAME);
+        options.put("maxAge", "2 m");
+        options.put("maxSize", "16000000");
+        flightRecorder_.setRecordingOptions(recordingId_, options);
+        flightRecorder_.setRecordingSettings(recordingId_, settings);
+        flightRecorder_.startRecording(recordingId_);
+    }
+
+    /**
+     * Fetches the events recorded since the previous poll.
+     *
+     * @param handler receives each new event of the enabled event types
+     * @throws IOException
+     */
+    public void poll(Consumer<RecordedEvent> handler) throws IOException {
+        Path file = Files.createTempFile("jvmtop", ".jfr");
+        try {
+            long snapshotId = flightRecorder_.takeSnapshot();
+            try {
+                Map<String, String> options = new HashMap<String, String>();
+                if (lastEventTime_ != null) {
+                    options.put("startTime", lastEventTime_.minus(LATE_EVENT_SLACK).toString());
+                }
+                long streamId = flightRecorder_.openStream(snapshotId, options);
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    byte[] data;
+                    while ((data = flightRecorder_.readStream(streamId)) != null) {
+                        out.write(data);
+                        transferredBytes_ += data.length;
+                    }
+                } finally {
+                    flightRecorder_.closeStream(streamId);
+                }
+            } finally {
+                flightRecorder_.closeRecording(snapshotId);
+            }
+
+            // the chunks overlap with the ones of the previous poll
+            Instant lastEventTime = lastEventTime_;
+            Instant oldest = lastEventTime_ == null ? null : lastEventTime_.minus(LATE_EVENT_SLACK);
+            try (RecordingFile recordingFile = new RecordingFile(file)) {
+                while (recordingFile.hasMoreEvents()) {
+                    RecordedEvent event = recordingFile.readEvent();
+                    Instant startTime = event.getStartTime();
+                    if (!eventNames_.contains(event.getEventType().getName())
+                            || (oldest != null && startTime.isBefore(oldest))
+                            || consumed_.putIfAbsent(new EventKey(event), startTime) != null) {
+                        continue;
+                    }
+                    if (lastEventTime == null || startTime.isAfter(lastEventTime)) {
+                        lastEventTime = startTime;
+                    }
+                    handler.accept(event);
+                }
+            }
+            lastEventTime_ = lastEventTime;
+            if (lastEventTime_ != null) {
+                // older events are skipped anyway
+                Instant expired = lastEventTime_.minus(LATE_EVENT_SLACK);
+                for (Iterator<Instant> it = consumed_.values().iterator(); it.hasNext(); ) {
+                    if (it.next().isBefore(expired)) {
+                        it.remove();
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * @return the number of bytes streamed from the target jvm so far
+     */
+    public long getTransferredBytes() {
+        return transferredBytes_;
+    }
+
+    /**
+     * Identifies an event across overlapping snapshots:
+     * a thread does not emit two events of the same type at the same time.
+     */
+    private static final class EventKey {
+        private final String type_;
+        private final long threadId_;
+        private final long startTicks_;
+
+        private EventKey(RecordedEvent event) {
+            type_ = event.getEventType().getName();
+            // execution samples are emitted by the sampler thread on behalf of the sampled one
+            RecordedThread thread = event.hasField("sampledThread")
+                    ? event.getThread("sampledThread") : event.getThread();
+            threadId_ = thread == null ? -1 : thread.getOSThreadId();
+            startTicks_ = event.getLong("startTime");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof EventKey)) {
+                return false;
+            }
+            EventKey other = (EventKey) o;
+            return threadId_ == other.threadId_ && startTicks_ == other.startTicks_
+                    && type_.equals(other.type_);
+        }
+
+        @Override
+        public int hashCode() {
+            return (type_.hashCode() * 31 + Long.hashCode(threadId_)) * 31 + Long.hashCode(startTicks_);
+        }
+    }
+
+    /**
+     * Stops and removes the recording in the target jvm.
+     */
+    @Override
+    public void close() {
+        try {
+            flightRecorder_.closeRecording(recordingId_);
+        } catch (Exception e) {
+            Logger.getLogger("jvmtop").log(Level.FINE, "could not close the flight recording", e);
+        }
+    }
+}
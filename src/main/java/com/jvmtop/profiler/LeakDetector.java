@@ -0,0 +1,329 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detects classes whose heap usage grows steadily, based on the recent class histograms.
+ * <p>
+ * The sizes and instance counts of each class are kept as fixed-size time series in a ring
+ * of columns: one primitive column per histogram, indexed by a row assigned to each class.
+ * Only the {@link #TRACKED_CLASSES} largest classes of a histogram get a row, at most
+ * {@link #MAX_ROWS} rows are used. Rows of classes which were not among the largest for a
+ * complete window are reused. The columns take 2 * 8 bytes * capacity * rows, i.e. at most
+ * 3.75 MB with the default capacity of 60, regardless of the number of classes in the jvm.
+ * A leaking class is tracked once it is among the largest ones.
+ * <p>
+ * A class is a suspect if, over the window,
+ * <ul>
+ * <li>it has been seen in at least {@link #MIN_SAMPLES} histograms,</li>
+ * <li>at least {@link #MIN_GC_CYCLES} garbage collections happened in between,</li>
+ * <li>its size did not decrease in at least {@link #MIN_MONOTONIC_RATIO} of the steps
+ * and grew from the first to the last histogram,</li>
+ * <li>the linear regression of its size over time fits with r&sup2; of at least {@link #MIN_FIT}</li>
+ * <li>and the regression slope is at least the minimum growth.</li>
+ * </ul>
+ * Histograms of all objects (instead of live ones) contain garbage, which grows steadily
+ * until the next collection. Requiring several GC cycles makes such classes fluctuate
+ * within the series instead of looking like a leak. Live histograms force a full GC each,
+ * so they meet this requirement after a few histograms.
+ * <p>
+ * Not thread-safe.
+ */
+public class LeakDetector {
+
+    public static final int DEFAULT_CAPACITY = 60;
+
+    public static final int MIN_SAMPLES = 6;
+
+    public static final int MIN_GC_CYCLES = 3;
+
+    public static final double MIN_MONOTONIC_RATIO = 0.75;
+
+    public static final double MIN_FIT = 0.6;
+
+    public static final long DEFAULT_MIN_BYTES_PER_HOUR = 1024 * 1024;
+
+    public static final int TRACKED_CLASSES = 1024;
+
+    public static final int MAX_ROWS = 4 * TRACKED_CLASSES;
+
+    private static final int INITIAL_ROWS = 1024;
+
+    private final int capacity_;
+
+    private final double minBytesPerHour_;
+
+    private final Map<String, Integer> rows_ = new HashMap<String, Integer>();
+
+    private String[] classNames_ = new String[INITIAL_ROWS];
+
+    // histogram number in which the class of the row was among the largest ones first / last
+    private long[] firstSeen_ = new long[INITIAL_ROWS];
+
+    private long[] lastSeen_ = new long[INITIAL_ROWS];
+
+    private final List<Integer> freeRows_ = new ArrayList<Integer>();
+
+    private int rowCount_ = 0;
+
+    // one column per histogram in the ring, indexed by row
+    private final long[][] bytes_;
+
+    private final long[][] instances_;
+
+    private final long[] timestamps_;
+
+    private final long[] gcCounts_;
+
+    private long histograms_ = 0;
+
+    public LeakDetector() {
+        this(DEFAULT_CAPACITY, DEFAULT_MIN_BYTES_PER_HOUR);
+    }
+
+    /**
+     * @param capacity        number of histograms in the window
+     * @param minBytesPerHour minimum growth of a suspect
+     */
+    public LeakDetector(int capacity, double minBytesPerHour) {
+        capacity_ = Math.max(capacity, MIN_SAMPLES);
+        minBytesPerHour_ = minBytesPerHour;
+        bytes_ = new long[capacity_][INITIAL_ROWS];
+        instances_ = new long[capacity_][INITIAL_ROWS];
+        timestamps_ = new long[capacity_];
+        gcCounts_ = new long[capacity_];
+    }
+
+    /**
+     * Adds a histogram, replacing the oldest one if the window is full.
+     *
+     * @param histogram
+     * @param gcCount   total number of garbage collections of the jvm, taken after the histogram
+     */
+    public void add(ClassHistogram histogram, long gcCount) {
+        long number = histograms_++;
+        int column = (int) (number % capacity_);
+        timestamps_[column] = histogram.getTimestamp();
+        gcCounts_[column] = gcCount;
+        recycleRows(number);
+        int[] largest = TopK.select(histogram.size(), TRACKED_CLASSES, new TopK.IndexComparator() {
+            @Override
+            public int compare(int index1, int index2) {
+                int result = Long.compare(histogram.getBytes(index2), histogram.getBytes(index1));
+                return result != 0 ? result : Integer.compare(index1, index2);
+            }
+        });
+        for (int i : largest) {
+            int row = getRow(histogram.getClassName(i), number);
+            if (row != -1) {
+                lastSeen_[row] = number;
+            }
+        }
+        long[] bytes = bytes_[column];
+        long[] instances = instances_[column];
+        // classes which are absent in this histogram have 0 bytes
+        Arrays.fill(bytes, 0, rowCount_, 0);
+        Arrays.fill(instances, 0, rowCount_, 0);
+        for (int i = 0; i < histogram.size(); i++) {
+            // tracked classes are recorded even if they are not among the largest ones anymore
+            Integer row = rows_.get(histogram.getClassName(i));
+            if (row != null) {
+                bytes[row] += histogram.getBytes(i);
+                instances[row] += histogram.getInstances(i);
+            }
+        }
+    }
+
+    /**
+     * @return the number of histograms in the window
+     */
+    public int getSamples() {
+        return (int) Math.min(histograms_, capacity_);
+    }
+
+    /**
+     * @return the time covered by the histograms in the window, in ns
+     */
+    public long getWindowNanos() {
+        if (histograms_ == 0) {
+            return 0;
+        }
+        return timestamps_[column(histograms_ - 1)] - timestamps_[column(histograms_ - getSamples())];
+    }
+
+    /**
+     * @return the number of garbage collections covered by the histograms in the window
+     */
+    public long getGcCycles() {
+        if (histograms_ == 0) {
+            return 0;
+        }
+        return gcCounts_[column(histograms_ - 1)] - gcCounts_[column(histograms_ - getSamples())];
+    }
+
+    /**
+     * @param limit
+     * @return the suspects with the highest growth (descending)
+     */
+    public List<LeakSuspect> getSuspects(int limit) {
+        List<LeakSuspect> suspects = new ArrayList<LeakSuspect>();
+        if (histograms_ == 0) {
+            return suspects;
+        }
+        long last = histograms_ - 1;
+        long windowStart = histograms_ - getSamples();
+        long origin = timestamps_[column(windowStart)];
+        for (int row = 0; row < rowCount_; row++) {
+            if (classNames_[row] == null || lastSeen_[row] != last) {
+                continue;
+            }
+            long first = Math.max(windowStart, firstSeen_[row]);
+            int n = (int) (last - first + 1);
+            if (n < MIN_SAMPLES || gcCounts_[column(last)] - gcCounts_[column(first)] < MIN_GC_CYCLES) {
+                continue;
+            }
+            LeakSuspect suspect = analyze(row, first, n, origin);
+            if (suspect != null) {
+                suspects.add(suspect);
+            }
+        }
+        Collections.sort(suspects, new Comparator<LeakSuspect>() {
+            @Override
+            public int compare(LeakSuspect s1, LeakSuspect s2) {
+                return Double.compare(s2.getBytesPerHour(), s1.getBytesPerHour());
+            }
+        });
+        return suspects.subList(0, Math.min(limit, suspects.size()));
+    }
+
+    /**
+     * Tests the series of the row for monotonic growth and fits a linear regression.
+     *
+     * @return the suspect or null, if the class does not grow steadily
+     */
+    private LeakSuspect analyze(int row, long first, int n, long origin) {
+        long y0 = bytes_[column(first)][row];
+        long previous = y0;
+        int increasing = 0;
+        double sx = 0, sy = 0, sxx = 0, sxy = 0, syy = 0, si = 0, sxi = 0;
+        for (long k = first; k < first + n; k++) {
+            int column = column(k);
+            long value = bytes_[column][row];
+            if (k > first && value >= previous) {
+                increasing++;
+            }
+            previous = value;
+            double x = (timestamps_[column] - origin) / 1e9;
+            // relative to the first value, to avoid cancellation
+            double y = value - y0;
+            double instances = instances_[column][row];
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+            syy += y * y;
+            si += instances;
+            sxi += x * instances;
+        }
+        if (previous <= y0 || increasing < MIN_MONOTONIC_RATIO * (n - 1)) {
+            return null;
+        }
+        double varX = n * sxx - sx * sx;
+        double varY = n * syy - sy * sy;
+        if (varX <= 0 || varY <= 0) {
+            return null;
+        }
+        double covXY = n * sxy - sx * sy;
+        double slope = covXY / varX;
+        double fit = covXY * covXY / (varX * varY);
+        double bytesPerHour = slope * 3600;
+        if (fit < MIN_FIT || bytesPerHour < minBytesPerHour_) {
+            return null;
+        }
+        double instancesPerHour = (n * sxi - sx * si) / varX * 3600;
+        int lastColumn = column(first + n - 1);
+        return new LeakSuspect(classNames_[row], bytes_[lastColumn][row], instances_[lastColumn][row],
+                bytesPerHour, instancesPerHour, fit, n);
+    }
+
+    private int column(long number) {
+        return (int) (number % capacity_);
+    }
+
+    /**
+     * @return the row of the class, assigning a new or reused one if the class is not known,
+     * -1 if all rows are in use
+     */
+    private int getRow(String className, long number) {
+        Integer row = rows_.get(className);
+        if (row != null) {
+            return row;
+        }
+        int newRow;
+        if (!freeRows_.isEmpty()) {
+            newRow = freeRows_.remove(freeRows_.size() - 1);
+        } else if (rowCount_ < MAX_ROWS) {
+            newRow = rowCount_++;
+            if (newRow == classNames_.length) {
+                grow(Math.min(newRow * 2, MAX_ROWS));
+            }
+        } else {
+            return -1;
+        }
+        classNames_[newRow] = className;
+        firstSeen_[newRow] = number;
+        lastSeen_[newRow] = number;
+        rows_.put(className, newRow);
+        return newRow;
+    }
+
+    /**
+     * Frees the rows of classes which have not been among the largest ones for the complete window.
+     * The values of a reused row are only read from the histogram in which its class was added.
+     */
+    private void recycleRows(long number) {
+        for (int row = 0; row < rowCount_; row++) {
+            if (classNames_[row] != null && number - lastSeen_[row] >= capacity_) {
+                rows_.remove(classNames_[row]);
+                classNames_[row] = null;
+                freeRows_.add(row);
+            }
+        }
+    }
+
+    private void grow(int rows) {
+        classNames_ = Arrays.copyOf(classNames_, rows);
+        firstSeen_ = Arrays.copyOf(firstSeen_, rows);
+        lastSeen_ = Arrays.copyOf(lastSeen_, rows);
+        for (int column = 0; column < capacity_; column++) {
+            bytes_[column] = Arrays.copyOf(bytes_[column], rows);
+            instances_[column] = Arrays.copyOf(instances_[column], rows);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+/**
+ * A class whose heap usage grows steadily across the recent histograms, see {@link LeakDetector}.
+ */
+public final class LeakSuspect {
+
+    private final String className_;
+
+    private final long bytes_;
+
+    private final long instances_;
+
+    private final double bytesPerHour_;
+
+    private final double instancesPerHour_;
+
+    private final double fit_;
+
+    private final int samples_;
+
+    LeakSuspect(String className, long bytes, long instances, double bytesPerHour,
+                double instancesPerHour, double fit, int samples) {
+        className_ = className;
+        bytes_ = bytes;
+        instances_ = instances;
+        bytesPerHour_ = bytesPerHour;
+        instancesPerHour_ = instancesPerHour;
+        fit_ = fit;
+        samples_ = samples;
+    }
+
+    public String getClassName() {
+        return className_;
+    }
+
+    /**
+     * @return the size in the latest histogram
+     */
+    public long getBytes() {
+        return bytes_;
+    }
+
+    /**
+     * @return the instance count in the latest histogram
+     */
+    public long getInstances() {
+        return instances_;
+    }
+
+    /**
+     * @return the growth of the size (slope of the linear regression), in bytes per hour
+     */
+    public double getBytesPerHour() {
+        return bytesPerHour_;
+    }
+
+    public double getInstancesPerHour() {
+        return instancesPerHour_;
+    }
+
+    /**
+     * @return the coefficient of determination (r squared) of the linear regression, 1 is a perfect fit
+     */
+    public double getFit() {
+        return fit_;
+    }
+
+    /**
+     * @return the number of histograms the regression is based on
+     */
+    public int getSamples() {
+        return samples_;
+    }
+
+    /**
+     * @param freeBytes e.g. the difference between the maximum and the used heap
+     * @return the projected hours until the class has consumed the given bytes
+     */
+    public double getHoursUntil(long freeBytes) {
+        return freeBytes / bytesPerHour_;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Map of primitive long keys to long values (open addressing, linear probing),
+ * e.g. thread ids to their cpu times, which does not box keys or values.
+ * <p>
+ * Entries cannot be removed individually, the map is meant to be rebuilt
+ * via {@link #clear()}. The capacity shrinks again on clear, if the map
+ * had become much larger than needed.
+ * <p>
+ * Not thread-safe.
+ */
+public class LongLongMap {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] keys_;
+
+    private long[] values_;
+
+    private boolean[] used_;
+
+    private int size_ = 0;
+
+    public LongLongMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param key
+     * @param defaultValue
+     * @return the value of the key or the default value, if the key is not contained
+     */
+    public long get(long key, long defaultValue) {
+        int mask = keys_.length - 1;
+        for (int slot = slot(key, mask); used_[slot]; slot = (slot + 1) & mask) {
+            if (keys_[slot] == key) {
+                return values_[slot];
+            }
+        }
+        return defaultValue;
+    }
+
+    public void put(long key, long value) {
+        int mask = keys_.length - 1;
+        int slot = slot(key, mask);
+        while (used_[slot]) {
+            if (keys_[slot] == key) {
+                values_[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        used_[slot] = true;
+        keys_[slot] = key;
+        values_[slot] = value;
+        // keep the load factor below 0.5
+        if (++size_ * 2 > keys_.length) {
+            rehash(keys_.length * 2);
+        }
+    }
+
+    public int size() {
+        return size_;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        if (keys_.length > INITIAL_CAPACITY && size_ * 8 < keys_.length) {
+            allocate(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(size_) * 4));
+        } else {
+            Arrays.fill(used_, false);
+        }
+        size_ = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = keys_;
+        long[] values = values_;
+        boolean[] used = used_;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int slot = slot(keys[i], mask);
+                while (used_[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                used_[slot] = true;
+                keys_[slot] = keys[i];
+                values_[slot] = values[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys_ = new long[capacity];
+        values_ = new long[capacity];
+        used_ = new boolean[capacity];
+    }
+
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
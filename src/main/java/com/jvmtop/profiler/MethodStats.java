@@ -21,15 +21,14 @@
 package com.jvmtop.profiler;
 
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Stores method invocations in a thread-safe manner.
+ * Snapshot of the cpu time sampled for a method (line).
  *
  * @author paru
  */
 public class MethodStats implements Comparable<MethodStats> {
-    private final AtomicLong hits_ = new AtomicLong(0);
+    private final long hits_;
 
     private final String className_;
 
@@ -41,12 +40,14 @@ public class MethodStats implements Comparable<MethodStats> {
      * @param className
      * @param methodName
      * @param lineNumber
+     * @param hits
      */
-    public MethodStats(String className, String methodName, int lineNumber) {
+    public MethodStats(String className, String methodName, int lineNumber, long hits) {
         super();
         className_ = className;
         methodName_ = methodName;
         this.lineNumber = lineNumber;
+        hits_ = hits;
     }
 
     @Override
@@ -67,10 +68,10 @@ public class MethodStats implements Comparable<MethodStats> {
      * Compares a MethodStats object by its hits
      */
     public int compareTo(MethodStats o) {
-        return Long.compare(o.hits_.get(), hits_.get());
+        return Long.compare(o.hits_, hits_);
     }
 
-    public AtomicLong getHits() {
+    public long getHits() {
         return hits_;
     }
 
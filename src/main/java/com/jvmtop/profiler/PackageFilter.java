@@ -0,0 +1,171 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Decides which frames are filtered from the cpu profile, based on include and
+ * exclude rules for class name prefixes (e.g. packages like "org.apache.").
+ * <p>
+ * The rules are kept in a prefix trie, so a class name is matched against all rules
+ * in a single pass over its characters. The longest matching rule wins, e.g. an include
+ * rule "org.apache.myapp." overrides an exclude rule "org.apache.".
+ * If a prefix is added twice, the later rule replaces the earlier one.
+ * Class names not matching any rule are not filtered.
+ */
+public class PackageFilter {
+
+    //TODO: these exception list should be expanded to the most common 3rd-party library packages
+    public static final String[] DEFAULT_EXCLUDES = {
+            "org.eclipse.", "org.apache.", "java.", "sun.", "com.sun.", "javax.",
+            "oracle.", "com.trilead.", "org.junit.", "org.mockito.",
+            "org.hibernate.", "com.ibm.", "com.caucho.", "jdk.internal.reflect.", "io.netty."};
+
+    private static final byte NO_RULE = 0;
+
+    private static final byte INCLUDE = 1;
+
+    private static final byte EXCLUDE = 2;
+
+    private final Node root_ = new Node();
+
+    /**
+     * @return a filter excluding common jdk and 3rd-party library packages
+     */
+    public static PackageFilter withDefaultExcludes() {
+        PackageFilter filter = new PackageFilter();
+        for (String prefix : DEFAULT_EXCLUDES) {
+            filter.addExclude(prefix);
+        }
+        return filter;
+    }
+
+    /**
+     * @param prefix class name prefix whose frames are shown in the profile
+     */
+    public synchronized void addInclude(String prefix) {
+        getOrAddNode(prefix).rule_ = INCLUDE;
+    }
+
+    /**
+     * @param prefix class name prefix whose frames are skipped in the profile
+     */
+    public synchronized void addExclude(String prefix) {
+        getOrAddNode(prefix).rule_ = EXCLUDE;
+    }
+
+    /**
+     * Adds the rules of a file, one per line: "+prefix" includes, "-prefix" excludes.
+     * Empty lines and lines starting with '#' are ignored.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void loadRules(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String prefix = line.substring(1).trim();
+                if (line.charAt(0) == '+' && !prefix.isEmpty()) {
+                    addInclude(prefix);
+                } else if (line.charAt(0) == '-' && !prefix.isEmpty()) {
+                    addExclude(prefix);
+                } else {
+                    throw new IOException("Invalid filter rule in " + file + " line " + lineNumber
+                            + ", expected +prefix or -prefix: " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param className
+     * @return true if the longest rule matching the class name is an exclude rule
+     */
+    public synchronized boolean isFiltered(String className) {
+        Node node = root_;
+        byte rule = node.rule_;
+        for (int i = 0; i < className.length(); i++) {
+            node = node.getChild(className.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.rule_ != NO_RULE) {
+                rule = node.rule_;
+            }
+        }
+        return rule == EXCLUDE;
+    }
+
+    private Node getOrAddNode(String prefix) {
+        Node node = root_;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.getOrAddChild(prefix.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Trie node, with its edges stored in parallel arrays sorted by character
+     */
+    private static final class Node {
+        private char[] chars_ = new char[0];
+        private Node[] children_ = new Node[0];
+        private byte rule_ = NO_RULE;
+
+        private Node getChild(char c) {
+            int index = Arrays.binarySearch(chars_, c);
+            return index >= 0 ? children_[index] : null;
+        }
+
+        private Node getOrAddChild(char c) {
+            int index = Arrays.binarySearch(chars_, c);
+            if (index >= 0) {
+                return children_[index];
+            }
+            int insert = -index - 1;
+            Node child = new Node();
+            char[] chars = new char[chars_.length + 1];
+            Node[] children = new Node[chars_.length + 1];
+            System.arraycopy(chars_, 0, chars, 0, insert);
+            System.arraycopy(children_, 0, children, 0, insert);
+            chars[insert] = c;
+            children[insert] = child;
+            System.arraycopy(chars_, insert, chars, insert + 1, chars_.length - insert);
+            System.arraycopy(children_, insert, children, insert + 1, chars_.length - insert);
+            chars_ = chars;
+            children_ = children;
+            return child;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Writes the samples of the cpu profiler to a compact binary log,
+ * which can be replayed by {@link SampleReplay}.
+ * <p>
+ * Frames and stacks are interned: each is written once, when it is first seen,
+ * samples only refer to the stack id. All numbers are written as unsigned varints
+ * (7 bits per byte), the timestamps as delta to the previous update,
+ * so a typical sample takes 5-8 bytes. Records are encoded into an own buffer,
+ * which is written to the file when full or flushed, at most once per
+ * {@link #FLUSH_INTERVAL_NANOS} via {@link #flushIfDue(long)}. A log which ends
+ * with a partial record (e.g. after a crash) can still be replayed up to that record.
+ * <p>
+ * The format is a header (magic, version, start time in ms since the epoch),
+ * followed by records which start with their type:
+ * <ul>
+ * <li>{@link #FRAME}: class name, method name (both UTF-8, prefixed by their length in bytes)
+ * and line number + 2 (as it can be -1 or -2).
+ * Frame ids are assigned in the order of the records, starting at 0.</li>
+ * <li>{@link #STACK}: number of frames and their frame ids, innermost frame first.
+ * Stack ids are assigned in the order of the records, starting at 0.</li>
+ * <li>{@link #UPDATE}: ns since the previous update (or the start of the recording),
+ * the following samples belong to this update.</li>
+ * <li>{@link #SAMPLE}: thread id (0 if unknown), stack id and cpu time in ns.</li>
+ * </ul>
+ * <p>
+ * Not thread-safe.
+ */
+public class SampleRecorder implements Closeable {
+
+    static final int MAGIC = 0x4a56544d; // "JVTM"
+
+    static final int VERSION = 1;
+
+    static final int FRAME = 1;
+
+    static final int STACK = 2;
+
+    static final int UPDATE = 3;
+
+    static final int SAMPLE = 4;
+
+    /**
+     * Thread id of samples which are aggregated over several threads
+     */
+    public static final long UNKNOWN_THREAD = 0;
+
+    public static final long FLUSH_INTERVAL_NANOS = 1000000000L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out_;
+
+    private byte[] buffer_ = new byte[BUFFER_SIZE];
+
+    private int position_ = 0;
+
+    // bytes written to the stream
+    private long written_ = 0;
+
+    // recorded frame id per frame id of the profiler, -1 if not yet recorded
+    private int[] recordedFrameIds_ = newFrameIds(1024);
+
+    private int recordedFrames_ = 0;
+
+    private final StackDictionary stacks_ = new StackDictionary();
+
+    // reused buffer for the recorded frame ids of a sample
+    private int[] stackFrameIds_ = new int[256];
+
+    private long lastUpdate_;
+
+    private long samples_ = 0;
+
+    private long lastFlush_;
+
+    /**
+     * @param file
+     * @throws IOException
+     */
+    public SampleRecorder(Path file) throws IOException {
+        this(Files.newOutputStream(file));
+    }
+
+    public SampleRecorder(OutputStream out) throws IOException {
+        out_ = out;
+        writeInt(MAGIC);
+        writeVarint(VERSION);
+        writeVarint(System.currentTimeMillis());
+        lastUpdate_ = System.nanoTime();
+        lastFlush_ = lastUpdate_;
+    }
+
+    /**
+     * Starts an update, the subsequent samples belong to it.
+     *
+     * @param timestamp of the update, in ns as returned by {@link System#nanoTime()}
+     * @throws IOException
+     */
+    public void writeUpdate(long timestamp) throws IOException {
+        write(UPDATE);
+        writeVarint(Math.max(0, timestamp - lastUpdate_));
+        lastUpdate_ = Math.max(lastUpdate_, timestamp);
+    }
+
+    /**
+     * Writes a sample, preceded by its stack and frames if they have not been written before.
+     *
+     * @param threadId
+     * @param frames   dictionary which resolves the frame ids
+     * @param frameIds the frame ids, starting with the innermost frame
+     * @param length   number of valid entries in frameIds
+     * @param cpuTime  in ns
+     * @throws IOException
+     */
+    public void writeSample(long threadId, FrameDictionary frames, int[] frameIds, int length,
+                            long cpuTime) throws IOException {
+        if (length > stackFrameIds_.length) {
+            stackFrameIds_ = new int[length];
+        }
+        for (int i = 0; i < length; i++) {
+            stackFrameIds_[i] = getRecordedFrameId(frames, frameIds[i]);
+        }
+        int stacks = stacks_.size();
+        int stackId = stacks_.getId(stackFrameIds_, length);
+        if (stackId == stacks) {
+            write(STACK);
+            writeVarint(length);
+            for (int i = 0; i < length; i++) {
+                writeVarint(stackFrameIds_[i]);
+            }
+        }
+        write(SAMPLE);
+        writeVarint(threadId);
+        writeVarint(stackId);
+        writeVarint(Math.max(0, cpuTime));
+        samples_++;
+    }
+
+    private int getRecordedFrameId(FrameDictionary frames, int frameId) throws IOException {
+        if (frameId >= recordedFrameIds_.length) {
+            int length = recordedFrameIds_.length;
+            recordedFrameIds_ = Arrays.copyOf(recordedFrameIds_, Math.max(frameId + 1, length * 2));
+            Arrays.fill(recordedFrameIds_, length, recordedFrameIds_.length, -1);
+        }
+        int recordedFrameId = recordedFrameIds_[frameId];
+        if (recordedFrameId == -1) {
+            write(FRAME);
+            writeString(frames.getClassName(frameId));
+            writeString(frames.getMethodName(frameId));
+            // line numbers are -1 if unknown and -2 for native methods
+            writeVarint(Math.max(0, frames.getLineNumber(frameId) + 2));
+            recordedFrameId = recordedFrames_++;
+            recordedFrameIds_[frameId] = recordedFrameId;
+        }
+        return recordedFrameId;
+    }
+
+    /**
+     * Flushes if the last flush is at least {@link #FLUSH_INTERVAL_NANOS} ago,
+     * so the file is kept up to date without a write per sample.
+     *
+     * @param now in ns as returned by {@link System#nanoTime()}
+     * @throws IOException
+     */
+    public void flushIfDue(long now) throws IOException {
+        if (now - lastFlush_ >= FLUSH_INTERVAL_NANOS) {
+            flush();
+            lastFlush_ = now;
+        }
+    }
+
+    /**
+     * Writes the buffered records to the file.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        out_.write(buffer_, 0, position_);
+        written_ += position_;
+        position_ = 0;
+        out_.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out_.close();
+        }
+    }
+
+    /**
+     * @return the number of samples written so far
+     */
+    public long getSamples() {
+        return samples_;
+    }
+
+    /**
+     * @return the number of bytes written so far, including the buffered ones
+     */
+    public long getBytes() {
+        return written_ + position_;
+    }
+
+    private void write(int b) throws IOException {
+        if (position_ == buffer_.length) {
+            flush();
+        }
+        buffer_[position_++] = (byte) b;
+    }
+
+    private void writeInt(int value) throws IOException {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            write(value >>> shift);
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        // a varint takes at most 10 bytes
+        if (position_ + 10 > buffer_.length) {
+            flush();
+        }
+        while ((value & ~0x7fL) != 0) {
+            buffer_[position_++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer_[position_++] = (byte) value;
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        if (position_ + bytes.length > buffer_.length) {
+            flush();
+            if (bytes.length > buffer_.length) {
+                buffer_ = new byte[bytes.length];
+            }
+        }
+        System.arraycopy(bytes, 0, buffer_, position_, bytes.length);
+        position_ += bytes.length;
+    }
+
+    private static int[] newFrameIds(int capacity) {
+        int[] frameIds = new int[capacity];
+        Arrays.fill(frameIds, -1);
+        return frameIds;
+    }
+}
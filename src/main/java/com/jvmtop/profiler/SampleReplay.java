@@ -0,0 +1,249 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Reads a sample log written by {@link SampleRecorder} and feeds its samples to a {@link Listener},
+ * so the profile can be aggregated again without the target jvm
+ * (e.g. with another filter or aggregation).
+ * <p>
+ * A log which ends within a record (e.g. because jvmtop was killed) is read up to that record.
+ */
+public class SampleReplay {
+
+    /**
+     * Receives the samples of the log, in the recorded order
+     */
+    public interface Listener {
+        /**
+         * Starts an update, the subsequent samples belong to it.
+         *
+         * @param timestamp in ns, relative to an arbitrary origin like {@link System#nanoTime()}
+         */
+        void update(long timestamp);
+
+        /**
+         * @param threadId
+         * @param frameIds the frame ids of the dictionary, starting with the innermost frame.
+         *                 The array is reused, it is only valid during the call.
+         * @param length   number of valid entries in frameIds
+         * @param cpuTime  in ns
+         */
+        void sample(long threadId, int[] frameIds, int length, long cpuTime);
+    }
+
+    private final Path file_;
+
+    private long startMillis_ = 0;
+
+    private long duration_ = 0;
+
+    private long updates_ = 0;
+
+    private long samples_ = 0;
+
+    private int stackCount_ = 0;
+
+    private boolean truncated_ = false;
+
+    public SampleReplay(Path file) {
+        file_ = file;
+    }
+
+    /**
+     * Reads the complete log.
+     *
+     * @param frames   dictionary in which the recorded frames are interned
+     * @param listener
+     * @throws IOException if the file cannot be read or is not a sample log
+     */
+    public void replay(FrameDictionary frames, Listener listener) throws IOException {
+        try (InputStream in = Files.newInputStream(file_)) {
+            replay(in, frames, listener);
+        }
+    }
+
+    /**
+     * @param in
+     * @param frames   dictionary in which the recorded frames are interned
+     * @param listener
+     * @throws IOException if the stream cannot be read or is not a sample log
+     */
+    public void replay(InputStream in, FrameDictionary frames, Listener listener) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        if (data.readInt() != SampleRecorder.MAGIC) {
+            throw new IOException(file_ + " is not a jvmtop sample recording");
+        }
+        long version = readVarint(data);
+        if (version != SampleRecorder.VERSION) {
+            throw new IOException("Unsupported version " + version + " of sample recording " + file_);
+        }
+        startMillis_ = readVarint(data);
+
+        // dictionary frame id per recorded frame id
+        int[] frameIds = new int[1024];
+        int frameCount = 0;
+        // frame ids of all stacks, indexed by the offsets
+        int[] stackFrames = new int[16 * 1024];
+        int stackFramesSize = 0;
+        int[] stackOffsets = new int[1024];
+        int stackCount = 0;
+        int[] sampleFrameIds = new int[256];
+        long timestamp = 0;
+        updates_ = 0;
+        samples_ = 0;
+        truncated_ = false;
+        while (true) {
+            int type = data.read();
+            if (type == -1) {
+                break;
+            }
+            try {
+                if (type == SampleRecorder.FRAME) {
+                    String className = readString(data);
+                    String methodName = readString(data);
+                    int lineNumber = (int) readVarint(data) - 2;
+                    if (frameCount == frameIds.length) {
+                        frameIds = Arrays.copyOf(frameIds, frameCount * 2);
+                    }
+                    frameIds[frameCount++] = frames.getId(className, methodName, lineNumber);
+                } else if (type == SampleRecorder.STACK) {
+                    int length = readLength(data);
+                    if (stackCount + 1 >= stackOffsets.length) {
+                        stackOffsets = Arrays.copyOf(stackOffsets, stackOffsets.length * 2);
+                    }
+                    if (stackFramesSize + length > stackFrames.length) {
+                        stackFrames = Arrays.copyOf(stackFrames,
+                                Math.max(stackFramesSize + length, stackFrames.length * 2));
+                    }
+                    for (int i = 0; i < length; i++) {
+                        int frameId = readId(data, frameCount, "frame");
+                        stackFrames[stackFramesSize++] = frameIds[frameId];
+                    }
+                    stackOffsets[++stackCount] = stackFramesSize;
+                } else if (type == SampleRecorder.UPDATE) {
+                    timestamp += readVarint(data);
+                    updates_++;
+                    listener.update(timestamp);
+                } else if (type == SampleRecorder.SAMPLE) {
+                    long threadId = readVarint(data);
+                    int stackId = readId(data, stackCount, "stack");
+                    long cpuTime = readVarint(data);
+                    int offset = stackOffsets[stackId];
+                    int length = stackOffsets[stackId + 1] - offset;
+                    if (length > sampleFrameIds.length) {
+                        sampleFrameIds = new int[length];
+                    }
+                    System.arraycopy(stackFrames, offset, sampleFrameIds, 0, length);
+                    samples_++;
+                    listener.sample(threadId, sampleFrameIds, length, cpuTime);
+                } else {
+                    throw new IOException("Unknown record type " + type + " in sample recording " + file_);
+                }
+            } catch (EOFException e) {
+                truncated_ = true;
+                break;
+            }
+        }
+        duration_ = timestamp;
+        stackCount_ = stackCount;
+    }
+
+    /**
+     * @return the start of the recording in ms since the epoch
+     */
+    public long getStartMillis() {
+        return startMillis_;
+    }
+
+    /**
+     * @return the time between the start of the recording and its last update, in ns
+     */
+    public long getDuration() {
+        return duration_;
+    }
+
+    public long getUpdates() {
+        return updates_;
+    }
+
+    public long getSamples() {
+        return samples_;
+    }
+
+    /**
+     * @return the number of distinct stacks
+     */
+    public int getStackCount() {
+        return stackCount_;
+    }
+
+    /**
+     * @return true if the log ended within a record
+     */
+    public boolean isTruncated() {
+        return truncated_;
+    }
+
+    private int readId(DataInputStream data, int count, String kind) throws IOException {
+        long id = readVarint(data);
+        if (id >= count) {
+            throw new IOException("Undefined " + kind + " id " + id + " in sample recording " + file_);
+        }
+        return (int) id;
+    }
+
+    private int readLength(DataInputStream data) throws IOException {
+        long length = readVarint(data);
+        if (length > Integer.MAX_VALUE / 2) {
+            throw new IOException("Invalid length " + length + " in sample recording " + file_);
+        }
+        return (int) length;
+    }
+
+    private String readString(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[readLength(data)];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarint(DataInputStream data) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = data.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint in sample recording");
+    }
+}
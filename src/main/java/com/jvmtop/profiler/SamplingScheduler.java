@@ -0,0 +1,187 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a sampling task at a fixed rate on a dedicated daemon thread,
+ * independent of how long rendering takes.
+ * <p>
+ * Each sample is scheduled relative to the start of the sampling, so the rate
+ * does not drift with the duration of the task (e.g. the RMI latency).
+ * If a sample takes longer than the period, the missed samples are skipped
+ * and counted as overruns instead of being executed back-to-back.
+ * <p>
+ * If the task fails, sampling stops and the failure is available via {@link #getFailure()}.
+ */
+public class SamplingScheduler implements Closeable {
+
+    public static final double DEFAULT_RATE = 10;
+
+    /**
+     * A task executed on every sample
+     */
+    public interface Task {
+        void sample() throws Exception;
+    }
+
+    private final Task task_;
+
+    private final long periodNanos_;
+
+    private volatile boolean running_ = false;
+
+    private Thread thread_ = null;
+
+    private volatile Exception failure_ = null;
+
+    private volatile long samples_ = 0;
+
+    private volatile long overruns_ = 0;
+
+    private volatile long busyNanos_ = 0;
+
+    /**
+     * @param task
+     * @param rate samples per second
+     */
+    public SamplingScheduler(Task task, double rate) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        task_ = task;
+        periodNanos_ = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+    }
+
+    /**
+     * Starts sampling in the background, the first sample is taken immediately.
+     */
+    public void start() {
+        start(0);
+    }
+
+    /**
+     * Starts sampling in the background.
+     *
+     * @param initialDelayNanos delay of the first sample
+     */
+    public synchronized void start(final long initialDelayNanos) {
+        if (thread_ != null) {
+            return;
+        }
+        running_ = true;
+        thread_ = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sampleLoop(initialDelayNanos);
+            }
+        }, "jvmtop-sampler");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    public synchronized boolean isStarted() {
+        return thread_ != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        running_ = false;
+        if (thread_ != null) {
+            thread_.interrupt();
+        }
+    }
+
+    /**
+     * @return the number of samples taken so far
+     */
+    public long getSamples() {
+        return samples_;
+    }
+
+    /**
+     * @return the number of samples skipped, because a previous sample took longer than the period
+     */
+    public long getOverruns() {
+        return overruns_;
+    }
+
+    /**
+     * @return the average duration of a sample in ms
+     */
+    public double getAverageSampleMillis() {
+        long samples = samples_;
+        return samples == 0 ? 0 : busyNanos_ / 1000000d / samples;
+    }
+
+    /**
+     * @return the configured samples per second
+     */
+    public double getRate() {
+        return (double) TimeUnit.SECONDS.toNanos(1) / periodNanos_;
+    }
+
+    /**
+     * @return the exception which stopped the sampling or null, if still sampling
+     */
+    public Exception getFailure() {
+        return failure_;
+    }
+
+    private void sampleLoop(long initialDelayNanos) {
+        long next = System.nanoTime() + initialDelayNanos;
+        while (running_) {
+            long remaining;
+            while (running_ && (remaining = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            if (!running_) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                task_.sample();
+            } catch (Exception e) {
+                if (running_) {
+                    Logger.getLogger("jvmtop").log(Level.FINE, "sampling failed", e);
+                    failure_ = e;
+                    running_ = false;
+                }
+                return;
+            }
+            long end = System.nanoTime();
+            busyNanos_ += end - start;
+            samples_++;
+
+            next += periodNanos_;
+            if (end - next > 0) {
+                long missed = (end - next) / periodNanos_ + 1;
+                overruns_ += missed;
+                next += missed * periodNanos_;
+            }
+        }
+    }
+}
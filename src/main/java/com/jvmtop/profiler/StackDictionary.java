@@ -0,0 +1,159 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Interns stacks (sequences of frame ids) to dense int ids, starting at 0.
+ * <p>
+ * The frame ids of all stacks are stored consecutively in a single int array,
+ * looking up a known stack does not allocate.
+ * <p>
+ * Not thread-safe.
+ */
+public class StackDictionary {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int NO_ID = -1;
+
+    // hash table slots, containing stack ids
+    private int[] slots_ = newSlots(INITIAL_CAPACITY * 2);
+
+    // frame ids of all stacks
+    private int[] pool_ = new int[INITIAL_CAPACITY * 16];
+
+    private int poolSize_ = 0;
+
+    private int[] offsets_ = new int[INITIAL_CAPACITY];
+
+    private int[] lengths_ = new int[INITIAL_CAPACITY];
+
+    private int[] hashes_ = new int[INITIAL_CAPACITY];
+
+    private int size_ = 0;
+
+    /**
+     * @param frameIds
+     * @param length   number of valid entries in frameIds
+     * @return the id of the given stack, a new one if it has not been seen before
+     */
+    public int getId(int[] frameIds, int length) {
+        int hash = hash(frameIds, length);
+        int mask = slots_.length - 1;
+        int slot = hash & mask;
+        while (slots_[slot] != NO_ID) {
+            int id = slots_[slot];
+            if (hashes_[id] == hash && equals(id, frameIds, length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(slot, hash, frameIds, length);
+    }
+
+    /**
+     * @return the number of interned stacks, all ids are lower than this
+     */
+    public int size() {
+        return size_;
+    }
+
+    public int getLength(int id) {
+        return lengths_[id];
+    }
+
+    /**
+     * @param id
+     * @param index index within the stack
+     * @return the frame id
+     */
+    public int getFrameId(int id, int index) {
+        return pool_[offsets_[id] + index];
+    }
+
+    private boolean equals(int id, int[] frameIds, int length) {
+        if (lengths_[id] != length) {
+            return false;
+        }
+        int offset = offsets_[id];
+        for (int i = 0; i < length; i++) {
+            if (pool_[offset + i] != frameIds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int add(int slot, int hash, int[] frameIds, int length) {
+        int id = size_++;
+        if (id == offsets_.length) {
+            int capacity = offsets_.length * 2;
+            offsets_ = Arrays.copyOf(offsets_, capacity);
+            lengths_ = Arrays.copyOf(lengths_, capacity);
+            hashes_ = Arrays.copyOf(hashes_, capacity);
+        }
+        if (poolSize_ + length > pool_.length) {
+            pool_ = Arrays.copyOf(pool_, Math.max(poolSize_ + length, pool_.length * 2));
+        }
+        System.arraycopy(frameIds, 0, pool_, poolSize_, length);
+        offsets_[id] = poolSize_;
+        lengths_[id] = length;
+        hashes_[id] = hash;
+        poolSize_ += length;
+
+        // keep the load factor below 0.5
+        if (size_ * 2 > slots_.length) {
+            rehash(slots_.length * 2);
+        } else {
+            slots_[slot] = id;
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        slots_ = newSlots(capacity);
+        int mask = capacity - 1;
+        for (int id = 0; id < size_; id++) {
+            int slot = hashes_[id] & mask;
+            while (slots_[slot] != NO_ID) {
+                slot = (slot + 1) & mask;
+            }
+            slots_[slot] = id;
+        }
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, NO_ID);
+        return slots;
+    }
+
+    private static int hash(int[] frameIds, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = hash * 31 + frameIds[i];
+        }
+        // spread the bits, as only the lower ones are used for the slot
+        return hash ^ (hash >>> 16);
+    }
+}
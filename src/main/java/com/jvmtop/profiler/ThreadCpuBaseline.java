@@ -0,0 +1,75 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+/**
+ * Tracks the cpu time of each live thread between samples, to compute
+ * the cpu time a thread consumed since the previous sample.
+ * <p>
+ * Each sample records the cpu times of all threads via {@link #update(long, long)},
+ * followed by {@link #swap()}, which makes them the baseline of the next sample.
+ * Threads not recorded by a sample (i.e. terminated) are dropped,
+ * so the memory use follows the number of live threads.
+ * <p>
+ * Not thread-safe.
+ */
+public class ThreadCpuBaseline {
+
+    // cpu time of each live thread at the previous sample
+    private LongLongMap baseline_ = new LongLongMap();
+
+    // cpu times of the current sample, replaces the baseline afterwards
+    private LongLongMap current_ = new LongLongMap();
+
+    private boolean initialized_ = false;
+
+    /**
+     * Records the cpu time of a thread for the current sample.
+     *
+     * @param tid
+     * @param cpuTime the cpu time of the thread, negative if it has terminated
+     * @return the cpu time consumed since the previous sample
+     */
+    public long update(long tid, long cpuTime) {
+        if (cpuTime < 0) {
+            return 0;
+        }
+        current_.put(tid, cpuTime);
+        long baseline = baseline_.get(tid, -1);
+        if (baseline >= 0) {
+            return cpuTime - baseline;
+        }
+        // a thread started since the previous sample consumed all its cpu time in this interval,
+        // whereas the threads seen by the first sample have no known baseline
+        return initialized_ ? cpuTime : 0;
+    }
+
+    /**
+     * Makes the cpu times of the current sample the new baseline.
+     */
+    public void swap() {
+        LongLongMap previous = baseline_;
+        baseline_ = current_;
+        current_ = previous;
+        current_.clear();
+        initialized_ = true;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+/**
+ * Selects the first k of n entries in a given order via a bounded heap,
+ * in O(n log k) instead of sorting all entries.
+ * <p>
+ * Entries are identified by their index, so the data can stay in primitive columns.
+ * The order must be total (e.g. ties broken by name), otherwise the selection of
+ * equal entries is arbitrary.
+ */
+public final class TopK {
+
+    /**
+     * Order of entries, by index
+     */
+    public interface IndexComparator {
+        /**
+         * @return a negative number if the entry at index1 comes first,
+         * a positive number if the entry at index2 comes first, 0 if they are equal
+         */
+        int compare(int index1, int index2);
+    }
+
+    private TopK() {
+    }
+
+    /**
+     * @param size  number of entries, indexed from 0
+     * @param k     maximum number of entries to select
+     * @param order
+     * @return the indices of the first k entries (or fewer, if there are fewer entries), in the given order
+     */
+    public static int[] select(int size, int k, IndexComparator order) {
+        k = Math.max(0, Math.min(k, size));
+        // heap of the selected entries, its root is the entry which comes last
+        int[] heap = new int[k];
+        int heapSize = 0;
+        for (int index = 0; index < size && k > 0; index++) {
+            if (heapSize < k) {
+                heap[heapSize] = index;
+                siftUp(heap, heapSize++, order);
+            } else if (order.compare(index, heap[0]) < 0) {
+                heap[0] = index;
+                siftDown(heap, heapSize, order);
+            }
+        }
+        // removing the root repeatedly yields the entries in reverse order
+        int[] result = new int[heapSize];
+        while (heapSize > 0) {
+            result[heapSize - 1] = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize, order);
+        }
+        return result;
+    }
+
+    private static void siftUp(int[] heap, int position, IndexComparator order) {
+        int index = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (order.compare(heap[parent], index) >= 0) {
+                break;
+            }
+            heap[position] = heap[parent];
+            position = parent;
+        }
+        heap[position] = index;
+    }
+
+    private static void siftDown(int[] heap, int size, IndexComparator order) {
+        if (size == 0) {
+            return;
+        }
+        int index = heap[0];
+        int position = 0;
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            // the child which comes later
+            if (child + 1 < size && order.compare(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (order.compare(index, heap[child]) >= 0) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = index;
+    }
+}
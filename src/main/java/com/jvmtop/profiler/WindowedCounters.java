@@ -0,0 +1,233 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Recent cpu time per frame id, as sliding window and as exponentially decayed sum.
+ * <p>
+ * The window consists of a fixed ring of buckets, each covering an equal part of the
+ * window duration. When a bucket expires, its values are subtracted from the window
+ * sums and it is reused for the next interval.
+ * The decayed sums are scaled down on every bucket rotation, according to the half-life.
+ * <p>
+ * The memory use depends only on the number of buckets and frames,
+ * not on the profiling duration.
+ * <p>
+ * Not thread-safe.
+ */
+public class WindowedCounters {
+
+    public static final int DEFAULT_WINDOW_SECONDS = 60;
+
+    public static final int DEFAULT_BUCKETS = 12;
+
+    private final long bucketNanos_;
+
+    private final double decayPerBucket_;
+
+    // values per bucket and frame id
+    private final long[][] buckets_;
+
+    private final long[] bucketTotals_;
+
+    private final long[] bucketWallTimes_;
+
+    private int currentBucket_ = 0;
+
+    private long currentBucketStart_ = 0;
+
+    private long[] windowValues_;
+
+    private long windowTotal_ = 0;
+
+    private long windowWallTime_ = 0;
+
+    private double[] decayedValues_;
+
+    private double decayedTotal_ = 0;
+
+    private double decayedWallTime_ = 0;
+
+    public WindowedCounters() {
+        this(DEFAULT_WINDOW_SECONDS, DEFAULT_BUCKETS, DEFAULT_WINDOW_SECONDS / 4d);
+    }
+
+    /**
+     * @param windowSeconds    duration of the sliding window
+     * @param buckets          number of buckets the window consists of
+     * @param halfLifeSeconds  the time after which the decayed values are halved
+     */
+    public WindowedCounters(double windowSeconds, int buckets, double halfLifeSeconds) {
+        if (!(windowSeconds > 0) || buckets < 1 || !(halfLifeSeconds > 0)) {
+            throw new IllegalArgumentException("Window, buckets and half-life must be positive");
+        }
+        bucketNanos_ = Math.max(1, (long) (windowSeconds * 1000000000d / buckets));
+        decayPerBucket_ = Math.pow(0.5, bucketNanos_ / 1000000000d / halfLifeSeconds);
+        buckets_ = new long[buckets][1024];
+        bucketTotals_ = new long[buckets];
+        bucketWallTimes_ = new long[buckets];
+        windowValues_ = new long[1024];
+        decayedValues_ = new double[1024];
+    }
+
+    /**
+     * Rotates the buckets which expired until the given time.
+     *
+     * @param now the current {@link System#nanoTime()}
+     */
+    public void advance(long now) {
+        if (currentBucketStart_ == 0) {
+            currentBucketStart_ = now;
+            return;
+        }
+        long elapsed = (now - currentBucketStart_) / bucketNanos_;
+        if (elapsed <= 0) {
+            return;
+        }
+        currentBucketStart_ += elapsed * bucketNanos_;
+        // after a full rotation all buckets are empty anyway
+        for (long i = 0; i < Math.min(elapsed, buckets_.length); i++) {
+            currentBucket_ = (currentBucket_ + 1) % buckets_.length;
+            expire(currentBucket_);
+        }
+        double decay = Math.pow(decayPerBucket_, elapsed);
+        for (int id = 0; id < decayedValues_.length; id++) {
+            decayedValues_[id] *= decay;
+        }
+        decayedTotal_ *= decay;
+        decayedWallTime_ *= decay;
+    }
+
+    /**
+     * Adds a value to the current bucket and the decayed sum of the frame.
+     *
+     * @param id    frame id
+     * @param value
+     */
+    public void add(int id, long value) {
+        if (id >= windowValues_.length) {
+            grow(id + 1);
+        }
+        buckets_[currentBucket_][id] += value;
+        bucketTotals_[currentBucket_] += value;
+        windowValues_[id] += value;
+        windowTotal_ += value;
+        decayedValues_[id] += value;
+        decayedTotal_ += value;
+    }
+
+    /**
+     * Adds the wall time covered by a sample.
+     *
+     * @param nanos
+     */
+    public void addWallTime(long nanos) {
+        bucketWallTimes_[currentBucket_] += nanos;
+        windowWallTime_ += nanos;
+        decayedWallTime_ += nanos;
+    }
+
+    public long getWindowValue(int id) {
+        return id < windowValues_.length ? windowValues_[id] : 0;
+    }
+
+    public long getWindowTotal() {
+        return windowTotal_;
+    }
+
+    /**
+     * @return the sampled wall time (in ns) within the window
+     */
+    public long getWindowWallTime() {
+        return windowWallTime_;
+    }
+
+    public double getDecayedValue(int id) {
+        return id < decayedValues_.length ? decayedValues_[id] : 0;
+    }
+
+    public double getDecayedTotal() {
+        return decayedTotal_;
+    }
+
+    /**
+     * @return the decayed sampled wall time (in ns)
+     */
+    public double getDecayedWallTime() {
+        return decayedWallTime_;
+    }
+
+    /**
+     * Keeps only the values of the given ids, which are renumbered to their index in ids.
+     * The totals are reduced by the values of the dropped ids, the wall times are kept.
+     *
+     * @param ids   the ids to keep, ascending
+     * @param count number of valid entries in ids
+     */
+    public void retain(int[] ids, int count) {
+        int capacity = Math.max(1024, count * 2);
+        for (int bucket = 0; bucket < buckets_.length; bucket++) {
+            long[] values = new long[capacity];
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                values[i] = buckets_[bucket][ids[i]];
+                total += values[i];
+            }
+            buckets_[bucket] = values;
+            bucketTotals_[bucket] = total;
+        }
+        long[] windowValues = new long[capacity];
+        double[] decayedValues = new double[capacity];
+        windowTotal_ = 0;
+        decayedTotal_ = 0;
+        for (int i = 0; i < count; i++) {
+            windowValues[i] = windowValues_[ids[i]];
+            decayedValues[i] = decayedValues_[ids[i]];
+            windowTotal_ += windowValues[i];
+            decayedTotal_ += decayedValues[i];
+        }
+        windowValues_ = windowValues;
+        decayedValues_ = decayedValues;
+    }
+
+    private void expire(int bucket) {
+        long[] values = buckets_[bucket];
+        for (int id = 0; id < values.length; id++) {
+            windowValues_[id] -= values[id];
+        }
+        Arrays.fill(values, 0);
+        windowTotal_ -= bucketTotals_[bucket];
+        bucketTotals_[bucket] = 0;
+        windowWallTime_ -= bucketWallTimes_[bucket];
+        bucketWallTimes_[bucket] = 0;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, windowValues_.length * 2);
+        for (int i = 0; i < buckets_.length; i++) {
+            buckets_[i] = Arrays.copyOf(buckets_[i], capacity);
+        }
+        windowValues_ = Arrays.copyOf(windowValues_, capacity);
+        decayedValues_ = Arrays.copyOf(decayedValues_, capacity);
+    }
+}
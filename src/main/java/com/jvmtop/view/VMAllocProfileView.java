@@ -0,0 +1,217 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.view;
+
+import com.jvmtop.monitor.VMInfo;
+import com.jvmtop.monitor.VMInfoCollector;
+import com.jvmtop.monitor.VMInfoState;
+import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+import com.jvmtop.profiler.AllocationSampler;
+import com.jvmtop.profiler.AllocationStackStats;
+import com.jvmtop.profiler.ClassAllocationStats;
+import com.jvmtop.profiler.HeapSampler;
+import com.jvmtop.profiler.MethodStats;
+import com.jvmtop.profiler.PackageFilter;
+import com.jvmtop.profiler.SamplingScheduler;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Allocation profiler view which shows the allocation sites, classes and allocating stacks
+ * with the highest recent allocation rates, based on Java Flight Recorder allocation events.
+ */
+public class VMAllocProfileView extends AbstractConsoleView {
+
+    // the flight recorder is flushed on every update, which is too expensive to do often
+    private static final double UPDATE_RATE = 1;
+
+    private static final int STACK_DEPTH = 4;
+
+    private final VMInfo vmInfo_;
+
+    private final VMInfoCollector collector_;
+
+    private final AllocationSampler allocationSampler_;
+
+    private SamplingScheduler scheduler_ = null;
+
+    private String error_ = null;
+
+    private int topRows_ = 10;
+
+    private int topStacks_ = 3;
+
+    public VMAllocProfileView(int vmid, Integer width, VMInfoCollector collector) throws Exception {
+        super(width);
+        collector_ = collector;
+        LocalVirtualMachine localVirtualMachine = LocalVirtualMachine
+                .getLocalVirtualMachine(vmid);
+        vmInfo_ = collector.attach(localVirtualMachine, vmid);
+        collector.awaitAttach(vmInfo_);
+        allocationSampler_ = new AllocationSampler(vmInfo_.getProxyClient());
+    }
+
+    @Override
+    public void sleep(long millis) throws Exception {
+        if (shouldExit()) {
+            return;
+        }
+        if (scheduler_ == null && error_ == null) {
+            try {
+                allocationSampler_.start();
+            } catch (Exception e) {
+                Logger.getLogger("jvmtop").log(Level.FINE, "could not start the allocation recording", e);
+                error_ = String.valueOf(e.getMessage());
+                super.sleep(millis);
+                return;
+            }
+            // stop the recording in the target jvm when jvmtop terminates
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    allocationSampler_.close();
+                }
+            }, "jvmtop-alloc-shutdown"));
+            scheduler_ = new SamplingScheduler(new SamplingScheduler.Task() {
+                @Override
+                public void sample() throws Exception {
+                    allocationSampler_.update();
+                }
+            }, UPDATE_RATE);
+            scheduler_.start();
+        }
+        super.sleep(millis);
+    }
+
+    @Override
+    protected void exit() {
+        super.exit();
+        if (scheduler_ != null) {
+            scheduler_.close();
+        }
+    }
+
+    public void printView() throws Exception {
+        collector_.update(vmInfo_);
+        if (vmInfo_.getState() == VMInfoState.ATTACHED_UPDATE_ERROR
+                || (scheduler_ != null && scheduler_.getFailure() != null)) {
+            System.out
+                    .println("ERROR: Could not fetch telemetries - Process terminated?");
+            exit();
+            return;
+        }
+        if (vmInfo_.getState() == VMInfoState.TIMED_OUT) {
+            System.out.println("ERROR: Timed out while attaching to process.");
+            exit();
+            return;
+        }
+        if (vmInfo_.getState() != VMInfoState.ATTACHED) {
+            System.out.println("ERROR: Could not attach to process.");
+            exit();
+            return;
+        }
+        if (error_ != null) {
+            System.out.printf("ERROR: Could not start the allocation recording: %s%n", error_);
+            exit();
+            return;
+        }
+
+        int w = width - 40;
+        System.out.printf(" Allocation profiling PID %d: %29s %n", vmInfo_.getId(),
+                leftStr(vmInfo_.getDisplayName(), w));
+        System.out.printf(" Allocation rate: %s/s (last %ds), GC load: %5.2f%%, %d events fetched%n%n",
+                HeapSampler.toHumanFormString((long) allocationSampler_.getAllocationRate()),
+                AllocationSampler.DEFAULT_WINDOW_SECONDS, vmInfo_.getGcLoad() * 100,
+                allocationSampler_.getLastEvents());
+
+        // these are the spaces taken up by the formatting, the rest is usable
+        // for printing out the names
+        int nameWidth = width - (1 + 14 + 1 + 7 + 2);
+        System.out.printf(" %14s %7s  %s%n", "BYTES/S", "%", "ALLOCATION SITE");
+        double totalRate = allocationSampler_.getAllocationRate();
+        for (MethodStats stats : allocationSampler_.getTopSites(topRows_)) {
+            double rate = allocationSampler_.toRate(stats.getHits());
+            System.out.printf(" %14s %6.2f%%  %s():%d%n", HeapSampler.toHumanFormString((long) rate),
+                    rate / totalRate * 100,
+                    rightStr(stats.getClassName() + "." + stats.getMethodName(), nameWidth - 8),
+                    stats.getLineNumber());
+        }
+        System.out.println();
+        System.out.printf(" %14s %7s  %s%n", "BYTES/S", "%", "CLASS");
+        for (ClassAllocationStats stats : allocationSampler_.getTopClasses(topRows_)) {
+            double rate = allocationSampler_.toRate(stats.getBytes());
+            System.out.printf(" %14s %6.2f%%  %s%n", HeapSampler.toHumanFormString((long) rate),
+                    rate / totalRate * 100,
+                    rightStr(toTypeName(stats.getClassName()), nameWidth));
+        }
+        System.out.println();
+        System.out.printf(" %14s %7s  %s%n", "BYTES/S", "%", "CLASS / ALLOCATING STACK");
+        for (AllocationStackStats stats : allocationSampler_.getTopStacks(topStacks_, STACK_DEPTH)) {
+            double rate = allocationSampler_.toRate(stats.getBytes());
+            System.out.printf(" %14s %6.2f%%  %s%n", HeapSampler.toHumanFormString((long) rate),
+                    rate / totalRate * 100,
+                    rightStr(toTypeName(stats.getClassName()), nameWidth));
+            for (StackTraceElement frame : stats.getStack()) {
+                System.out.printf(" %24s at %s():%d%n", "",
+                        rightStr(frame.getClassName() + "." + frame.getMethodName(), nameWidth - 11),
+                        frame.getLineNumber());
+            }
+        }
+    }
+
+    /**
+     * @param className class name as recorded by the flight recorder, arrays in JNI notation (e.g. [B)
+     * @return
+     */
+    private static String toTypeName(String className) {
+        return className.startsWith("[") ? HeapSampler.fromNativeType(className) : className;
+    }
+
+    public int getTopRows() {
+        return topRows_;
+    }
+
+    /**
+     * @param topRows the number of allocation sites and classes displayed
+     */
+    public void setTopRows(int topRows) {
+        topRows_ = topRows;
+    }
+
+    public int getTopStacks() {
+        return topStacks_;
+    }
+
+    /**
+     * @param topStacks the number of allocating stacks displayed
+     */
+    public void setTopStacks(int topStacks) {
+        topStacks_ = topStacks;
+    }
+
+    /**
+     * @param filter decides which frames are skipped when determining the allocation site
+     */
+    public void setFilter(PackageFilter filter) {
+        allocationSampler_.setFilter(filter);
+    }
+}
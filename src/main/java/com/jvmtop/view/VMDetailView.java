@@ -22,10 +22,13 @@
 package com.jvmtop.view;
 
 import com.jvmtop.monitor.VMInfo;
+import com.jvmtop.monitor.VMInfoCollector;
 import com.jvmtop.monitor.VMInfoState;
+import com.jvmtop.monitor.VMStaticInfo;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
 
 import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -43,6 +46,8 @@ public class VMDetailView extends AbstractConsoleView {
 
     private final VMInfo vmInfo_;
 
+    private final VMInfoCollector collector_;
+
     private boolean sortByTotalCPU_ = false;
 
     private int numberOfDisplayedThreads_ = 100;
@@ -55,10 +60,15 @@ public class VMDetailView extends AbstractConsoleView {
     private Map<Long, Long> previousThreadCPUMillis = new HashMap<Long, Long>();
 
     public VMDetailView(int vmid, Integer width) throws Exception {
+        this(vmid, width, new VMInfoCollector(1, VMInfoCollector.DEFAULT_READ_TIMEOUT_MILLIS));
+    }
+
+    public VMDetailView(int vmid, Integer width, VMInfoCollector collector) throws Exception {
         super(width);
+        collector_ = collector;
         LocalVirtualMachine localVirtualMachine = LocalVirtualMachine
                 .getLocalVirtualMachine(vmid);
-        vmInfo_ = VMInfo.processNewVM(localVirtualMachine, vmid);
+        vmInfo_ = collector_.attach(localVirtualMachine, vmid);
     }
 
     public boolean isSortByTotalCPU() {
@@ -70,8 +80,19 @@ public class VMDetailView extends AbstractConsoleView {
     }
 
     public void printView() throws Exception {
-        vmInfo_.update();
+        collector_.update(vmInfo_);
 
+        // the first update after attaching may still be running
+        if (vmInfo_.getState() == VMInfoState.INIT
+                || (vmInfo_.getState() == VMInfoState.ATTACHED && vmInfo_.getStaticInfo() == null)) {
+            System.out.printf(" PID %d: Attaching...%n", vmInfo_.getId());
+            return;
+        }
+        if (vmInfo_.getState() == VMInfoState.TIMED_OUT) {
+            System.out.printf(" PID %d: [TIMEOUT: VM is not responding, retrying]%n",
+                    vmInfo_.getId());
+            return;
+        }
         if (vmInfo_.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
             System.out
                     .println("ERROR: Could not fetch telemetries - Process terminated?");
@@ -84,9 +105,9 @@ public class VMDetailView extends AbstractConsoleView {
             return;
         }
 
-        Map<String, String> properties = vmInfo_.getSystemProperties();
+        VMStaticInfo staticInfo = vmInfo_.getStaticInfo();
 
-        String command = properties.get("sun.java.command");
+        String command = staticInfo.getCommand();
         if (command != null) {
             String[] commandArray = command.split(" ");
 
@@ -106,20 +127,20 @@ public class VMDetailView extends AbstractConsoleView {
             System.out.printf(" ARGS: [UNKNOWN] %n");
         }
 
-        String join = join(vmInfo_.getRuntimeMXBean().getInputArguments(), " ");
+        String join = join(staticInfo.getInputArguments(), " ");
         if (join.length() > 65) {
             System.out.printf(" VMARGS: %s[...]%n", leftStr(join, 65));
         } else {
             System.out.printf(" VMARGS: %s%n", join);
         }
 
-        System.out.printf(" VM: %s %s %s%n", properties.get("java.vendor"),
-                properties.get("java.vm.name"), properties.get("java.version"));
+        System.out.printf(" VM: %s %s %s%n", staticInfo.getVendor(),
+                staticInfo.getVMName(), staticInfo.getJavaVersion());
         System.out.printf(
                 " UP: %-7s #THR: %-4d #THRPEAK: %-4d #THRCREATED: %-4d USER: %-12s%n",
                 toHHMM(vmInfo_.getRuntimeMXBean().getUptime()), vmInfo_
                         .getThreadCount(), vmInfo_.getThreadMXBean().getPeakThreadCount(),
-                vmInfo_.getThreadMXBean().getTotalStartedThreadCount(), vmInfo_
+                vmInfo_.getThreadMXBean().getTotalStartedThreadCount(), staticInfo
                         .getOSUser());
 
         System.out.printf(
@@ -147,15 +168,23 @@ public class VMDetailView extends AbstractConsoleView {
                         + "s  %13s %8s    %8s %5s %n", "TID", "NAME", "STATE", "CPU",
                 "TOTALCPU", "BLOCKEDBY");
 
-        if (vmInfo_.getThreadMXBean().isThreadCpuTimeSupported()) {
+        ThreadMXBean threadMXBean = vmInfo_.getThreadMXBean();
+        if (threadMXBean.isThreadCpuTimeSupported()) {
 
             //TODO: move this into VMInfo?
             Map<Long, Long> newThreadCPUMillis = new HashMap<Long, Long>();
 
             Map<Long, Long> cpuTimeMap = new TreeMap<Long, Long>();
 
-            for (Long tid : vmInfo_.getThreadMXBean().getAllThreadIds()) {
-                long threadCpuTime = vmInfo_.getThreadMXBean().getThreadCpuTime(tid);
+            long[] tids = threadMXBean.getAllThreadIds();
+            long[] threadCpuTimes = vmInfo_.getProxyClient().getThreadCpuTimes(tids);
+            for (int i = 0; i < tids.length; i++) {
+                long tid = tids[i];
+                long threadCpuTime = threadCpuTimes[i];
+                if (threadCpuTime < 0) {
+                    // thread has terminated in the meantime
+                    continue;
+                }
                 long deltaThreadCpuTime = 0;
                 if (previousThreadCPUMillis.containsKey(tid)) {
                     deltaThreadCpuTime = threadCpuTime - previousThreadCPUMillis.get(tid);
@@ -167,14 +196,25 @@ public class VMDetailView extends AbstractConsoleView {
 
             cpuTimeMap = sortByValue(cpuTimeMap, true);
 
-            int displayedThreads = 0;
+            // fetch the infos of all displayed threads at once
+            int displayedThreads = cpuTimeMap.size();
+            if (displayedThreadLimit_) {
+                displayedThreads = Math.min(displayedThreads, numberOfDisplayedThreads_);
+            }
+            long[] displayedTids = new long[displayedThreads];
+            int index = 0;
             for (Long tid : cpuTimeMap.keySet()) {
-                ThreadInfo info = vmInfo_.getThreadMXBean().getThreadInfo(tid);
-                displayedThreads++;
-                if (displayedThreads > numberOfDisplayedThreads_
-                        && displayedThreadLimit_) {
+                if (index >= displayedThreads) {
                     break;
                 }
+                displayedTids[index++] = tid;
+            }
+            ThreadInfo[] infos = threadMXBean.getThreadInfo(displayedTids);
+            long processCpuTime = vmInfo_.getProxyClient().getProcessCpuTime();
+
+            for (int i = 0; i < displayedTids.length; i++) {
+                long tid = displayedTids[i];
+                ThreadInfo info = infos[i];
                 if (info != null) {
                     System.out.printf(
                             " %6d %-" + threadNameDisplayWidth_
@@ -184,9 +224,8 @@ public class VMDetailView extends AbstractConsoleView {
                             info.getThreadState(),
                             getThreadCPUUtilization(cpuTimeMap.get(tid),
                                     vmInfo_.getDeltaUptime()),
-                            getThreadCPUUtilization(vmInfo_.getThreadMXBean()
-                                    .getThreadCpuTime(tid), vmInfo_.getProxyClient()
-                                    .getProcessCpuTime(), 1), getBlockedThread(info));
+                            getThreadCPUUtilization(newThreadCPUMillis.get(tid),
+                                    processCpuTime, 1), getBlockedThread(info));
                 }
             }
             if (newThreadCPUMillis.size() >= numberOfDisplayedThreads_
@@ -1,27 +1,46 @@
 package com.jvmtop.view;
 
 import com.jvmtop.monitor.VMInfo;
+import com.jvmtop.monitor.VMInfoCollector;
 import com.jvmtop.monitor.VMInfoState;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+import com.jvmtop.profiler.ClassHistogramDelta;
 import com.jvmtop.profiler.HeapSampler;
 import com.jvmtop.profiler.HeapSampler.HeapHistogram;
-import com.sun.tools.attach.VirtualMachine;
-import sun.tools.attach.HotSpotVirtualMachine;
+import com.jvmtop.profiler.LeakDetector;
+import com.jvmtop.profiler.LeakSuspect;
+import com.jvmtop.profiler.SamplingScheduler;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * a Heap profiler view that displays the top objects in the heap
+ * <p>
+ * The class histograms are taken via the DiagnosticCommand MBean of the JMX connection,
+ * in the background at their own interval (by default the refresh delay),
+ * the view shows the latest one.
+ * Classes which grow steadily across the histograms are shown as leak suspects (see {@link LeakDetector}).
  *
  * @author tckb
  */
 public class VMMemProfileView extends AbstractConsoleView implements Closeable {
-    private final HeapSampler memorySampler_;
+
+    private HeapSampler memorySampler_ = null;
     private final VMInfo vmInfo_;
-    private final HotSpotVirtualMachine hVm;
     private final boolean deltaEnabled;
     private final int topObjects;
+    private HeapSampler.Order order_ = HeapSampler.Order.SIZE;
+    private boolean live_ = false;
+    // seconds between histograms, null to use the refresh delay
+    private Double histogramInterval_ = null;
+    private SamplingScheduler scheduler_ = null;
+    private volatile Snapshot snapshot_ = null;
+    private final LeakDetector leakDetector_ = new LeakDetector();
+    private static final int LEAK_SUSPECTS = 5;
 
     /**
      * initializes this view
@@ -33,12 +52,27 @@ public class VMMemProfileView extends AbstractConsoleView implements Closeable {
      * @throws Exception
      */
     public VMMemProfileView(int vmid, Integer width, boolean deltaEnabled, int topObjects) throws Exception {
+        this(vmid, width, deltaEnabled, topObjects,
+                new VMInfoCollector(1, VMInfoCollector.DEFAULT_READ_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * initializes this view
+     *
+     * @param vmid         the PID of the vm
+     * @param width        the width to be used for printing
+     * @param deltaEnabled enable this to display the deltas between the updates
+     * @param topObjects   the #objects to be showed (in decreasing order of usage)
+     * @param collector    the collector used to attach to the vm
+     * @throws Exception
+     */
+    public VMMemProfileView(int vmid, Integer width, boolean deltaEnabled, int topObjects,
+                            VMInfoCollector collector) throws Exception {
         super(width);
-        hVm = (HotSpotVirtualMachine) VirtualMachine.attach(String.valueOf(vmid));
         LocalVirtualMachine localVirtualMachine = LocalVirtualMachine
                 .getLocalVirtualMachine(vmid);
-        vmInfo_ = VMInfo.processNewVM(localVirtualMachine, vmid);
-        memorySampler_ = new HeapSampler(hVm);
+        vmInfo_ = collector.attach(localVirtualMachine, vmid);
+        collector.awaitAttach(vmInfo_);
         this.deltaEnabled = deltaEnabled;
         this.topObjects = topObjects;
     }
@@ -56,6 +90,20 @@ public class VMMemProfileView extends AbstractConsoleView implements Closeable {
         this(vmid, width, deltaEnabled, 10);
     }
 
+    /**
+     * initializes this view
+     *
+     * @param vmid         the PID of the vm
+     * @param width        the width to be used for printing
+     * @param deltaEnabled enable this to display the deltas between the updates
+     * @param collector    the collector used to attach to the vm
+     * @throws Exception
+     */
+    public VMMemProfileView(int vmid, Integer width, boolean deltaEnabled,
+                            VMInfoCollector collector) throws Exception {
+        this(vmid, width, deltaEnabled, 10, collector);
+    }
+
     @Override
     public void printView() throws Exception {
         if (vmInfo_.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
@@ -64,40 +112,225 @@ public class VMMemProfileView extends AbstractConsoleView implements Closeable {
             exit();
             return;
         }
+        if (vmInfo_.getState() == VMInfoState.TIMED_OUT) {
+            System.out.println("ERROR: Timed out while attaching to process.");
+            exit();
+            return;
+        }
         if (vmInfo_.getState() != VMInfoState.ATTACHED) {
             System.out.println("ERROR: Could not attach to process.");
             exit();
             return;
         }
 
+        if (scheduler_ != null && scheduler_.getFailure() != null) {
+            System.out.println("ERROR: Could not fetch the class histogram: "
+                    + scheduler_.getFailure().getMessage());
+            exit();
+            return;
+        }
+
         vmInfo_.update();
+        if (memorySampler_ == null) {
+            memorySampler_ = new HeapSampler(vmInfo_.getProxyClient().getMBeanServerConnection());
+            memorySampler_.setLive(live_);
+            try {
+                takeHistogram();
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not fetch the class histogram: " + e.getMessage());
+                exit();
+                return;
+            }
+        }
+        Snapshot snapshot = snapshot_;
 
         int w = width - 40;
         System.out.printf("Memory Profiling PID %d: %40s %n%n", vmInfo_.getId(),
                 leftStr(vmInfo_.getDisplayName(), w));
         System.out.printf("HEAP:%5s /%5s GC-Time: %-7s #GC-Counts: %-8d \n",
                 toMB(vmInfo_.getHeapUsed()), toMB(vmInfo_.getHeapMax()), toHHMM(vmInfo_.getGcTime()), vmInfo_.getGcCount());
-
+        System.out.printf("Histogram of %s objects, took %dms, %.1fs ago%n",
+                live_ ? "live" : "all", snapshot.durationMillis_,
+                (System.nanoTime() - snapshot.timestamp_) / 1000000000d);
 
         System.out.println();
 
 
-        // these are the spaces taken up by the formatting, the rest is usable
-        // for printing out the method name
-        w = width - (8 + 4 + 5 + 3 + 12 + 3);
+        List<HeapHistogram> histograms = snapshot.histograms_;
+        ClassHistogramDelta delta = snapshot.delta_;
+        if (delta != null) {
+            System.out.printf("Classes: %d, %d new, %d gone (%s) in %.1fs%n%n",
+                    delta.getCurrent().size(), delta.getAppearedCount(), delta.getDisappeared().size(),
+                    HeapSampler.toHumanFormString(delta.getDisappearedBytes()), delta.getElapsedSeconds());
+            printDeltas(histograms);
+        } else {
+            // these are the spaces taken up by the formatting, the rest is usable
+            // for printing out the method name
+            w = width - (8 + 4 + 5 + 3 + 12 + 3);
 
-        for (HeapHistogram stats : memorySampler_.getHistogram(topObjects, deltaEnabled)) {
-            if (stats.delta > 0) {
-                System.out.printf("%8s %3s / %5.2f%% %3s %5.3f%% %12s %s\n", stats.memory, stats.memorySuffix, (stats.bytes * 1.d * 100 / vmInfo_.getHeapUsed()), stats.deltaSign, stats.delta, stats.count, shortFQN(stats.className, w));
-            } else {
+            for (HeapHistogram stats : histograms) {
                 System.out.printf("%8s %3s / %5.2f%% %10s %12s %s\n", stats.memory, stats.memorySuffix, (stats.bytes * 1.d * 100 / vmInfo_.getHeapUsed()), "", stats.count, shortFQN(stats.className, w));
             }
         }
         System.out.println();
-        System.out.println("Note: Only top " + topObjects + " objects (according to their memory consumptions) are shown");
+        System.out.println("Note: Only top " + topObjects + " objects (according to their "
+                + (order_ == HeapSampler.Order.GROWTH ? "growth rates" : "memory consumptions") + ") are shown");
+        System.out.println();
+        printLeakSuspects(snapshot);
+
+    }
+
+
+    /**
+     * Takes a histogram, called on the first refresh and then by the scheduler.
+     */
+    private void takeHistogram() throws IOException {
+        long start = System.nanoTime();
+        List<HeapHistogram> histograms = memorySampler_.getHistogram(topObjects, deltaEnabled, order_);
+        leakDetector_.add(memorySampler_.getLastHistogram(), fetchGcCount());
+        snapshot_ = new Snapshot(histograms, memorySampler_.getLastDelta(), start,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                leakDetector_.getSuspects(LEAK_SUSPECTS), leakDetector_.getSamples(),
+                leakDetector_.getWindowNanos(), leakDetector_.getGcCycles());
+    }
+
+    /**
+     * @return the total number of garbage collections of the jvm, fetched directly
+     * as the histograms are taken in the background
+     */
+    private long fetchGcCount() throws IOException {
+        long gcCount = 0;
+        for (GarbageCollectorMXBean gcBean : vmInfo_.getProxyClient().getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gcBean.getCollectionCount());
+        }
+        return gcCount;
+    }
+
+    /**
+     * Prints the classes which grow steadily, with the projected time until they fill the heap.
+     */
+    private void printLeakSuspects(Snapshot snapshot) {
+        if (snapshot.leakSamples_ < LeakDetector.MIN_SAMPLES) {
+            System.out.printf("Leak suspects: collecting histograms (%d of %d)%n",
+                    snapshot.leakSamples_, LeakDetector.MIN_SAMPLES);
+            return;
+        }
+        if (snapshot.leakGcCycles_ < LeakDetector.MIN_GC_CYCLES) {
+            System.out.printf("Leak suspects: waiting for GC cycles (%d of %d in %d histograms)%n",
+                    snapshot.leakGcCycles_, LeakDetector.MIN_GC_CYCLES, snapshot.leakSamples_);
+            return;
+        }
+        System.out.printf("Leak suspects (%d histograms over %.1f min, %d GCs):%n", snapshot.leakSamples_,
+                snapshot.leakWindowNanos_ / 60e9, snapshot.leakGcCycles_);
+        if (snapshot.leakSuspects_.isEmpty()) {
+            System.out.println("  none");
+            return;
+        }
+        long freeHeap = vmInfo_.getHeapMax() - vmInfo_.getHeapUsed();
+        int w = width - (16 + 11 + 13 + 3);
+        System.out.printf("%16s %10s %12s  %s%n", "SIZE", "GROWTH", "HEAP MAX IN", "CLASS");
+        for (LeakSuspect suspect : snapshot.leakSuspects_) {
+            String heapMaxIn = vmInfo_.getHeapMax() < 0 ? "n/a"
+                    : toHHMM((long) (suspect.getHoursUntil(Math.max(0, freeHeap)) * 3600 * 1000));
+            System.out.printf("%16s %8s/h %12s  %s%n", HeapSampler.toHumanFormString(suspect.getBytes()),
+                    toSignedShortForm((long) suspect.getBytesPerHour()), heapMaxIn,
+                    shortFQN(suspect.getClassName(), w));
+        }
+    }
 
+    @Override
+    public void sleep(long millis) throws Exception {
+        if (scheduler_ == null && memorySampler_ != null && !shouldExit()) {
+            double interval = histogramInterval_ != null ? histogramInterval_ : millis / 1000d;
+            scheduler_ = new SamplingScheduler(new SamplingScheduler.Task() {
+                @Override
+                public void sample() throws Exception {
+                    takeHistogram();
+                }
+            }, 1 / interval);
+            // the first histogram has been taken by the first refresh
+            scheduler_.start((long) (interval * TimeUnit.SECONDS.toNanos(1)));
+        }
+        super.sleep(millis);
     }
 
+    @Override
+    protected void exit() {
+        super.exit();
+        if (scheduler_ != null) {
+            scheduler_.close();
+        }
+    }
+
+    /**
+     * Prints the classes with their absolute changes since the previous histogram.
+     */
+    private void printDeltas(List<HeapHistogram> histograms) {
+        // these are the spaces taken up by the formatting, the rest is usable
+        // for printing out the class name
+        int w = width - (8 + 4 + 7 + 9 + 11 + 11 + 9 + 1);
+        System.out.printf("%12s %6s %8s %10s %10s %8s %s%n",
+                "SIZE", "%HEAP", "DELTA", "RATE", "#INST", "DELTA", "CLASS");
+        for (HeapHistogram stats : histograms) {
+            System.out.printf("%8s %3s %5.1f%% %8s %8s/s %10d %8s %s%n", stats.memory, stats.memorySuffix,
+                    stats.bytes * 1.d * 100 / vmInfo_.getHeapUsed(),
+                    stats.appeared ? "new" : toSignedShortForm(stats.bytesDelta),
+                    toSignedShortForm((long) stats.bytesPerSecond), stats.count,
+                    stats.appeared ? "new" : String.format("%+d", stats.countDelta),
+                    shortFQN(stats.className, w));
+        }
+    }
+
+    /**
+     * @return e.g. +1.5M or -12B
+     */
+    private static String toSignedShortForm(long bytes) {
+        String[] units = {"B", "K", "M", "G", "T"};
+        double value = Math.abs((double) bytes);
+        int unit = 0;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        String sign = bytes < 0 ? "-" : "+";
+        return unit == 0 ? sign + (long) value + units[unit]
+                : String.format("%s%.1f%s", sign, value, units[unit]);
+    }
+
+    public boolean isLive() {
+        return live_;
+    }
+
+    /**
+     * @param live if true, only reachable objects are counted, which forces a full GC on every histogram.
+     *             Must be set before the first refresh.
+     */
+    public void setLive(boolean live) {
+        live_ = live;
+    }
+
+    public Double getHistogramInterval() {
+        return histogramInterval_;
+    }
+
+    /**
+     * @param histogramInterval seconds between the histograms or null, to take one per refresh.
+     *                          Must be set before the first refresh.
+     */
+    public void setHistogramInterval(Double histogramInterval) {
+        histogramInterval_ = histogramInterval;
+    }
+
+    public HeapSampler.Order getOrder() {
+        return order_;
+    }
+
+    /**
+     * @param order order of the shown classes, growth requires deltas to be enabled
+     */
+    public void setOrder(HeapSampler.Order order) {
+        order_ = order;
+    }
 
     private String shortFQN(String fqn, int size) {
         String line = fqn;
@@ -109,7 +342,36 @@ public class VMMemProfileView extends AbstractConsoleView implements Closeable {
 
     @Override
     public void close() throws IOException {
-        hVm.detach();
+        if (scheduler_ != null) {
+            scheduler_.close();
+        }
+    }
+
+    /**
+     * The top classes of a histogram and the leak suspects
+     */
+    private static final class Snapshot {
+        private final List<HeapHistogram> histograms_;
+        private final ClassHistogramDelta delta_;
+        private final long timestamp_;
+        private final long durationMillis_;
+        private final List<LeakSuspect> leakSuspects_;
+        private final int leakSamples_;
+        private final long leakWindowNanos_;
+        private final long leakGcCycles_;
+
+        private Snapshot(List<HeapHistogram> histograms, ClassHistogramDelta delta, long timestamp,
+                         long durationMillis, List<LeakSuspect> leakSuspects, int leakSamples,
+                         long leakWindowNanos, long leakGcCycles) {
+            histograms_ = histograms;
+            delta_ = delta;
+            timestamp_ = timestamp;
+            durationMillis_ = durationMillis;
+            leakSuspects_ = leakSuspects;
+            leakSamples_ = leakSamples;
+            leakWindowNanos_ = leakWindowNanos;
+            leakGcCycles_ = leakGcCycles;
+        }
     }
 
 }
@@ -20,17 +20,27 @@
  */
 package com.jvmtop.view;
 
+import com.jvmtop.monitor.PerfDataBuffer;
+import com.jvmtop.monitor.VMDiscoveryService;
 import com.jvmtop.monitor.VMInfo;
+import com.jvmtop.monitor.VMInfoCollector;
 import com.jvmtop.monitor.VMInfoState;
+import com.jvmtop.monitor.VMLifecycleManager;
+import com.jvmtop.openjdk.tools.AttachFailureCache;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
 
 import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * "overview" view, providing the most-important metrics of all accessible jvms in a top-like manner.
@@ -40,23 +50,61 @@ import java.util.Set;
  */
 public class VMOverviewView extends AbstractConsoleView {
 
+    /**
+     * Number of refreshes a new jvm is retried until its perf data becomes accessible,
+     * before falling back to attach to it
+     */
+    private static final int MAX_PENDING_REFRESHES = 5;
+
     private final List<VMInfo> vmInfoList = new ArrayList<VMInfo>();
 
-    private Map<Integer, LocalVirtualMachine> vmMap = new HashMap<Integer, LocalVirtualMachine>();
+    // jvms not listed via jvmstat are mapped to null, they are resolved when attaching
+    private final Map<Integer, LocalVirtualMachine> vmMap = new HashMap<Integer, LocalVirtualMachine>();
+
+    // new jvms whose perf data was not accessible yet, mapped to the number of refreshes since discovery
+    private final Map<Integer, Integer> pendingVmids_ = new HashMap<Integer, Integer>();
+
+    private final VMInfoCollector collector_;
+
+    private final VMDiscoveryService discovery_;
+
+    private final VMLifecycleManager lifecycle_ = new VMLifecycleManager();
+
+    private boolean perfDataEnabled_ = true;
 
     public VMOverviewView(Integer width) {
+        this(width, new VMInfoCollector());
+    }
+
+    public VMOverviewView(Integer width, VMInfoCollector collector) {
+        this(width, collector, new VMDiscoveryService());
+    }
+
+    public VMOverviewView(Integer width, VMInfoCollector collector, VMDiscoveryService discovery) {
         super(width);
+        collector_ = collector;
+        discovery_ = discovery;
+        discovery_.start();
     }
 
     public void printView() throws Exception {
         printHeader();
 
-        //to reduce cpu effort, scan only every 5 iterations for new vms
-        scanForNewVMs();
+        processDiscoveryEvents();
+
+        retryFailedAttaches();
+
+        for (VMInfo vmInfo : lifecycle_.evictDeadVMs(vmInfoList)) {
+            vmMap.remove(vmInfo.getId());
+            // a detached but still running jvm is picked up again by the next rescan
+            if (lifecycle_.isAlive(vmInfo.getId())) {
+                discovery_.forget(vmInfo.getId());
+            }
+        }
 
         updateVMs(vmInfoList);
 
-        Collections.sort(vmInfoList, VMInfo.CPU_LOAD_COMPARATOR);
+        sortByCpuLoad(vmInfoList);
 
         for (VMInfo vmInfo : vmInfoList) {
             if (vmInfo.getState() == VMInfoState.ATTACHED
@@ -75,6 +123,13 @@ public class VMOverviewView extends AbstractConsoleView {
                 System.out.printf(
                         "%5d %-15.15s [ERROR: Connection refused/access denied] %n",
                         vmInfo.getId(), getEntryPointClass(vmInfo.getDisplayName()));
+            } else if (vmInfo.getState() == VMInfoState.TIMED_OUT) {
+                System.out.printf(
+                        "%5d %-15.15s [TIMEOUT: VM is not responding, retrying] %n",
+                        vmInfo.getId(), getEntryPointClass(vmInfo.getDisplayName()));
+            } else if (vmInfo.getState() == VMInfoState.INIT) {
+                System.out.printf("%5d %-15.15s [Attaching...] %n",
+                        vmInfo.getId(), getEntryPointClass(vmInfo.getDisplayName()));
             }
 
         }
@@ -105,15 +160,27 @@ public class VMOverviewView extends AbstractConsoleView {
             deadlockState = "!D";
         }
 
+        // metrics of jvms which missed the update deadline are from a previous iteration
+        String staleState = "";
+        if (vmInfo.isStale()) {
+            staleState = " [STALE]";
+        }
+
+        // safepoint times are only exported via hsperfdata
+        String safepointLoad = "n/a";
+        if (vmInfo.isPerfDataVM()) {
+            safepointLoad = String.format("%5.2f%%", vmInfo.getSafepointLoad() * 100);
+        }
+
         System.out
                 .printf(
-                        "%5d %-15.15s %5s %5s %5s %5s %5.2f%% %5.2f%% %-5.5s %8.8s %4d %2.2s%n",
+                        "%5d %-15.15s %5s %5s %5s %5s %5.2f%% %5.2f%% %6s %-5.5s %8.8s %4d %2.2s%s%n",
                         vmInfo.getId(), getEntryPointClass(vmInfo.getDisplayName()),
                         toMB(vmInfo.getHeapUsed()), toMB(vmInfo.getHeapMax()),
                         toMB(vmInfo.getNonHeapUsed()), toMB(vmInfo.getNonHeapMax()),
-                        vmInfo.getCpuLoad() * 100, vmInfo.getGcLoad() * 100,
+                        vmInfo.getCpuLoad() * 100, vmInfo.getGcLoad() * 100, safepointLoad,
                         vmInfo.getVMVersion(), vmInfo.getOSUser(), vmInfo.getThreadCount(),
-                        deadlockState);
+                        deadlockState, staleState);
 
     }
 
@@ -122,39 +189,143 @@ public class VMOverviewView extends AbstractConsoleView {
      * @throws Exception
      */
     private void updateVMs(List<VMInfo> vmList) throws Exception {
+        collector_.updateAll(vmList);
+    }
+
+    /**
+     * Sorts the list by the cpu load of the jvms.
+     * Updates of stale jvms may still be running in the background,
+     * so the ordering is based on a snapshot of their current cpu load.
+     *
+     * @param vmList
+     */
+    private void sortByCpuLoad(List<VMInfo> vmList) {
+        final Map<VMInfo, Double> cpuLoads = new IdentityHashMap<VMInfo, Double>();
         for (VMInfo vmInfo : vmList) {
-            vmInfo.update();
+            cpuLoads.put(vmInfo, vmInfo.getCpuLoad());
+        }
+        Collections.sort(vmList, new Comparator<VMInfo>() {
+            @Override
+            public int compare(VMInfo o1, VMInfo o2) {
+                return cpuLoads.get(o2).compareTo(cpuLoads.get(o1));
+            }
+        });
+    }
+
+    /**
+     * Adds started and removes terminated jvms, as reported by the discovery service.
+     */
+    private void processDiscoveryEvents() {
+        for (VMDiscoveryService.Event event : discovery_.pollEvents()) {
+            int vmid = event.getVmid();
+            if (event.getType() == VMDiscoveryService.Event.Type.ADDED) {
+                if (!vmMap.containsKey(vmid)) {
+                    pendingVmids_.put(vmid, 0);
+                }
+            } else {
+                pendingVmids_.remove(vmid);
+                removeVM(vmid);
+            }
+        }
+
+        for (Iterator<Map.Entry<Integer, Integer>> it = pendingVmids_.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Integer> pending = it.next();
+            int vmid = pending.getKey();
+            // the hsperfdata file of a starting jvm is created before it is initialized
+            LocalVirtualMachine localvm = LocalVirtualMachine.getMonitoredVM(vmid);
+            if (localvm == null) {
+                if (!LocalVirtualMachine.isJ9Mode() && pending.getValue() < MAX_PENDING_REFRESHES) {
+                    pending.setValue(pending.getValue() + 1);
+                    continue;
+                }
+            }
+            it.remove();
+            vmMap.put(vmid, localvm);
+            if (localvm == null) {
+                // resolving it requires to attach, which must not block the refresh
+                vmInfoList.add(collector_.resolveAndAttach(vmid));
+            } else {
+                vmInfoList.add(createVMInfo(localvm, vmid));
+            }
         }
     }
 
     /**
-     * @param vmMap
-     * @param vmMap
-     * @param set
+     * Attaches again to jvms which could not be attached before,
+     * once their backoff in the {@link AttachFailureCache} has expired.
      */
-    private void scanForNewVMs() {
-        Map<Integer, LocalVirtualMachine> machines = LocalVirtualMachine
-                .getNewVirtualMachines(vmMap);
-        Set<Entry<Integer, LocalVirtualMachine>> set = machines.entrySet();
-
-        for (Entry<Integer, LocalVirtualMachine> entry : set) {
-            LocalVirtualMachine localvm = entry.getValue();
-            int vmid = localvm.vmid();
-
-            if (!vmMap.containsKey(vmid)) {
-                VMInfo vmInfo = VMInfo.processNewVM(localvm, vmid);
-                vmInfoList.add(vmInfo);
+    private void retryFailedAttaches() {
+        for (ListIterator<VMInfo> it = vmInfoList.listIterator(); it.hasNext(); ) {
+            VMInfo vmInfo = it.next();
+            if ((vmInfo.getState() != VMInfoState.ERROR_DURING_ATTACH
+                    && vmInfo.getState() != VMInfoState.CONNECTION_REFUSED)
+                    || AttachFailureCache.isSuppressed(vmInfo.getId())) {
+                continue;
+            }
+            int vmid = vmInfo.getId();
+            // the attachability of the jvm might have changed
+            LocalVirtualMachine localvm = LocalVirtualMachine.getMonitoredVM(vmid);
+            if (localvm == null) {
+                localvm = vmMap.get(vmid);
+            } else {
+                vmMap.put(vmid, localvm);
+            }
+            if (localvm == null) {
+                it.set(collector_.resolveAndAttach(vmid));
+            } else {
+                it.set(collector_.attach(localvm, vmid));
+            }
+        }
+    }
+
+    private void removeVM(int vmid) {
+        vmMap.remove(vmid);
+        for (Iterator<VMInfo> it = vmInfoList.iterator(); it.hasNext(); ) {
+            VMInfo vmInfo = it.next();
+            if (vmInfo.getId() == vmid) {
+                it.remove();
+                lifecycle_.evict(vmInfo);
             }
         }
-        vmMap = machines;
+    }
+
+    /**
+     * Monitors the jvm via its hsperfdata file if possible, which neither requires
+     * to attach to it nor any RMI call. Otherwise, it is attached in the background.
+     *
+     * @param localvm
+     * @param vmid
+     * @return
+     */
+    private VMInfo createVMInfo(LocalVirtualMachine localvm, int vmid) {
+        if (perfDataEnabled_) {
+            try {
+                return VMInfo.createPerfDataVM(vmid, localvm, PerfDataBuffer.open(vmid));
+            } catch (IOException e) {
+                Logger.getLogger("jvmtop").log(Level.FINE,
+                        "hsperfdata not available, attaching instead (PID=" + vmid + ")", e);
+            }
+        }
+        return collector_.attach(localvm, vmid);
+    }
+
+    public boolean isPerfDataEnabled() {
+        return perfDataEnabled_;
+    }
+
+    /**
+     * @param perfDataEnabled if false, all jvms are attached via JMX instead of reading their hsperfdata files
+     */
+    public void setPerfDataEnabled(boolean perfDataEnabled) {
+        perfDataEnabled_ = perfDataEnabled;
     }
 
     /**
      *
      */
     private void printHeader() {
-        System.out.printf("%5s %-15.15s %5s %5s %5s %5s %6s %6s %5s %8s %4s %2s%n",
-                "PID", "MAIN-CLASS", "HPCUR", "HPMAX", "NHCUR", "NHMAX", "CPU", "GC",
+        System.out.printf("%5s %-15.15s %5s %5s %5s %5s %6s %6s %6s %5s %8s %4s %2s%n",
+                "PID", "MAIN-CLASS", "HPCUR", "HPMAX", "NHCUR", "NHMAX", "CPU", "GC", "SP",
                 "VM", "USERNAME", "#T", "DL");
     }
 
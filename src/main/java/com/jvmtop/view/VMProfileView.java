@@ -20,74 +20,470 @@
  */
 package com.jvmtop.view;
 
+import com.jvmtop.agent.SamplingAgentMBean;
 import com.jvmtop.monitor.VMInfo;
+import com.jvmtop.monitor.VMInfoCollector;
 import com.jvmtop.monitor.VMInfoState;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
 import com.jvmtop.profiler.CPUSampler;
+import com.jvmtop.profiler.CallTree;
+import com.jvmtop.profiler.JfrRecording;
 import com.jvmtop.profiler.MethodStats;
+import com.jvmtop.profiler.SampleRecorder;
+import com.jvmtop.profiler.SampleReplay;
+import com.jvmtop.profiler.SamplingScheduler;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * CPU sampling-based profiler view which shows methods with top CPU usage.
+ * <p>
+ * Instead of profiling a jvm, it can also show the profile of a sample recording (see {@link SampleReplay}).
  *
  * @author paru
  *
  */
 public class VMProfileView extends AbstractConsoleView {
 
+    /**
+     * How the sampled cpu time is presented
+     */
+    public enum Mode {
+        /**
+         * methods (lines) consuming the most cpu time themselves
+         */
+        FLAT,
+        /**
+         * top-down call tree, starting at the thread entry points
+         */
+        TREE,
+        /**
+         * bottom-up call tree, starting at the methods consuming cpu time, followed by their callers
+         */
+        INVERTED
+    }
+
+    /**
+     * Where the stack samples are taken
+     */
+    public enum Source {
+        /**
+         * thread dumps via JMX
+         */
+        JMX,
+        /**
+         * sampling agent loaded into the target jvm
+         */
+        AGENT,
+        /**
+         * Java Flight Recorder execution samples
+         */
+        JFR
+    }
+
+    private static final int MAX_TREE_ROWS = 40;
+
+    // the flight recorder is flushed on every update, which is too expensive to do often
+    private static final double JFR_UPDATE_RATE = 1;
+
     private final CPUSampler cpuSampler_;
 
     private final VMInfo vmInfo_;
 
+    private Mode mode_ = Mode.FLAT;
+
+    private CPUSampler.Aggregation aggregation_ = CPUSampler.Aggregation.CUMULATIVE;
+
+    private double treeMinPercent_ = 1.0;
+
+    private File foldedStacksFile_ = null;
+
+    private double sampleRate_ = SamplingScheduler.DEFAULT_RATE;
+
+    private SamplingScheduler scheduler_ = null;
+
+    private Source source_ = Source.JMX;
+
+    private String sourceError_ = null;
+
+    // null, unless showing a recording
+    private final SampleReplay replay_;
+
     public VMProfileView(int vmid, Integer width) throws Exception {
+        this(vmid, width, new VMInfoCollector(1, VMInfoCollector.DEFAULT_READ_TIMEOUT_MILLIS));
+    }
+
+    public VMProfileView(int vmid, Integer width, VMInfoCollector collector) throws Exception {
         super(width);
         LocalVirtualMachine localVirtualMachine = LocalVirtualMachine
                 .getLocalVirtualMachine(vmid);
-        vmInfo_ = VMInfo.processNewVM(localVirtualMachine, vmid);
+        vmInfo_ = collector.attach(localVirtualMachine, vmid);
+        collector.awaitAttach(vmInfo_);
         cpuSampler_ = new CPUSampler(vmInfo_);
+        replay_ = null;
+    }
+
+    /**
+     * Shows the profile of a sample recording, once.
+     *
+     * @param recordingFile written via {@link #setRecordingFile(File)}
+     * @param width
+     */
+    public VMProfileView(File recordingFile, Integer width) {
+        super(width);
+        vmInfo_ = null;
+        cpuSampler_ = new CPUSampler();
+        replay_ = new SampleReplay(recordingFile.toPath());
     }
 
     @Override
     public void sleep(long millis) throws Exception {
-        long cur = System.currentTimeMillis();
-        cpuSampler_.update();
-        while (cur + millis > System.currentTimeMillis()) {
-            cpuSampler_.update();
-            super.sleep(100);
+        if (shouldExit() || replay_ != null) {
+            return;
+        }
+        if (scheduler_ == null) {
+            double rate = enableSource();
+            if (cpuSampler_.getRecorder() != null || cpuSampler_.getAgent() != null
+                    || cpuSampler_.getJfrRecording() != null) {
+                // stop sampling in the target jvm and complete the recording when jvmtop terminates,
+                // also after the last iteration (-n) or on Ctrl+C
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        cpuSampler_.close();
+                    }
+                }, "jvmtop-sampler-shutdown"));
+            }
+            scheduler_ = new SamplingScheduler(new SamplingScheduler.Task() {
+                @Override
+                public void sample() throws Exception {
+                    cpuSampler_.update();
+                }
+            }, rate);
+            scheduler_.start();
+        }
+        super.sleep(millis);
+    }
+
+    /**
+     * Starts sampling in the target jvm, if configured. Falls back to sampling via JMX on failure.
+     *
+     * @return the rate of the updates of the cpu sampler
+     */
+    private double enableSource() {
+        try {
+            if (source_ == Source.AGENT) {
+                cpuSampler_.enableAgent(vmInfo_.getId(), sampleRate_);
+            } else if (source_ == Source.JFR) {
+                cpuSampler_.enableJfr(sampleRate_);
+            } else {
+                return sampleRate_;
+            }
+        } catch (Exception e) {
+            Logger.getLogger("jvmtop").log(Level.FINE, "could not start sampling via " + source_, e);
+            sourceError_ = String.valueOf(e.getMessage());
+            return sampleRate_;
         }
+        // the target jvm samples at the requested rate, the aggregated samples are fetched less often
+        return source_ == Source.JFR ? JFR_UPDATE_RATE : SamplingScheduler.DEFAULT_RATE;
+    }
 
+    @Override
+    protected void exit() {
+        super.exit();
+        if (scheduler_ != null) {
+            scheduler_.close();
+        }
+        cpuSampler_.close();
     }
 
     public void printView() {
+        if (replay_ != null) {
+            printReplay();
+            return;
+        }
         if (vmInfo_.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
             System.out
                     .println("ERROR: Could not fetch telemetries - Process terminated?");
             exit();
             return;
         }
+        if (vmInfo_.getState() == VMInfoState.TIMED_OUT) {
+            System.out.println("ERROR: Timed out while attaching to process.");
+            exit();
+            return;
+        }
         if (vmInfo_.getState() != VMInfoState.ATTACHED) {
             System.out.println("ERROR: Could not attach to process.");
             exit();
             return;
         }
+        if (scheduler_ != null && scheduler_.getFailure() != null) {
+            System.out
+                    .println("ERROR: Could not fetch telemetries - Process terminated?");
+            exit();
+            return;
+        }
 
         int w = width - 40;
-        System.out.printf(" Profiling PID %d: %40s %n%n", vmInfo_.getId(),
+        System.out.printf(" Profiling PID %d: %40s %n", vmInfo_.getId(),
                 leftStr(vmInfo_.getDisplayName(), w));
+        SampleRecorder recorder = cpuSampler_.getRecorder();
+        if (recorder != null) {
+            System.out.printf(" Recording: %d samples, %dkB written%n", recorder.getSamples(),
+                    recorder.getBytes() / 1024);
+        }
+        SamplingAgentMBean agent = cpuSampler_.getAgent();
+        JfrRecording jfr = cpuSampler_.getJfrRecording();
+        if (jfr != null) {
+            System.out.printf(" JFR: %.2fms/update, %d samples fetched, %dkB transferred, %.2fs wall / %.2fs cpu sampled%n%n",
+                    cpuSampler_.getAverageSampleMillis(), cpuSampler_.getLastSampledThreads(),
+                    jfr.getTransferredBytes() / 1024,
+                    cpuSampler_.getSampledWallTime() / 1000000000d,
+                    cpuSampler_.getTotal() / 1000000000d);
+        } else if (agent != null) {
+            System.out.printf(" Agent: %d samples at %.1f/s, %d overruns, %.3fms/sample in target%n",
+                    agent.getSamples(), agent.getSampleRate(), agent.getOverruns(),
+                    agent.getAverageSampleMillis());
+            System.out.printf(" Sampling: %.2fms/update, %d stacks fetched, %.2fs wall / %.2fs cpu sampled%n%n",
+                    cpuSampler_.getAverageSampleMillis(), cpuSampler_.getLastSampledThreads(),
+                    cpuSampler_.getSampledWallTime() / 1000000000d,
+                    cpuSampler_.getTotal() / 1000000000d);
+        } else {
+            if (sourceError_ != null) {
+                System.out.printf(" Sampling via %s failed, sampling via JMX: %s%n", source_, sourceError_);
+            }
+            System.out.printf(" Sampling: %.2fms/sample, %d of %d threads sampled%n",
+                    cpuSampler_.getAverageSampleMillis(), cpuSampler_.getLastSampledThreads(),
+                    cpuSampler_.getLastTotalThreads());
+            if (scheduler_ != null) {
+                System.out.printf(" %d samples at %.1f/s, %d overruns, %.2fs wall / %.2fs cpu sampled%n%n",
+                        scheduler_.getSamples(), scheduler_.getRate(), scheduler_.getOverruns(),
+                        cpuSampler_.getSampledWallTime() / 1000000000d,
+                        cpuSampler_.getTotal() / 1000000000d);
+            } else {
+                System.out.println();
+            }
+        }
+
+        printProfile();
+    }
+
+    private void printProfile() {
+        if (mode_ != Mode.FLAT) {
+            printCallTree(cpuSampler_.getCallTree(mode_ == Mode.INVERTED));
+        } else {
+            printTopMethods();
+        }
+
+        if (foldedStacksFile_ != null) {
+            writeFoldedStacks();
+        }
+    }
 
+    /**
+     * Aggregates and prints the complete recording, then exits.
+     */
+    private void printReplay() {
+        try {
+            cpuSampler_.replay(replay_);
+        } catch (IOException e) {
+            Logger.getLogger("jvmtop").log(Level.FINE, "could not read the sample recording", e);
+            System.out.println("ERROR: Could not read the sample recording: " + e.getMessage());
+            exit();
+            return;
+        }
+        System.out.printf(" Recording of %tF %<tT: %.1fs, %d updates, %d samples, %d stacks%s%n",
+                new Date(replay_.getStartMillis()), replay_.getDuration() / 1000000000d,
+                replay_.getUpdates(), replay_.getSamples(), replay_.getStackCount(),
+                replay_.isTruncated() ? " (truncated)" : "");
+        System.out.printf(" %.2fs wall / %.2fs cpu sampled%n%n",
+                cpuSampler_.getSampledWallTime() / 1000000000d, cpuSampler_.getTotal() / 1000000000d);
+        printProfile();
+        exit();
+    }
+
+    private void printTopMethods() {
         // these are the spaces taken up by the formatting, the rest is usable
         // for printing out the method name
-        w = width - (1 + 6 + 3 + 9 + 3 + 2);
-        for (MethodStats stats : cpuSampler_.getTop(20)) {
-            double wallRatio = (double) stats.getHits().get() / cpuSampler_.getTotal() * 100;
+        int w = width - (1 + 6 + 3 + 9 + 3 + 2);
+        if (aggregation_ != CPUSampler.Aggregation.CUMULATIVE) {
+            System.out.printf(" %s aggregation%n", aggregation_.name().toLowerCase(Locale.US));
+        }
+        double sampledSeconds = cpuSampler_.getSampledWallTime(aggregation_) / 1000000000d;
+        long total = cpuSampler_.getTotal(aggregation_);
+        for (MethodStats stats : cpuSampler_.getTop(20, aggregation_)) {
+            double wallRatio = (double) stats.getHits() / total * 100;
             if (!Double.isNaN(wallRatio)) {
-                System.out.printf(" %6.2f%% (%9.2fs) %s():%d%n", wallRatio, wallRatio / 100d * cpuSampler_.getUpdateCount() * 0.1d,
+                System.out.printf(" %6.2f%% (%9.2fs) %s():%d%n", wallRatio, wallRatio / 100d * sampledSeconds,
                         shortFQN(stats.getClassName(), stats.getMethodName(), w), stats.getLineNumber());
             }
         }
     }
 
+    /**
+     * Prints the hottest paths of the call tree. Children consuming less than
+     * the minimum percentage of the total cpu time are collapsed.
+     *
+     * @param tree
+     */
+    private void printCallTree(CallTree tree) {
+        long total = tree.getTotalTime(CallTree.ROOT);
+        if (total == 0) {
+            return;
+        }
+        System.out.printf(" %7s %7s %11s  %s%n", "TOTAL", "SELF", "", "METHOD");
+        int[] rows = {0};
+        for (int child : tree.getChildren(CallTree.ROOT)) {
+            printCallTreeNode(tree, child, 0, total, rows);
+        }
+        if (rows[0] >= MAX_TREE_ROWS) {
+            System.out.printf(" Note: Only the top %d rows are shown!%n", MAX_TREE_ROWS);
+        }
+    }
+
+    private void printCallTreeNode(CallTree tree, int node, int depth, long total, int[] rows) {
+        double totalRatio = (double) tree.getTotalTime(node) / total * 100;
+        if (totalRatio < treeMinPercent_ || rows[0] >= MAX_TREE_ROWS) {
+            return;
+        }
+        rows[0]++;
+        double selfRatio = (double) tree.getSelfTime(node) / total * 100;
+        StackTraceElement frame = cpuSampler_.getFrame(tree.getFrameId(node));
+        int indent = Math.min(depth, 20);
+        // these are the spaces taken up by the formatting, the rest is usable
+        // for printing out the method name
+        int w = Math.max(10, width - (1 + 7 + 2 + 7 + 2 + 11 + 2 + indent + 6));
+        System.out.printf(" %6.2f%% %6.2f%% (%9.2fs) %" + (indent + 1) + "s%s():%d%n",
+                totalRatio, selfRatio,
+                totalRatio / 100d * cpuSampler_.getSampledWallTime() / 1000000000d, "",
+                shortFQN(frame.getClassName(), frame.getMethodName(), w),
+                frame.getLineNumber());
+        for (int child : tree.getChildren(node)) {
+            printCallTreeNode(tree, child, depth + 1, total, rows);
+        }
+    }
+
+    /**
+     * Writes the sampled stacks in the folded format, replacing the file atomically
+     */
+    private void writeFoldedStacks() {
+        File tmpFile = new File(foldedStacksFile_.getPath() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+                cpuSampler_.writeFoldedStacks(writer);
+            }
+            Files.move(tmpFile.toPath(), foldedStacksFile_.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logger.getLogger("jvmtop").log(Level.WARNING,
+                    "could not write folded stacks to " + foldedStacksFile_, e);
+        }
+    }
+
+    /**
+     * @return the sampler, e.g. to configure the sampling strategy
+     */
+    public CPUSampler getCPUSampler() {
+        return cpuSampler_;
+    }
+
+    public double getSampleRate() {
+        return sampleRate_;
+    }
+
+    /**
+     * @param sampleRate samples per second, must be set before the first refresh
+     */
+    public void setSampleRate(double sampleRate) {
+        sampleRate_ = sampleRate;
+    }
+
+    public CPUSampler.Aggregation getAggregation() {
+        return aggregation_;
+    }
+
+    /**
+     * Switches the aggregation of the flat view, takes effect on the next refresh.
+     *
+     * @param aggregation
+     */
+    public void setAggregation(CPUSampler.Aggregation aggregation) {
+        aggregation_ = aggregation;
+    }
+
+    public Source getSource() {
+        return source_;
+    }
+
+    /**
+     * @param source where the stacks are sampled, the agent and jfr sample inside the target jvm
+     *               at the sample rate. Must be set before the first refresh.
+     */
+    public void setSource(Source source) {
+        source_ = source;
+    }
+
+    public Mode getMode() {
+        return mode_;
+    }
+
+    /**
+     * @param mode how to present the profile, the tree modes enable the call tree aggregation
+     */
+    public void setMode(Mode mode) {
+        mode_ = mode;
+        if (mode != Mode.FLAT) {
+            cpuSampler_.setCallTreeEnabled(true);
+        }
+    }
+
+    public double getTreeMinPercent() {
+        return treeMinPercent_;
+    }
+
+    /**
+     * @param treeMinPercent call tree nodes below this percentage of the total cpu time are collapsed
+     */
+    public void setTreeMinPercent(double treeMinPercent) {
+        treeMinPercent_ = treeMinPercent;
+    }
+
+    /**
+     * Records all samples to the given file, which can be shown later via {@link #VMProfileView(File, Integer)}.
+     *
+     * @param recordingFile
+     * @throws IOException if the file cannot be created
+     */
+    public void setRecordingFile(File recordingFile) throws IOException {
+        cpuSampler_.setRecorder(new SampleRecorder(recordingFile.toPath()));
+    }
+
+    public File getFoldedStacksFile() {
+        return foldedStacksFile_;
+    }
+
+    /**
+     * @param foldedStacksFile file to which the call tree is written on every refresh,
+     *                         in the folded stacks format of the flame graph tools
+     */
+    public void setFoldedStacksFile(File foldedStacksFile) {
+        foldedStacksFile_ = foldedStacksFile;
+        if (foldedStacksFile != null) {
+            cpuSampler_.setCallTreeEnabled(true);
+        }
+    }
+
     /**
      * Shortens a full qualified class name if it exceeds the size.
      * TODO: improve method to shorten middle packages first,